@@ -13,8 +13,20 @@ public class Constants {
     public static final int PREFERENCES_OWNER_TYPE_REPOSITORY = 1000;
     public static final String HASH_ALG = "SHA-256";
     public static final String FSREPO_INDEX_ON_STARTUP = "fsrepo.reindex.on.startup";
+    public static final String FSREPO_ID_BLOCK_SIZE = "fsrepo.id.block.size";
+    public static final String FSREPO_ENTRY_INDEX_SIZE = "fsrepo.entry.index.size";
+    public static final String FSREPO_ASSET_SYNC_QUEUE_SIZE = "fsrepo.asset.sync.queue.size";
+    public static final String FSREPO_ASSET_SYNC_CHANGED_ONLY = "fsrepo.asset.sync.changed.only";
+    public static final String FSREPO_LISTING_CACHE_SIZE = "fsrepo.listing.cache.size";
+    public static final String FSREPO_LISTING_CACHE_WATCH = "fsrepo.listing.cache.watch";
+    public static final String FSREPO_SORTED_VIEWS_MIN_SIZE = "fsrepo.sorted.views.min.size";
+    public static final String FSREPO_SORTED_VIEWS_VALIDATION_INTERVAL = "fsrepo.sorted.views.validation.interval";
+    public static final String FSREPO_PERMISSION_CACHE_SIZE = "fsrepo.permission.cache.size";
+    public static final String FSREPO_PERMISSION_CACHE_TTL = "fsrepo.permission.cache.ttl";
     public static final String ABSOLUTE_PATH = "Absolute_Path";
     public static final String ADD_GROUP_PERMISSIONS = "ADD_GROUP_PERMISSIONS";
     public static final String ADD_GUEST_PERMISSIONS = "ADD_GUEST_PERMISSIONS";
     public static final String ROOT_FOLDER = "ROOT_FOLDER";
+    public static final String LISTING_THREADS = "LISTING_THREADS";
+    public static final String INHERIT_PERMISSIONS = "INHERIT_PERMISSIONS";
 }
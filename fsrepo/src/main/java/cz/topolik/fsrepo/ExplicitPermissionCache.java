@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo;
+
+import com.liferay.portal.kernel.cache.MultiVMPoolUtil;
+import com.liferay.portal.kernel.cache.PortalCache;
+import com.liferay.portal.kernel.dao.orm.DynamicQuery;
+import com.liferay.portal.kernel.dao.orm.RestrictionsFactoryUtil;
+import com.liferay.portal.kernel.exception.PortalException;
+import com.liferay.portal.kernel.exception.SystemException;
+import com.liferay.portal.kernel.util.GetterUtil;
+import com.liferay.portal.kernel.util.PropsUtil;
+import com.liferay.portal.model.ResourceConstants;
+import com.liferay.portal.model.ResourcePermission;
+import com.liferay.portal.model.RoleConstants;
+import com.liferay.portal.service.ResourcePermissionLocalServiceUtil;
+import com.liferay.portal.service.RoleLocalServiceUtil;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Remembers which resources have individual permissions of their own, used
+ * by repositories with inherited permissions to find the folder that decides
+ * the access. Permissions of the owner role don't count, they are given to
+ * the creator of every entry and checked on the entry itself.
+ *
+ * The cache lives in the multi VM pool and is kept in sync by
+ * {@link ResourcePermissionModelListener}, a removal is seen by all cluster
+ * nodes. Values also expire after fsrepo.permission.cache.ttl (ms).
+ *
+ * @author Tomas Polesovsky
+ */
+public class ExplicitPermissionCache {
+
+    /**
+     * Max number of values in one IN query
+     */
+    private static final int BATCH_SIZE = 500;
+    private static final String CACHE_NAME = ExplicitPermissionCache.class.getName();
+    private static final int MAX_SIZE = GetterUtil.getInteger(PropsUtil.get(Constants.FSREPO_PERMISSION_CACHE_SIZE), 100000);
+    private static final int TTL = (int) (GetterUtil.getLong(PropsUtil.get(Constants.FSREPO_PERMISSION_CACHE_TTL), 300000) / 1000);
+    private static final PortalCache<String, Boolean> _explicit = MultiVMPoolUtil.getCache(CACHE_NAME);
+
+    public static boolean hasExplicitPermissions(long companyId, String className, long primKey) throws SystemException {
+        return hasExplicitPermissions(companyId, className, new long[]{primKey}).get(0);
+    }
+
+    /**
+     * @return bit set on the positions of the resources with individual
+     * permissions
+     */
+    public static BitSet hasExplicitPermissions(long companyId, String className, long[] primKeys) throws SystemException {
+        BitSet result = new BitSet(primKeys.length);
+        List<Integer> missing = new ArrayList<Integer>();
+        for (int i = 0; i < primKeys.length; i++) {
+            Boolean explicit = MAX_SIZE > 0 ? _explicit.get(getKey(className, String.valueOf(primKeys[i]))) : null;
+            if (explicit == null) {
+                missing.add(i);
+            } else if (explicit) {
+                result.set(i);
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+
+        // resource permissions changed meanwhile are not remembered
+        PermissionDecisionCache.Stamp[] stamps = new PermissionDecisionCache.Stamp[missing.size()];
+        for (int i = 0; i < stamps.length; i++) {
+            stamps[i] = PermissionDecisionCache.getStamp(0, className, String.valueOf(primKeys[missing.get(i)]));
+        }
+        long ownerRoleId;
+        try {
+            ownerRoleId = RoleLocalServiceUtil.getRole(companyId, RoleConstants.OWNER).getRoleId();
+        } catch (PortalException ex) {
+            throw new SystemException(ex.getMessage(), ex);
+        }
+        Set<String> found = new HashSet<String>();
+        for (int from = 0; from < missing.size(); from += BATCH_SIZE) {
+            List<String> keys = new ArrayList<String>();
+            for (int position : missing.subList(from, Math.min(missing.size(), from + BATCH_SIZE))) {
+                keys.add(String.valueOf(primKeys[position]));
+            }
+            DynamicQuery query = ResourcePermissionLocalServiceUtil.dynamicQuery();
+            query.add(RestrictionsFactoryUtil.eq("companyId", companyId));
+            query.add(RestrictionsFactoryUtil.eq("name", className));
+            query.add(RestrictionsFactoryUtil.eq("scope", ResourceConstants.SCOPE_INDIVIDUAL));
+            query.add(RestrictionsFactoryUtil.in("primKey", keys));
+            query.add(RestrictionsFactoryUtil.ne("roleId", ownerRoleId));
+            for (Object row : ResourcePermissionLocalServiceUtil.dynamicQuery(query)) {
+                found.add(((ResourcePermission) row).getPrimKey());
+            }
+        }
+        for (int i = 0; i < missing.size(); i++) {
+            int position = missing.get(i);
+            String primKey = String.valueOf(primKeys[position]);
+            boolean explicit = found.contains(primKey);
+            if (explicit) {
+                result.set(position);
+            }
+            if (MAX_SIZE > 0 && stamps[i].equals(PermissionDecisionCache.getStamp(0, className, primKey))) {
+                _explicit.put(getKey(className, primKey), explicit, TTL);
+            }
+        }
+        return result;
+    }
+
+    public static void invalidate(String className, String primKey) {
+        _explicit.remove(getKey(className, primKey));
+    }
+
+    private static String getKey(String className, String primKey) {
+        return className + "_" + primKey;
+    }
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo;
+
+import com.liferay.portal.kernel.cache.Lifecycle;
+import com.liferay.portal.kernel.cache.ThreadLocalCacheManager;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.repository.LocalRepository;
+import com.liferay.portal.kernel.util.CentralizedThreadLocal;
+import com.liferay.portal.kernel.util.GetterUtil;
+import com.liferay.portal.kernel.util.PropsUtil;
+import com.liferay.portal.service.RepositoryLocalServiceUtil;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Synchronizes asset entries of listed file entries in the background.
+ *
+ * Listings queue the IDs of the file entries they resolve and a daemon
+ * worker calls checkAssetEntry for them in batches, each as a local call of
+ * the repository (entries were permission checked when listed). Any other
+ * materialization of a file entry synchronizes its asset entry at once. The
+ * queue is bounded and deduplicated by fileEntryId, entries over the
+ * capacity are dropped - they are queued again the next time they are
+ * listed.
+ *
+ * With fsrepo.asset.sync.changed.only only file entries modified since their
+ * last synchronization are queued.
+ *
+ * The worker is stopped by {@link #shutdown()} when the plugin is
+ * undeployed, tasks of a deleted repository are dropped by
+ * {@link #remove(long)}.
+ *
+ * @author Tomas Polesovsky
+ */
+public class FileSystemAssetSyncQueue {
+
+    private static Log _log = LogFactoryUtil.getLog(FileSystemAssetSyncQueue.class);
+    private static final int BATCH_SIZE = 100;
+    private static final int MAX_SYNCED = 100000;
+    private static final FileSystemAssetSyncQueue _instance = new FileSystemAssetSyncQueue(
+            GetterUtil.getInteger(PropsUtil.get(Constants.FSREPO_ASSET_SYNC_QUEUE_SIZE), 10000),
+            GetterUtil.getBoolean(PropsUtil.get(Constants.FSREPO_ASSET_SYNC_CHANGED_ONLY), false));
+    private final int capacity;
+    private final boolean changedOnly;
+    private final LinkedHashMap<Long, Task> queue = new LinkedHashMap<Long, Task>();
+    // fileEntryId -> modified time at the last synchronization
+    private final Map<Long, Long> synced = new LinkedHashMap<Long, Long>(1024, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            return size() > MAX_SYNCED;
+        }
+    };
+    private Thread worker;
+    private boolean shutdown;
+
+    public FileSystemAssetSyncQueue(int capacity, boolean changedOnly) {
+        this.capacity = capacity;
+        this.changedOnly = changedOnly;
+    }
+
+    public static FileSystemAssetSyncQueue getInstance() {
+        return _instance;
+    }
+
+    /**
+     * @param modified modification time of the file entry
+     */
+    public synchronized void add(long repositoryId, long userId, long fileEntryId, long modified) {
+        if (shutdown) {
+            return;
+        }
+        if (changedOnly) {
+            Long syncedModified = synced.get(fileEntryId);
+            if (syncedModified != null && syncedModified == modified) {
+                return;
+            }
+        }
+        if (!queue.containsKey(fileEntryId) && queue.size() >= capacity) {
+            if (_log.isDebugEnabled()) {
+                _log.debug("Asset sync queue is full, skipping file entry " + fileEntryId);
+            }
+            return;
+        }
+        queue.put(fileEntryId, new Task(repositoryId, userId, fileEntryId));
+        if (worker == null) {
+            start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Drops the queued file entries of the repository.
+     */
+    public synchronized void remove(long repositoryId) {
+        for (Iterator<Task> it = queue.values().iterator(); it.hasNext();) {
+            if (it.next().repositoryId == repositoryId) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    /**
+     * Drops the queue and stops the worker.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        queue.clear();
+        if (worker != null) {
+            worker.interrupt();
+            worker = null;
+        }
+    }
+
+    protected void sync(List<Task> batch) {
+        for (Task task : batch) {
+            try {
+                LocalRepository localRepository = RepositoryLocalServiceUtil.getLocalRepositoryImpl(task.repositoryId);
+                if (!(localRepository instanceof LocalFileSystemLocalRepository)) {
+                    continue;
+                }
+                long modified = ((LocalFileSystemLocalRepository) localRepository).checkAssetEntry(task.userId, task.fileEntryId);
+                synchronized (this) {
+                    synced.put(task.fileEntryId, modified);
+                }
+            } catch (Exception e) {
+                _log.error("Unable to update asset", e);
+            } finally {
+                // there is no request to reset the local call
+                CentralizedThreadLocal.clearShortLivedThreadLocals();
+            }
+        }
+    }
+
+    protected synchronized List<Task> poll() throws InterruptedException {
+        while (queue.isEmpty()) {
+            wait();
+        }
+        List<Task> batch = new ArrayList<Task>(Math.min(BATCH_SIZE, queue.size()));
+        for (Iterator<Task> it = queue.values().iterator(); it.hasNext() && batch.size() < BATCH_SIZE;) {
+            batch.add(it.next());
+            it.remove();
+        }
+        return batch;
+    }
+
+    private void start() {
+        worker = new Thread("FileSystemRepository asset sync") {
+
+            @Override
+            public void run() {
+                while (!isInterrupted()) {
+                    try {
+                        sync(poll());
+                    } catch (InterruptedException ex) {
+                        return;
+                    } catch (Exception ex) {
+                        _log.error("Asset sync failed", ex);
+                    } finally {
+                        // there is no request to reset the request caches
+                        ThreadLocalCacheManager.clearAll(Lifecycle.REQUEST);
+                    }
+                }
+            }
+        };
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    protected static class Task {
+
+        private final long repositoryId;
+        private final long userId;
+        private final long fileEntryId;
+
+        protected Task(long repositoryId, long userId, long fileEntryId) {
+            this.repositoryId = repositoryId;
+            this.userId = userId;
+            this.fileEntryId = fileEntryId;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo;
+
+import cz.topolik.fsrepo.listing.DirectoryListingCache;
+import cz.topolik.fsrepo.listing.ListingExecutor;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Stops the background work of all repositories when the plugin is
+ * undeployed, so no thread keeps running with the plugin's class loader.
+ *
+ * @author Tomas Polesovsky
+ */
+public class FileSystemRepositoryContextListener implements ServletContextListener {
+
+    public void contextInitialized(ServletContextEvent event) {
+    }
+
+    public void contextDestroyed(ServletContextEvent event) {
+        DirectoryListingCache.shutdownAll();
+        ListingExecutor.shutdownAll();
+        FileSystemAssetSyncQueue.getInstance().shutdown();
+    }
+}
@@ -33,6 +33,16 @@ public class LocalFileSystemLocalRepository implements LocalRepository {
         return localCall.get() != null ? localCall.get() : false;
     }
 
+    /**
+     * Called by the {@link FileSystemAssetSyncQueue} worker.
+     *
+     * @return modification time of the synchronized file entry
+     */
+    public long checkAssetEntry(long userId, long fileEntryId) throws PortalException, SystemException {
+        setLocalCall();
+        return repository.checkAssetEntry(userId, fileEntryId);
+    }
+
     public void deleteFileEntry(long l) throws PortalException, SystemException {
         setLocalCall();
         repository.deleteFileEntry(l);
@@ -70,6 +80,11 @@ public class LocalFileSystemLocalRepository implements LocalRepository {
         return repository.getFileEntry(l);
     }
 
+    public List<FileEntry> getFileEntries(long[] fileEntryIds) throws PortalException, SystemException {
+        setLocalCall();
+        return repository.getFileEntries(fileEntryIds);
+    }
+
     public FileEntry getFileEntry(long l, String s) throws PortalException, SystemException {
         setLocalCall();
         return repository.getFileEntry(l, s);
@@ -13,9 +13,14 @@
  */
 package cz.topolik.fsrepo;
 
+import com.liferay.portal.kernel.dao.orm.DynamicQuery;
+import com.liferay.portal.kernel.dao.orm.RestrictionsFactoryUtil;
 import com.liferay.portal.kernel.exception.PortalException;
 import com.liferay.portal.kernel.exception.SystemException;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
 import com.liferay.portal.model.ResourceConstants;
+import com.liferay.portal.model.ResourcePermission;
 import com.liferay.portal.model.RoleConstants;
 import com.liferay.portal.model.User;
 import com.liferay.portal.security.auth.CompanyThreadLocal;
@@ -24,6 +29,7 @@ import com.liferay.portal.security.permission.ActionKeys;
 import com.liferay.portal.security.permission.PermissionChecker;
 import com.liferay.portal.security.permission.PermissionCheckerFactoryUtil;
 import com.liferay.portal.security.permission.PermissionThreadLocal;
+import com.liferay.portal.service.ResourceActionLocalServiceUtil;
 import com.liferay.portal.service.ResourcePermissionLocalServiceUtil;
 import com.liferay.portal.service.RoleLocalServiceUtil;
 import com.liferay.portal.service.UserLocalServiceUtil;
@@ -32,6 +38,13 @@ import com.liferay.portlet.documentlibrary.model.DLFileEntry;
 import com.liferay.portlet.documentlibrary.model.DLFolder;
 import com.liferay.portlet.expando.model.ExpandoColumn;
 import cz.topolik.fsrepo.model.FileSystemModel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  *
@@ -39,16 +52,23 @@ import cz.topolik.fsrepo.model.FileSystemModel;
  */
 public class LocalFileSystemPermissionsUtil {
 
+    private static Log _log = LogFactoryUtil.getLog(LocalFileSystemPermissionsUtil.class);
+    /**
+     * Max number of values in one IN query
+     */
+    private static final int BATCH_SIZE = 500;
+    private static final ConcurrentMap<Long, User> _defaultUsers = new ConcurrentHashMap<Long, User>();
+
     public static PermissionChecker getPermissionChecker() {
         PermissionChecker permissionChecker = PermissionThreadLocal.getPermissionChecker();
         if(permissionChecker == null){
             try {
                 // initialize to guest
                 Long companyId = CompanyThreadLocal.getCompanyId();
-                if(companyId == null){
+                if(companyId == null || companyId == 0){
                     companyId = PortalUtil.getDefaultCompanyId();
                 }
-                User defaultUser = UserLocalServiceUtil.getDefaultUser(companyId);
+                User defaultUser = getDefaultUser(companyId);
                 permissionChecker = PermissionCheckerFactoryUtil.create(defaultUser, true);
                 PermissionThreadLocal.setPermissionChecker(permissionChecker);
             } catch (Exception e){
@@ -58,6 +78,19 @@ public class LocalFileSystemPermissionsUtil {
         return permissionChecker;
     }
 
+    /**
+     * The guest checker is created for threads without one, e.g. every
+     * WebDAV request, so the default user is looked up once per company.
+     */
+    protected static User getDefaultUser(long companyId) throws PortalException, SystemException {
+        User defaultUser = _defaultUsers.get(companyId);
+        if (defaultUser == null) {
+            defaultUser = UserLocalServiceUtil.getDefaultUser(companyId);
+            _defaultUsers.put(companyId, defaultUser);
+        }
+        return defaultUser;
+    }
+
     public static void checkFolder(long groupId, long folderId, String actionId) throws PrincipalException {
         if (!containsFolder(groupId, folderId, actionId)) {
             throw new PrincipalException();
@@ -71,17 +104,223 @@ public class LocalFileSystemPermissionsUtil {
     }
 
     public static boolean containsFolder(long groupId, long folderId, String actionId) {
-        if(LocalFileSystemLocalRepository.isLocalCall()){
-            return true;
-        }
-        return getPermissionChecker().hasPermission(groupId, DLFolder.class.getName(), folderId, actionId);
+        return contains(groupId, DLFolder.class.getName(), folderId, actionId);
     }
 
     public static boolean containsFileEntry(long groupId, long fileEntryId, String actionId) {
+        return contains(groupId, DLFileEntry.class.getName(), fileEntryId, actionId);
+    }
+
+    /**
+     * Decisions are cached across requests, see
+     * {@link PermissionDecisionCache}.
+     */
+    public static boolean contains(long groupId, String className, long primKey, String actionId) {
         if(LocalFileSystemLocalRepository.isLocalCall()){
             return true;
         }
-        return getPermissionChecker().hasPermission(groupId, DLFileEntry.class.getName(), fileEntryId, actionId);
+        PermissionChecker permissionChecker = getPermissionChecker();
+        String userKey = getUserKey(permissionChecker, groupId);
+        if (userKey == null) {
+            return permissionChecker.hasPermission(groupId, className, primKey, actionId);
+        }
+        Boolean cached = PermissionDecisionCache.get(groupId, userKey, className, primKey, actionId);
+        if (cached != null) {
+            return cached;
+        }
+        PermissionDecisionCache.Stamp stamp = PermissionDecisionCache.getStamp(groupId, className, String.valueOf(primKey));
+        boolean allowed = permissionChecker.hasPermission(groupId, className, primKey, actionId);
+        PermissionDecisionCache.put(groupId, userKey, className, primKey, actionId, allowed, stamp);
+        return allowed;
+    }
+
+    /**
+     * @return bit set on the positions of file entries the user has the
+     * permission to
+     */
+    public static BitSet containsFileEntries(long groupId, long[] fileEntryIds, String actionId) {
+        return contains(groupId, DLFileEntry.class.getName(), fileEntryIds, actionId);
+    }
+
+    /**
+     * @return bit set on the positions of folders the user has the
+     * permission to
+     */
+    public static BitSet containsFolders(long groupId, long[] folderIds, String actionId) {
+        return contains(groupId, DLFolder.class.getName(), folderIds, actionId);
+    }
+
+    /**
+     * Set based permission check of many resources of one class. Individual
+     * resource permissions of the user's roles (owner role for the resources
+     * the user owns) are loaded in batched IN queries and only serve as a
+     * pre-filter: resources without any grant are left out, the rest is
+     * decided by {@link PermissionChecker#hasPermission}. Admins and roles
+     * with the action granted on the company or the group level skip the
+     * pre-filter.
+     *
+     * @return bit set on the positions of the primary keys the user has the
+     * permission to
+     */
+    public static BitSet contains(long groupId, String className, long[] primKeys, String actionId) {
+        BitSet result = new BitSet(primKeys.length);
+        if (primKeys.length == 0) {
+            return result;
+        }
+        if (LocalFileSystemLocalRepository.isLocalCall()) {
+            result.set(0, primKeys.length);
+            return result;
+        }
+        PermissionChecker permissionChecker = getPermissionChecker();
+        String userKey = getUserKey(permissionChecker, groupId);
+        if (userKey == null) {
+            return contains(permissionChecker, groupId, className, primKeys, actionId);
+        }
+
+        List<Integer> missing = new ArrayList<Integer>();
+        for (int i = 0; i < primKeys.length; i++) {
+            Boolean cached = PermissionDecisionCache.get(groupId, userKey, className, primKeys[i], actionId);
+            if (cached == null) {
+                missing.add(i);
+            } else if (cached) {
+                result.set(i);
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+        long[] missingKeys = new long[missing.size()];
+        for (int i = 0; i < missingKeys.length; i++) {
+            missingKeys[i] = primKeys[missing.get(i)];
+        }
+        PermissionDecisionCache.Stamp[] stamps = new PermissionDecisionCache.Stamp[missingKeys.length];
+        for (int i = 0; i < missingKeys.length; i++) {
+            stamps[i] = PermissionDecisionCache.getStamp(groupId, className, String.valueOf(missingKeys[i]));
+        }
+        BitSet allowed = contains(permissionChecker, groupId, className, missingKeys, actionId);
+        for (int i = 0; i < missingKeys.length; i++) {
+            if (allowed.get(i)) {
+                result.set(missing.get(i));
+            }
+            PermissionDecisionCache.put(groupId, userKey, className, missingKeys[i], actionId, allowed.get(i), stamps[i]);
+        }
+        return result;
+    }
+
+    private static BitSet contains(PermissionChecker permissionChecker, long groupId, String className, long[] primKeys, String actionId) {
+        BitSet candidates;
+        try {
+            candidates = getCandidates(permissionChecker, groupId, className, primKeys, actionId);
+        } catch (Exception e) {
+            _log.error("Batch permission pre-filter failed, checking all " + primKeys.length + " resources one by one", e);
+            candidates = new BitSet(primKeys.length);
+            candidates.set(0, primKeys.length);
+        }
+        BitSet result = new BitSet(primKeys.length);
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            if (permissionChecker.hasPermission(groupId, className, primKeys[i], actionId)) {
+                result.set(i);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return bit set on the positions of the resources the user may have the
+     * permission to
+     */
+    private static BitSet getCandidates(PermissionChecker permissionChecker, long groupId, String className, long[] primKeys, String actionId) throws PortalException, SystemException {
+        BitSet result = new BitSet(primKeys.length);
+        long companyId = permissionChecker.getCompanyId();
+        if (permissionChecker.isOmniadmin() || permissionChecker.isCompanyAdmin(companyId) || permissionChecker.isGroupAdmin(groupId)) {
+            result.set(0, primKeys.length);
+            return result;
+        }
+        long[] roleIds = getRoleIds(permissionChecker, companyId, groupId);
+        if (ResourcePermissionLocalServiceUtil.hasResourcePermission(companyId, className, ResourceConstants.SCOPE_COMPANY, String.valueOf(companyId), roleIds, actionId)
+                || ResourcePermissionLocalServiceUtil.hasResourcePermission(companyId, className, ResourceConstants.SCOPE_GROUP, String.valueOf(groupId), roleIds, actionId)
+                || ResourcePermissionLocalServiceUtil.hasResourcePermission(companyId, className, ResourceConstants.SCOPE_GROUP_TEMPLATE, "0", roleIds, actionId)) {
+            result.set(0, primKeys.length);
+            return result;
+        }
+
+        long actionBit = ResourceActionLocalServiceUtil.getResourceAction(className, actionId).getBitwiseValue();
+        long ownerRoleId = permissionChecker.getOwnerRoleId();
+        List<Long> queryRoleIds = new ArrayList<Long>(roleIds.length + 1);
+        for (long roleId : roleIds) {
+            queryRoleIds.add(roleId);
+        }
+        queryRoleIds.add(ownerRoleId);
+
+        Map<String, List<Integer>> positions = new HashMap<String, List<Integer>>();
+        for (int i = 0; i < primKeys.length; i++) {
+            String primKey = String.valueOf(primKeys[i]);
+            List<Integer> list = positions.get(primKey);
+            if (list == null) {
+                list = new ArrayList<Integer>(1);
+                positions.put(primKey, list);
+            }
+            list.add(i);
+        }
+        List<String> keys = new ArrayList<String>(positions.keySet());
+        for (int from = 0; from < keys.size(); from += BATCH_SIZE) {
+            DynamicQuery query = ResourcePermissionLocalServiceUtil.dynamicQuery();
+            query.add(RestrictionsFactoryUtil.eq("companyId", companyId));
+            query.add(RestrictionsFactoryUtil.eq("name", className));
+            query.add(RestrictionsFactoryUtil.eq("scope", ResourceConstants.SCOPE_INDIVIDUAL));
+            query.add(RestrictionsFactoryUtil.in("primKey", keys.subList(from, Math.min(keys.size(), from + BATCH_SIZE))));
+            query.add(RestrictionsFactoryUtil.in("roleId", queryRoleIds));
+            for (Object row : ResourcePermissionLocalServiceUtil.dynamicQuery(query)) {
+                ResourcePermission resourcePermission = (ResourcePermission) row;
+                if ((resourcePermission.getActionIds() & actionBit) != actionBit) {
+                    continue;
+                }
+                if (resourcePermission.getRoleId() == ownerRoleId && resourcePermission.getOwnerId() != permissionChecker.getUserId()) {
+                    continue;
+                }
+                for (int position : positions.get(resourcePermission.getPrimKey())) {
+                    result.set(position);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return key of the user's decisions or null when they are not cached
+     */
+    private static String getUserKey(PermissionChecker permissionChecker, long groupId) {
+        if (!PermissionDecisionCache.isEnabled()) {
+            return null;
+        }
+        try {
+            long[] roleIds = getRoleIds(permissionChecker, permissionChecker.getCompanyId(), groupId);
+            return PermissionDecisionCache.getUserKey(groupId, permissionChecker.getUserId(), roleIds);
+        } catch (Exception e) {
+            _log.warn("Unable to get roles of user " + permissionChecker.getUserId() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Roles of the user in the group, guest role included when the checker
+     * checks guest permissions as well.
+     */
+    private static long[] getRoleIds(PermissionChecker permissionChecker, long companyId, long groupId) throws PortalException, SystemException {
+        long[] roleIds = permissionChecker.getRoleIds(permissionChecker.getUserId(), groupId);
+        if (!permissionChecker.isSignedIn() || !permissionChecker.isCheckGuest()) {
+            return roleIds;
+        }
+        long guestRoleId = RoleLocalServiceUtil.getRole(companyId, RoleConstants.GUEST).getRoleId();
+        for (long roleId : roleIds) {
+            if (roleId == guestRoleId) {
+                return roleIds;
+            }
+        }
+        long[] result = new long[roleIds.length + 1];
+        System.arraycopy(roleIds, 0, result, 0, roleIds.length);
+        result[roleIds.length] = guestRoleId;
+        return result;
     }
 
     public static boolean contains(FileSystemModel model, String actionId){
@@ -13,18 +13,35 @@
  */
 package cz.topolik.fsrepo;
 
-import com.liferay.portal.kernel.cache.Lifecycle;
-import com.liferay.portal.kernel.cache.ThreadLocalCache;
-import com.liferay.portal.kernel.cache.ThreadLocalCacheManager;
 import com.liferay.portal.kernel.dao.orm.QueryUtil;
 import com.liferay.portal.kernel.repository.LocalRepository;
 import com.liferay.portal.kernel.util.*;
 import com.liferay.portal.security.auth.PrincipalException;
-import com.liferay.portlet.expando.model.*;
+import cz.topolik.fsrepo.listing.BoundedSelection;
+import cz.topolik.fsrepo.listing.DirectoryListing;
+import cz.topolik.fsrepo.listing.DirectoryListingCache;
+import cz.topolik.fsrepo.listing.FileAttributes;
+import cz.topolik.fsrepo.listing.ListedFile;
+import cz.topolik.fsrepo.listing.ListingCursor;
+import cz.topolik.fsrepo.listing.ListingExecutor;
+import cz.topolik.fsrepo.listing.ListingPage;
+import cz.topolik.fsrepo.listing.MimeTypeFilter;
+import cz.topolik.fsrepo.listing.SortedDirectoryViews;
+import cz.topolik.fsrepo.listing.TypedFile;
+import cz.topolik.fsrepo.mapper.FileSystemFolderParents;
+import cz.topolik.fsrepo.mapper.FileSystemPathDictionary;
+import cz.topolik.fsrepo.mapper.FileSystemPathMappingUtil;
+import cz.topolik.fsrepo.mapper.FileSystemRepositoryEntryIndex;
+import cz.topolik.fsrepo.mapper.FileSystemRegistrationGate;
+import cz.topolik.fsrepo.mapper.FileSystemRepositoryIdAllocator;
 import cz.topolik.fsrepo.mapper.FileSystemRepositoryMapper;
 import cz.topolik.fsrepo.mapper.FileSystemRepositoryIndexer;
 import cz.topolik.fsrepo.mapper.FileSystemRepositoryEnvironment;
 import cz.topolik.fsrepo.model.FileSystemFolder;
+import cz.topolik.fsrepo.model.FileSystemFolderTree;
+import cz.topolik.fsrepo.model.FileSystemProjection;
+import cz.topolik.fsrepo.model.FileSystemIdentityMap;
+import cz.topolik.fsrepo.model.FileSystemModel;
 import cz.topolik.fsrepo.model.FileSystemFileEntry;
 import cz.topolik.fsrepo.model.FileSystemFileVersion;
 import com.liferay.portal.NoSuchRepositoryEntryException;
@@ -45,11 +62,15 @@ import com.liferay.portal.kernel.search.Query;
 import com.liferay.portal.kernel.search.SearchContext;
 import com.liferay.portal.kernel.search.SearchEngineUtil;
 import com.liferay.portal.kernel.search.SearchException;
+import com.liferay.portal.kernel.uuid.PortalUUIDUtil;
 import com.liferay.portal.model.Lock;
 import com.liferay.portal.model.RepositoryEntry;
 import com.liferay.portal.security.auth.PrincipalThreadLocal;
 import com.liferay.portal.security.permission.ActionKeys;
+import com.liferay.portal.security.permission.PermissionChecker;
 import com.liferay.portal.security.permission.PermissionThreadLocal;
+import com.liferay.portal.security.permission.ResourceActionsUtil;
+import com.liferay.portal.service.RepositoryEntryLocalServiceUtil;
 import com.liferay.portal.service.ResourceLocalServiceUtil;
 import com.liferay.portal.service.ServiceContext;
 import com.liferay.portal.service.UserLocalServiceUtil;
@@ -61,9 +82,9 @@ import com.liferay.portlet.documentlibrary.model.DLFileEntry;
 import com.liferay.portlet.documentlibrary.model.DLFolder;
 import com.liferay.portlet.documentlibrary.service.DLAppLocalServiceUtil;
 import com.liferay.portlet.documentlibrary.service.persistence.DLFolderUtil;
-import com.liferay.portlet.expando.service.ExpandoColumnLocalServiceUtil;
-import com.liferay.portlet.expando.service.ExpandoTableLocalServiceUtil;
-import com.liferay.portlet.expando.service.ExpandoValueLocalServiceUtil;
+import com.liferay.portlet.documentlibrary.util.comparator.RepositoryModelModifiedDateComparator;
+import com.liferay.portlet.documentlibrary.util.comparator.RepositoryModelNameComparator;
+import com.liferay.portlet.documentlibrary.util.comparator.RepositoryModelSizeComparator;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -71,8 +92,17 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import static cz.topolik.fsrepo.Constants.*;
 
 /**
@@ -82,9 +112,14 @@ import static cz.topolik.fsrepo.Constants.*;
 public class LocalFileSystemRepository extends BaseRepositoryImpl {
 
     private static Log _log = LogFactoryUtil.getLog(LocalFileSystemRepository.class);
+    /**
+     * Max number of values in one IN query
+     */
+    protected static final int BATCH_SIZE = 500;
+    private static final Map<Long, Long> _defaultUserIds = new ConcurrentHashMap<Long, Long>();
     private FileSystemRepositoryEnvironment environment;
 	private LocalFileSystemLocalRepository localRepository;
-    private ExpandoColumn expandoColumn;
+    private volatile String rootPath;
 
     public LocalFileSystemRepository(){
         localRepository = new LocalFileSystemLocalRepository(this);
@@ -105,15 +140,10 @@ public class LocalFileSystemRepository extends BaseRepositoryImpl {
             environment.setRepository(this);
             environment.setMapper(new FileSystemRepositoryMapper(environment));
             environment.setIndexer(new FileSystemRepositoryIndexer(environment));
-
-            expandoColumn = ExpandoColumnLocalServiceUtil.getDefaultTableColumn(getCompanyId(), RepositoryEntry.class.getName(), Constants.ABSOLUTE_PATH);
-            if (expandoColumn == null) {
-                ExpandoTable table = ExpandoTableLocalServiceUtil.fetchDefaultTable(getCompanyId(), RepositoryEntry.class.getName());
-                if (table == null) {
-                    table = ExpandoTableLocalServiceUtil.addDefaultTable(getCompanyId(), RepositoryEntry.class.getName());
-                }
-                expandoColumn = ExpandoColumnLocalServiceUtil.addColumn(table.getTableId(), Constants.ABSOLUTE_PATH, ExpandoColumnConstants.STRING);
-            }
+            environment.setDictionary(FileSystemPathDictionary.getDictionary(getRepositoryId()));
+            environment.setEntryIndex(FileSystemRepositoryEntryIndex.getIndex(getRepositoryId()));
+            environment.setFolderParents(FileSystemFolderParents.getParents(getRepositoryId()));
+            environment.setRegistrationGate(FileSystemRegistrationGate.getGate(getRepositoryId()));
 
 //
 //
@@ -127,12 +157,6 @@ public class LocalFileSystemRepository extends BaseRepositoryImpl {
         } catch (FileNotFoundException e) {
             _log.error(e);
             throw new SystemException(e);
-        } catch (PortalException e) {
-            _log.error(e);
-            throw e;
-        } catch (SystemException e) {
-            _log.error(e);
-            throw e;
         }
 
     }
@@ -143,32 +167,24 @@ public class LocalFileSystemRepository extends BaseRepositoryImpl {
 
     @Override
     public List<Object> getFoldersAndFileEntries(long folderId, int start, int end, OrderByComparator obc) throws SystemException {
+        return getFoldersAndFileEntries(folderId, (MimeTypeFilter) null, start, end, obc);
+    }
+
+    @Override
+    public List<Object> getFoldersAndFileEntries(long folderId, String[] mimeTypes, int start, int end, OrderByComparator obc) throws PortalException, SystemException {
+        return getFoldersAndFileEntries(folderId, MimeTypeFilter.create(mimeTypes), start, end, obc);
+    }
+
+    protected List<Object> getFoldersAndFileEntries(long folderId, MimeTypeFilter filter, int start, int end, OrderByComparator obc) throws SystemException {
         start = start == QueryUtil.ALL_POS ? 0 : start;
         end = end == QueryUtil.ALL_POS ? Integer.MAX_VALUE : end;
 
         List<Object> result = new ArrayList<Object>();
         try {
-            LocalFileSystemPermissionsUtil.checkFolder(getGroupId(), folderId, ActionKeys.VIEW);
-            File systemFolder = folderIdToFile(folderId);
+            checkFolder(folderId, ActionKeys.VIEW);
+            File systemFolder = folderIdToFile(folderId, false);
             if (systemFolder.canRead()) {
-                for (File file : loadFilesFromDisk(systemFolder, 0)) {
-                    if (file.canRead()) {
-                        if (file.isDirectory()) {
-                            Folder f = fileToFolder(file);
-                            if (f != null) {
-                                result.add(f);
-                            }
-                        } else {
-                            FileEntry f = fileToFileEntry(file);
-                            if (f != null) {
-                                result.add(f);
-                            }
-                        }
-                    }
-                    if (obc == null && result.size() > end) {
-                        return result.subList(start < 0 ? 0 : start, end > result.size() ? result.size() : end);
-                    }
-                }
+                result = listModels(systemFolder, DirectoryListing.ALL, true, filter, end, obc);
             }
 
         } catch (PortalException ex) {
@@ -183,45 +199,75 @@ public class LocalFileSystemRepository extends BaseRepositoryImpl {
         return result;
     }
 
-    @Override
-    public List<Object> getFoldersAndFileEntries(long folderId, String[] mimeTypes, int start, int end, OrderByComparator obc) throws PortalException, SystemException {
-        return getFoldersAndFileEntries(folderId, start, end, obc);
+    /**
+     * Cursor based variant for jobs walking big folders page by page, each
+     * page resumes right after the last entry of the previous one.
+     *
+     * @param cursor {@link ListingPage#getNextCursor()} of the previous page
+     * or null for the first page
+     * @param obc name, modified date or size comparator, by name when null
+     */
+    public ListingPage<Object> getFoldersAndFileEntries(long folderId, String cursor, int pageSize, OrderByComparator obc) throws PortalException, SystemException {
+        checkFolder(folderId, ActionKeys.VIEW);
+        return listPage(folderIdToFile(folderId, false), DirectoryListing.ALL, true, cursor, pageSize, obc, Object.class);
+    }
+
+    /**
+     * @see #getFoldersAndFileEntries(long, String, int, OrderByComparator)
+     */
+    public ListingPage<FileEntry> getFileEntries(long folderId, String cursor, int pageSize, OrderByComparator obc) throws PortalException, SystemException {
+        checkFolder(folderId, ActionKeys.VIEW);
+        return listPage(folderIdToFile(folderId, false), DirectoryListing.FILES, false, cursor, pageSize, obc, FileEntry.class);
+    }
+
+    /**
+     * @see #getFoldersAndFileEntries(long, String, int, OrderByComparator)
+     */
+    public ListingPage<Folder> getFolders(long parentFolderId, String cursor, int pageSize, OrderByComparator obc) throws PortalException, SystemException {
+        checkFolder(parentFolderId, ActionKeys.VIEW);
+        return listPage(folderIdToFile(parentFolderId, false), DirectoryListing.FOLDERS, false, cursor, pageSize, obc, Folder.class);
     }
 
     @Override
     public int getFoldersAndFileEntriesCount(long folderId) throws SystemException {
+        return getFoldersAndFileEntriesCount(folderId, (MimeTypeFilter) null);
+    }
+
+    @Override
+    public int getFoldersAndFileEntriesCount(long folderId, String[] mimeTypes) throws PortalException, SystemException {
+        return getFoldersAndFileEntriesCount(folderId, MimeTypeFilter.create(mimeTypes));
+    }
+
+    protected int getFoldersAndFileEntriesCount(long folderId, MimeTypeFilter filter) throws SystemException {
         try {
             File dir = folderIdToFile(folderId);
             if(dir == null){
                 return 0;
             }
-            return loadFilesFromDisk(dir, 0).size();
+            return countEntries(dir, DirectoryListing.ALL, true, filter);
         } catch (PortalException e) {
             throw new SystemException(e);
         }
     }
 
-    @Override
-    public int getFoldersAndFileEntriesCount(long folderId, String[] mimeTypes) throws PortalException, SystemException {
-        return getFoldersAndFileEntriesCount(folderId);
-    }
-
     public String[] getSupportedConfigurations() {
         return new String[]{"FILESYSTEM"};
     }
 
     public String[][] getSupportedParameters() {
-        return new String[][]{{ROOT_FOLDER, ADD_GUEST_PERMISSIONS, ADD_GROUP_PERMISSIONS}};
+        return new String[][]{{ROOT_FOLDER, ADD_GUEST_PERMISSIONS, ADD_GROUP_PERMISSIONS, LISTING_THREADS, INHERIT_PERMISSIONS}};
     }
 
     public FileEntry addFileEntry(long folderId, String sourceFileName, String mimeType, String title, String description, String changeLog, InputStream is, long size, ServiceContext serviceContext) throws PortalException, SystemException {
-        LocalFileSystemPermissionsUtil.checkFolder(getGroupId(), folderId, ActionKeys.VIEW);
-        LocalFileSystemPermissionsUtil.checkFolder(getGroupId(), folderId, ActionKeys.ADD_DOCUMENT);
-        File directory = folderIdToFile(folderId);
+        checkFolder(folderId, ActionKeys.VIEW);
+        checkFolder(folderId, ActionKeys.ADD_DOCUMENT);
+        File directory = folderIdToFile(folderId, false);
         if (directory.exists() && directory.canWrite()) {
             File file = new File(directory, sourceFileName);
+            long modified = directory.lastModified();
             try {
                 StreamUtil.transfer(is, new FileOutputStream(file), true);
+                updateSortedViews(directory, modified, file.getName(), file);
                 return fileToFileEntry(file);
             } catch (Exception ex) {
                 _log.error(ex);
@@ -233,12 +279,14 @@ public class LocalFileSystemRepository extends BaseRepositoryImpl {
     }
 
     public Folder addFolder(long parentFolderId, String title, String description, ServiceContext serviceContext) throws PortalException, SystemException {
-        LocalFileSystemPermissionsUtil.checkFolder(getGroupId(), parentFolderId, ActionKeys.VIEW);
-        LocalFileSystemPermissionsUtil.checkFolder(getGroupId(), parentFolderId, ActionKeys.ADD_SUBFOLDER);
-        File subDir = folderIdToFile(parentFolderId);
+        checkFolder(parentFolderId, ActionKeys.VIEW);
+        checkFolder(parentFolderId, ActionKeys.ADD_SUBFOLDER);
+        File subDir = folderIdToFile(parentFolderId, false);
         if (subDir.exists() && subDir.canWrite()) {
             File folder = new File(subDir, title);
+            long modified = subDir.lastModified();
             folder.mkdir();
+            updateSortedViews(subDir, modified, folder.getName(), folder);
             return fileToFolder(folder);
         } else {
             throw new SystemException("Parent directory " + subDir + " cannot be read!");
@@ -283,11 +331,11 @@ public class LocalFileSystemRepository extends BaseRepositoryImpl {
     }
 
     public FileEntry copyFileEntry(long groupId, long fileEntryId, long destFolderId, ServiceContext serviceContext) throws PortalException, SystemException {
-        LocalFileSystemPermissionsUtil.checkFileEntry(getGroupId(), fileEntryId, ActionKeys.VIEW);
-        LocalFileSystemPermissionsUtil.checkFolder(getGroupId(), destFolderId, ActionKeys.VIEW);
-        LocalFileSystemPermissionsUtil.checkFolder(getGroupId(), destFolderId, ActionKeys.ADD_DOCUMENT);
-        File srcFile = fileEntryIdToFile(fileEntryId);
-        File destDir = folderIdToFile(destFolderId);
+        checkFileEntry(fileEntryId, ActionKeys.VIEW);
+        checkFolder(destFolderId, ActionKeys.VIEW);
+        checkFolder(destFolderId, ActionKeys.ADD_DOCUMENT);
+        File srcFile = fileEntryIdToFile(fileEntryId, false);
+        File destDir = folderIdToFile(destFolderId, false);
         if (!srcFile.exists()) {
             throw new SystemException("Source file " + srcFile + " cannot be read!");
         }
@@ -296,8 +344,10 @@ public class LocalFileSystemRepository extends BaseRepositoryImpl {
         }
 
         File dstFile = new File(destDir, srcFile.getName());
+        long modified = destDir.lastModified();
         try {
             StreamUtil.transfer(new FileInputStream(srcFile), new FileOutputStream(dstFile), true);
+            updateSortedViews(destDir, modified, dstFile.getName(), dstFile);
             return fileToFileEntry(dstFile);
         } catch (Exception ex) {
             _log.error(ex);
@@ -306,51 +356,55 @@ public class LocalFileSystemRepository extends BaseRepositoryImpl {
     }
 
     public void deleteFileEntry(long fileEntryId) throws PortalException, SystemException {
-        LocalFileSystemPermissionsUtil.checkFileEntry(getGroupId(), fileEntryId, ActionKeys.VIEW);
-        LocalFileSystemPermissionsUtil.checkFileEntry(getGroupId(), fileEntryId, ActionKeys.DELETE);
-        File file = fileEntryIdToFile(fileEntryId);
+        checkFileEntry(fileEntryId, ActionKeys.VIEW);
+        checkFileEntry(fileEntryId, ActionKeys.DELETE);
+        File file = fileEntryIdToFile(fileEntryId, false);
         if (!file.exists() || !file.canWrite()) {
             throw new SystemException("File doesn't exist or cannot be modified " + file);
         }
 
+        long modified = file.getParentFile().lastModified();
         file.delete();
-        RepositoryEntryUtil.remove(fileEntryId);
+        updateSortedViews(file.getParentFile(), modified, file.getName(), null);
+        removeFromDictionary(fileEntryId);
+        removeRepositoryEntry(fileEntryId);
     }
 
     public void deleteFolder(long folderId) throws PortalException, SystemException {
-        LocalFileSystemPermissionsUtil.checkFolder(getGroupId(), folderId, ActionKeys.VIEW);
-        LocalFileSystemPermissionsUtil.checkFolder(getGroupId(), folderId, ActionKeys.DELETE);
-        File folder = folderIdToFile(folderId);
+        checkFolder(folderId, ActionKeys.VIEW);
+        checkFolder(folderId, ActionKeys.DELETE);
+        File folder = folderIdToFile(folderId, false);
         if (!folder.exists() || !folder.canWrite()) {
             throw new SystemException("Folder doesn't exist or cannot be modified " + folder);
         }
 
+        long modified = folder.getParentFile().lastModified();
         folder.delete();
-        RepositoryEntryUtil.remove(folderId);
+        updateSortedViews(folder.getParentFile(), modified, folder.getName(), null);
+        SortedDirectoryViews.getViews(getRepositoryId()).remove(folder);
+        environment.getFolderParents().remove(folderId);
+        removeFromDictionary(folderId);
+        removeRepositoryEntry(folderId);
     }
 
     public List<FileEntry> getFileEntries(long folderId, int start, int end, OrderByComparator obc) throws SystemException {
+        return getFileEntries(folderId, (MimeTypeFilter) null, start, end, obc);
+    }
+
+    protected List<FileEntry> getFileEntries(long folderId, MimeTypeFilter filter, int start, int end, OrderByComparator obc) throws SystemException {
         start = start == QueryUtil.ALL_POS ? 0 : start;
         end = end == QueryUtil.ALL_POS ? Integer.MAX_VALUE : end;
         try {
-            LocalFileSystemPermissionsUtil.checkFolder(getGroupId(), folderId, ActionKeys.VIEW);
+            checkFolder(folderId, ActionKeys.VIEW);
         } catch (PrincipalException ex) {
             throw new SystemException(ex);
         }
         List<FileEntry> result = new ArrayList<FileEntry>();
         try {
-            File systemFolder = folderIdToFile(folderId);
+            File systemFolder = folderIdToFile(folderId, false);
             if (systemFolder.canRead()) {
-                for (File file : loadFilesFromDisk(systemFolder, 2)) {
-                    if (!file.isDirectory()) {
-                        FileEntry f = fileToFileEntry(file);
-                        if (f != null) {
-                            result.add(f);
-                        }
-                    }
-                    if (obc == null && result.size() > end) {
-                        return result.subList(start < 0 ? 0 : start, end > result.size() ? result.size() : end);
-                    }
+                for (Object model : listModels(systemFolder, DirectoryListing.FILES, false, filter, end, obc)) {
+                    result.add((FileEntry) model);
                 }
             }
 
@@ -372,16 +426,20 @@ public class LocalFileSystemRepository extends BaseRepositoryImpl {
     }
 
     public List<FileEntry> getFileEntries(long folderId, String[] mimeTypes, int start, int end, OrderByComparator obc) throws PortalException, SystemException {
-        return getFileEntries(folderId, start, end, obc);
+        return getFileEntries(folderId, MimeTypeFilter.create(mimeTypes), start, end, obc);
     }
 
     public int getFileEntriesCount(long folderId) throws SystemException {
+        return getFileEntriesCount(folderId, (MimeTypeFilter) null);
+    }
+
+    protected int getFileEntriesCount(long folderId, MimeTypeFilter filter) throws SystemException {
         try {
             File dir = folderIdToFile(folderId);
             if(dir == null){
                 return 0;
             }
-            return loadFilesFromDisk(dir, 2).size();
+            return countEntries(dir, DirectoryListing.FILES, false, filter);
         } catch (PortalException e) {
             throw new SystemException(e);
         }
@@ -392,21 +450,96 @@ public class LocalFileSystemRepository extends BaseRepositoryImpl {
     }
 
     public int getFileEntriesCount(long folderId, String[] mimeTypes) throws PortalException, SystemException {
-        return getFileEntriesCount(folderId);
+        return getFileEntriesCount(folderId, MimeTypeFilter.create(mimeTypes));
     }
 
     public FileEntry getFileEntry(long fileEntryId) throws PortalException, SystemException {
-        LocalFileSystemPermissionsUtil.checkFileEntry(getGroupId(), fileEntryId, ActionKeys.VIEW);
-        return fileToFileEntry(fileEntryIdToFile(fileEntryId));
+        checkFileEntry(fileEntryId, ActionKeys.VIEW);
+        return fileToFileEntry(fileEntryIdToFile(fileEntryId, false), null, false);
+    }
+
+    /**
+     * Bulk variant of {@link #getFileEntry(long)} for asset driven pages,
+     * entries, paths and permissions are resolved in a constant number of
+     * queries.
+     *
+     * @return file entries in the order of the IDs, entries that don't exist
+     * or the user cannot view are left out
+     */
+    public List<FileEntry> getFileEntries(long[] fileEntryIds) throws PortalException, SystemException {
+        List<Long> ids = new ArrayList<Long>(fileEntryIds.length);
+        for (long fileEntryId : fileEntryIds) {
+            ids.add(fileEntryId);
+        }
+        Map<Long, RepositoryEntry> entries = fetchRepositoryEntries(ids);
+
+        // IDs of other repositories must not resolve to paths of this one
+        long[] ownIds = new long[fileEntryIds.length];
+        int count = 0;
+        for (long fileEntryId : fileEntryIds) {
+            RepositoryEntry entry = entries.get(fileEntryId);
+            if (entry != null && entry.getRepositoryId() == getRepositoryId()) {
+                ownIds[count++] = fileEntryId;
+            }
+        }
+        ownIds = Arrays.copyOf(ownIds, count);
+
+        BitSet viewable = contains(DLFileEntry.class.getName(), ownIds, ActionKeys.VIEW);
+
+        FileSystemRepositoryEntryIndex entryIndex = environment.getEntryIndex();
+        FileSystemPathDictionary dictionary = environment.getDictionary();
+        Map<Long, Integer> nodeIds = new HashMap<Long, Integer>();
+        List<Long> unknownIds = new ArrayList<Long>();
+        for (int i = viewable.nextSetBit(0); i >= 0; i = viewable.nextSetBit(i + 1)) {
+            int nodeId = entryIndex.getNodeId(ownIds[i]);
+            if (nodeId == FileSystemPathDictionary.NOT_FOUND) {
+                unknownIds.add(ownIds[i]);
+            } else {
+                nodeIds.put(ownIds[i], nodeId);
+            }
+        }
+        for (Map.Entry<Long, String> mapping : FileSystemPathMappingUtil.fetchPaths(getRepositoryId(), unknownIds).entrySet()) {
+            int nodeId = dictionary.getNodeId(mapping.getValue());
+            entryIndex.put(nodeId, mapping.getKey(), entries.get(mapping.getKey()).getUuid());
+            nodeIds.put(mapping.getKey(), nodeId);
+        }
+
+        List<FileEntry> result = new ArrayList<FileEntry>(fileEntryIds.length);
+        File rootFolder;
+        try {
+            rootFolder = getRootFolder();
+        } catch (FileNotFoundException ex) {
+            throw new SystemException(ex.getMessage(), ex);
+        }
+        for (long fileEntryId : fileEntryIds) {
+            Integer nodeId = nodeIds.get(fileEntryId);
+            if (nodeId == null) {
+                continue;
+            }
+            File file = dictionary.getFile(rootFolder, nodeId);
+            // gone, or the ID of a folder
+            if (file == null || !file.isFile()) {
+                continue;
+            }
+            Object cached = FileSystemIdentityMap.get(getRepositoryId(), FileEntry.class, fileEntryId);
+            if (cached instanceof FileEntry) {
+                result.add((FileEntry) cached);
+                continue;
+            }
+            FileEntry fileEntry = createFileEntry(file, entries.get(fileEntryId), null);
+            checkAssetEntry(fileEntry, false);
+            FileSystemIdentityMap.put(getRepositoryId(), FileEntry.class, fileEntryId, fileEntry);
+            result.add(fileEntry);
+        }
+        return result;
     }
 
     public FileEntry getFileEntry(long folderId, String title) throws PortalException, SystemException {
-        LocalFileSystemPermissionsUtil.checkFolder(getGroupId(), folderId, ActionKeys.VIEW);
-        FileEntry entry = fileToFileEntry(new File(folderIdToFile(folderId), title));
+        checkFolder(folderId, ActionKeys.VIEW);
+        FileEntry entry = fileToFileEntry(new File(folderIdToFile(folderId, false), title));
         if (entry == null) {
             throw new PrincipalException();
         }
-        LocalFileSystemPermissionsUtil.checkFileEntry(getGroupId(), entry.getFileEntryId(), ActionKeys.VIEW);
         return entry;
     }
 
@@ -415,8 +548,6 @@ public class LocalFileSystemRepository extends BaseRepositoryImpl {
             RepositoryEntry repositoryEntry = RepositoryEntryUtil.findByUUID_G(
                     uuid, getGroupId());
 
-            LocalFileSystemPermissionsUtil.checkFileEntry(getGroupId(), repositoryEntry.getRepositoryEntryId(), ActionKeys.VIEW);
-
             return getFileEntry(repositoryEntry.getRepositoryEntryId());
         } catch (NoSuchRepositoryEntryException nsree) {
             throw new NoSuchFileEntryException(nsree);
@@ -429,35 +560,34 @@ public class LocalFileSystemRepository extends BaseRepositoryImpl {
     }
 
     public FileVersion getFileVersion(long fileVersionId) throws PortalException, SystemException {
-        LocalFileSystemPermissionsUtil.checkFileEntry(getGroupId(), fileVersionId, ActionKeys.VIEW);
-        return fileToFileVersion(fileVersionIdToFile(fileVersionId));
+        checkFileEntry(fileVersionId, ActionKeys.VIEW);
+        return fileToFileVersion(fileVersionIdToFile(fileVersionId, false), null, false);
     }
 
     public Folder getFolder(long folderId) throws PortalException, SystemException {
-        LocalFileSystemPermissionsUtil.checkFolder(getGroupId(), folderId, ActionKeys.VIEW);
-        return fileToFolder(folderIdToFile(folderId));
+        checkFolder(folderId, ActionKeys.VIEW);
+        return fileToFolder(folderIdToFile(folderId, false), false);
     }
 
     public Folder getFolder(long parentFolderId, String title) throws PortalException, SystemException {
-        LocalFileSystemPermissionsUtil.checkFolder(getGroupId(), parentFolderId, ActionKeys.VIEW);
-        Folder f = fileToFolder(new File(folderIdToFile(parentFolderId), title));
-        LocalFileSystemPermissionsUtil.checkFolder(getGroupId(), f.getFolderId(), ActionKeys.VIEW);
+        checkFolder(parentFolderId, ActionKeys.VIEW);
+        Folder f = fileToFolder(new File(folderIdToFile(parentFolderId, false), title));
+        if (f == null) {
+            throw new PrincipalException();
+        }
         return f;
     }
 
     public List<Folder> getFolders(long parentFolderId, boolean includeMountFolders, int start, int end, OrderByComparator obc) throws PortalException, SystemException {
         start = start == QueryUtil.ALL_POS ? 0 : start;
         end = end == QueryUtil.ALL_POS ? Integer.MAX_VALUE : end;
-        LocalFileSystemPermissionsUtil.checkFolder(getGroupId(), parentFolderId, ActionKeys.VIEW);
-        String fileSystemDirectory = folderIdToFile(parentFolderId).getAbsolutePath();
+        checkFolder(parentFolderId, ActionKeys.VIEW);
+        String fileSystemDirectory = folderIdToFile(parentFolderId, false).getAbsolutePath();
         File dir = new File(fileSystemDirectory);
         if (dir.canRead()) {
             List<Folder> result = new ArrayList<Folder>();
-            for (File subDir : loadFilesFromDisk(dir, 1)) {
-                Folder f = fileToFolder(subDir);
-                if (f != null) {
-                    result.add(f);
-                }
+            for (Object model : listModels(dir, DirectoryListing.FOLDERS, false, null, end, obc)) {
+                result.add((Folder) model);
             }
             if (obc != null) {
                 Collections.sort(result, obc);
@@ -470,25 +600,49 @@ public class LocalFileSystemRepository extends BaseRepositoryImpl {
     }
 
     public int getFoldersCount(long parentFolderId, boolean includeMountfolders) throws PortalException, SystemException {
-        LocalFileSystemPermissionsUtil.checkFolder(getGroupId(), parentFolderId, ActionKeys.VIEW);
+        checkFolder(parentFolderId, ActionKeys.VIEW);
         try {
-            File dir = folderIdToFile(parentFolderId);
-            return loadFilesFromDisk(dir, 1).size();
+            File dir = folderIdToFile(parentFolderId, false);
+            return countEntries(dir, DirectoryListing.FOLDERS, false, null);
         } catch (PortalException e) {
             throw new SystemException(e);
         }
     }
 
     public int getFoldersFileEntriesCount(List<Long> folderIds, int status) throws SystemException {
+        long[] ids = new long[folderIds.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = folderIds.get(i);
+        }
+        BitSet viewable = contains(DLFolder.class.getName(), ids, ActionKeys.VIEW);
         int result = 0;
-        for (Long folderId : folderIds) {
-            if (LocalFileSystemPermissionsUtil.containsFolder(getGroupId(), folderId, ActionKeys.VIEW)) {
-                result += getFileEntriesCount(folderId);
-            }
+        for (int i = viewable.nextSetBit(0); i >= 0; i = viewable.nextSetBit(i + 1)) {
+            result += getFileEntriesCount(ids[i]);
         }
         return result;
     }
 
+    /**
+     * Projection listing for callers that need IDs, names, types and sizes
+     * only, see {@link FileSystemProjection}. Permissions are checked in
+     * batches and no models are built.
+     *
+     * @param type {@link DirectoryListing#ALL}, {@link DirectoryListing#FOLDERS}
+     * or {@link DirectoryListing#FILES}
+     * @param mimeTypes MIME types of the file entries or null for all
+     */
+    public List<FileSystemProjection> getProjections(long folderId, int type, String[] mimeTypes, int start, int end) throws PortalException, SystemException {
+        start = start == QueryUtil.ALL_POS ? 0 : start;
+        end = end == QueryUtil.ALL_POS ? Integer.MAX_VALUE : end;
+        checkFolder(folderId, ActionKeys.VIEW);
+        File dir = folderIdToFile(folderId, false);
+        if (dir == null) {
+            return new ArrayList<FileSystemProjection>();
+        }
+        List<FileSystemProjection> result = listProjections(dir, type, false, MimeTypeFilter.create(mimeTypes), end);
+        return result.subList(Math.min(Math.max(start, 0), result.size()), result.size());
+    }
+
     public List<Folder> getMountFolders(long parentFolderId, int start, int end, OrderByComparator obc) throws SystemException {
         return new ArrayList<Folder>();
     }
@@ -498,29 +652,82 @@ public class LocalFileSystemRepository extends BaseRepositoryImpl {
     }
 
     public void getSubfolderIds(List<Long> folderIds, long folderId) throws SystemException {
-        //TODO: where is it used?
-        throw new UnsupportedOperationException("Not supported yet.");
+        folderIds.addAll(getSubfolderIds(folderId, true));
     }
 
     public List<Long> getSubfolderIds(long folderId, boolean recurse) throws SystemException {
         try {
-            LocalFileSystemPermissionsUtil.checkFolder(getGroupId(), folderId, ActionKeys.VIEW);
-            List<Long> result = new ArrayList();
-            List<Folder> folders = getFolders(folderId, false, 0, Integer.MAX_VALUE, null);
-            for (Folder folder : folders) {
-                if (LocalFileSystemPermissionsUtil.containsFolder(getGroupId(), folder.getFolderId(), ActionKeys.VIEW)) {
-                    result.add(folder.getFolderId());
-                    if (recurse) {
-                        result.addAll(getSubfolderIds(folder.getFolderId(), recurse));
-                    }
-                }
-            }
+            List<Long> result = new ArrayList<Long>();
+            getFolderTree(folderId, recurse ? QueryUtil.ALL_POS : 1, QueryUtil.ALL_POS).collectFolderIds(result);
             return result;
         } catch (PortalException ex) {
             throw new SystemException(ex);
         }
     }
 
+    /**
+     * Walks the folder tree level by level, every directory is listed once
+     * and the entries of each level are resolved in batches. Folders the
+     * user cannot view are left out together with their subfolders.
+     *
+     * @param maxDepth levels below the folder, {@link QueryUtil#ALL_POS} for
+     * the whole tree
+     * @param maxFolders max number of folders in the tree (the folder itself
+     * not counted), {@link QueryUtil#ALL_POS} for no limit
+     */
+    public FileSystemFolderTree getFolderTree(long folderId, int maxDepth, int maxFolders) throws PortalException, SystemException {
+        checkFolder(folderId, ActionKeys.VIEW);
+        File dir = folderIdToFile(folderId, false);
+        FileSystemFolderTree root = new FileSystemFolderTree(folderId, dir.getName());
+        int remaining = maxFolders == QueryUtil.ALL_POS ? Integer.MAX_VALUE : maxFolders;
+
+        List<FileSystemFolderTree> level = new ArrayList<FileSystemFolderTree>();
+        List<File> levelDirs = new ArrayList<File>();
+        level.add(root);
+        levelDirs.add(dir);
+        for (int depth = 0; !level.isEmpty() && (maxDepth == QueryUtil.ALL_POS || depth < maxDepth); depth++) {
+            List<FileSystemFolderTree> parents = new ArrayList<FileSystemFolderTree>();
+            List<File> subDirs = new ArrayList<File>();
+            for (int i = 0; i < level.size(); i++) {
+                for (File subDir : loadFilesFromDisk(levelDirs.get(i), DirectoryListing.FOLDERS)) {
+                    parents.add(level.get(i));
+                    subDirs.add(subDir);
+                }
+            }
+
+            List<FileSystemFolderTree> nextLevel = new ArrayList<FileSystemFolderTree>();
+            List<File> nextLevelDirs = new ArrayList<File>();
+            int processed = 0;
+            while (processed < subDirs.size() && remaining > 0) {
+                List<File> batch = subDirs.subList(processed, Math.min(subDirs.size(), processed + BATCH_SIZE));
+                List<FileSystemProjection> projections = resolveProjections(batch);
+                int i = 0;
+                for (; i < batch.size() && remaining > 0; i++) {
+                    FileSystemProjection folder = projections.get(i);
+                    if (folder == null) {
+                        continue;
+                    }
+                    FileSystemFolderTree node = new FileSystemFolderTree(folder.getId(), folder.getName());
+                    parents.get(processed + i).getChildren().add(node);
+                    nextLevel.add(node);
+                    nextLevelDirs.add(batch.get(i));
+                    remaining--;
+                }
+                processed += i;
+            }
+            if (processed < subDirs.size()) {
+                // out of the folder limit
+                break;
+            }
+            for (FileSystemFolderTree node : level) {
+                node.setComplete(true);
+            }
+            level = nextLevel;
+            levelDirs = nextLevelDirs;
+        }
+        return root;
+    }
+
     public Lock lockFolder(long folderId) throws PortalException, SystemException {
         throw new UnsupportedOperationException();
     }
@@ -530,12 +737,12 @@ public class LocalFileSystemRepository extends BaseRepositoryImpl {
     }
 
     public FileEntry moveFileEntry(long fileEntryId, long newFolderId, ServiceContext serviceContext) throws PortalException, SystemException {
-        LocalFileSystemPermissionsUtil.checkFileEntry(getGroupId(), fileEntryId, ActionKeys.VIEW);
-        LocalFileSystemPermissionsUtil.checkFileEntry(getGroupId(), fileEntryId, ActionKeys.UPDATE);
-        LocalFileSystemPermissionsUtil.checkFolder(getGroupId(), newFolderId, ActionKeys.VIEW);
-        LocalFileSystemPermissionsUtil.checkFolder(getGroupId(), newFolderId, ActionKeys.ADD_DOCUMENT);
-        File fileToMove = fileEntryIdToFile(fileEntryId);
-        File parentFolder = folderIdToFile(newFolderId);
+        checkFileEntry(fileEntryId, ActionKeys.VIEW);
+        checkFileEntry(fileEntryId, ActionKeys.UPDATE);
+        checkFolder(newFolderId, ActionKeys.VIEW);
+        checkFolder(newFolderId, ActionKeys.ADD_DOCUMENT);
+        File fileToMove = fileEntryIdToFile(fileEntryId, false);
+        File parentFolder = folderIdToFile(newFolderId, false);
         File dstFile = new File(parentFolder, fileToMove.getName());
 
         if (!fileToMove.exists()) {
@@ -548,14 +755,18 @@ public class LocalFileSystemRepository extends BaseRepositoryImpl {
             throw new SystemException("Destination file does exist: " + dstFile);
         }
         if (fileToMove.canWrite() && parentFolder.canWrite()) {
+            long srcModified = fileToMove.getParentFile().lastModified();
+            long dstModified = parentFolder.lastModified();
             if (!fileToMove.renameTo(dstFile)) {
                 throw new SystemException("Moving was not successful (don't know why) [from, to]: [" + fileToMove + ", " + dstFile + "]");
             }
+            updateSortedViews(fileToMove.getParentFile(), srcModified, fileToMove.getName(), null);
+            updateSortedViews(parentFolder, dstModified, dstFile.getName(), dstFile);
 
-            RepositoryEntry repositoryEntry = RepositoryEntryUtil.fetchByPrimaryKey(fileEntryId);
-            RepositoryEntryUtil.update(repositoryEntry);
+            RepositoryEntry repositoryEntry = fetchRepositoryEntry(fileEntryId);
+            updateRepositoryEntry(repositoryEntry);
             try {
-                saveFileToExpando(repositoryEntry, dstFile);
+                moveFileToMapping(repositoryEntry, fileToMove, dstFile);
             } catch (FileNotFoundException ex) {
                 throw new SystemException(ex.getMessage(), ex);
             }
@@ -568,12 +779,12 @@ public class LocalFileSystemRepository extends BaseRepositoryImpl {
     }
 
     public Folder moveFolder(long folderId, long newParentFolderId, ServiceContext serviceContext) throws PortalException, SystemException {
-        LocalFileSystemPermissionsUtil.checkFolder(getGroupId(), folderId, ActionKeys.VIEW);
-        LocalFileSystemPermissionsUtil.checkFolder(getGroupId(), folderId, ActionKeys.UPDATE);
-        LocalFileSystemPermissionsUtil.checkFolder(getGroupId(), newParentFolderId, ActionKeys.VIEW);
-        LocalFileSystemPermissionsUtil.checkFolder(getGroupId(), newParentFolderId, ActionKeys.ADD_SUBFOLDER);
-        File folderToMove = folderIdToFile(folderId);
-        File parentFolder = folderIdToFile(newParentFolderId);
+        checkFolder(folderId, ActionKeys.VIEW);
+        checkFolder(folderId, ActionKeys.UPDATE);
+        checkFolder(newParentFolderId, ActionKeys.VIEW);
+        checkFolder(newParentFolderId, ActionKeys.ADD_SUBFOLDER);
+        File folderToMove = folderIdToFile(folderId, false);
+        File parentFolder = folderIdToFile(newParentFolderId, false);
         File dstFolder = new File(parentFolder, folderToMove.getName());
 
         if (!folderToMove.exists()) {
@@ -586,14 +797,20 @@ public class LocalFileSystemRepository extends BaseRepositoryImpl {
             throw new SystemException("Destination folder does exist: " + dstFolder);
         }
         if (folderToMove.canWrite() && parentFolder.canWrite()) {
+            long srcModified = folderToMove.getParentFile().lastModified();
+            long dstModified = parentFolder.lastModified();
             if (!folderToMove.renameTo(dstFolder)) {
                 throw new SystemException("Moving was not successful (don't know why) [from, to]: [" + folderToMove + ", " + dstFolder + "]");
             }
+            updateSortedViews(folderToMove.getParentFile(), srcModified, folderToMove.getName(), null);
+            updateSortedViews(parentFolder, dstModified, dstFolder.getName(), dstFolder);
+            SortedDirectoryViews.getViews(getRepositoryId()).remove(folderToMove);
+            environment.getFolderParents().remove(folderId);
 
-            RepositoryEntry repositoryEntry = RepositoryEntryUtil.fetchByPrimaryKey(folderId);
-            RepositoryEntryUtil.update(repositoryEntry);
+            RepositoryEntry repositoryEntry = fetchRepositoryEntry(folderId);
+            updateRepositoryEntry(repositoryEntry);
             try {
-                saveFileToExpando(repositoryEntry, dstFolder);
+                moveFileToMapping(repositoryEntry, folderToMove, dstFolder);
             } catch (FileNotFoundException ex) {
                 throw new SystemException(ex.getMessage(), ex);
             }
@@ -644,9 +861,9 @@ public class LocalFileSystemRepository extends BaseRepositoryImpl {
     }
 
     public FileEntry updateFileEntry(long fileEntryId, String sourceFileName, String mimeType, String title, String description, String changeLog, boolean majorVersion, InputStream is, long size, ServiceContext serviceContext) throws PortalException, SystemException {
-        LocalFileSystemPermissionsUtil.checkFileEntry(getGroupId(), fileEntryId, ActionKeys.VIEW);
-        LocalFileSystemPermissionsUtil.checkFileEntry(getGroupId(), fileEntryId, ActionKeys.UPDATE);
-        File file = fileEntryIdToFile(fileEntryId);
+        checkFileEntry(fileEntryId, ActionKeys.VIEW);
+        checkFileEntry(fileEntryId, ActionKeys.UPDATE);
+        File file = fileEntryIdToFile(fileEntryId, false);
         File dstFile = new File(file.getParentFile(), title);
         boolean toRename = false;
         if (!file.canWrite()) {
@@ -658,6 +875,9 @@ public class LocalFileSystemRepository extends BaseRepositoryImpl {
             }
             toRename = true;
         }
+        long modified = file.getParentFile().lastModified();
+        // the models resolved before carry the old attributes
+        FileSystemIdentityMap.clear(getRepositoryId());
         if (size > 0) {
             try {
                 StreamUtil.transfer(is, new FileOutputStream(file));
@@ -668,29 +888,42 @@ public class LocalFileSystemRepository extends BaseRepositoryImpl {
         if (toRename) {
             file.renameTo(dstFile);
 
-            RepositoryEntry repositoryEntry = RepositoryEntryUtil.fetchByPrimaryKey(fileEntryId);
-            RepositoryEntryUtil.update(repositoryEntry);
+            RepositoryEntry repositoryEntry = fetchRepositoryEntry(fileEntryId);
+            updateRepositoryEntry(repositoryEntry);
             try {
-                saveFileToExpando(repositoryEntry, dstFile);
+                moveFileToMapping(repositoryEntry, file, dstFile);
             } catch (FileNotFoundException ex) {
                 throw new SystemException(ex.getMessage(), ex);
             }
         }
+        // size and modified date changed as well
+        updateSortedViews(file.getParentFile(), modified, file.getName(), toRename ? dstFile : file);
         return fileToFileEntry(dstFile);
     }
 
     public Folder updateFolder(long folderId, String title, String description, ServiceContext serviceContext) throws PortalException, SystemException {
-        LocalFileSystemPermissionsUtil.checkFolder(getGroupId(), folderId, ActionKeys.VIEW);
-        LocalFileSystemPermissionsUtil.checkFolder(getGroupId(), folderId, ActionKeys.UPDATE);
+        checkFolder(folderId, ActionKeys.VIEW);
+        checkFolder(folderId, ActionKeys.UPDATE);
         if (title.contains(File.separator)) {
             throw new SystemException("Invalid character " + File.separator + " in the title! [title]: [" + title + "]");
         }
-        File folder = folderIdToFile(folderId);
+        File folder = folderIdToFile(folderId, false);
         if (!folder.exists() || !folder.canWrite()) {
             throw new SystemException("Folder doesn't exist or cannot be changed: " + folder);
         }
         File newFolder = new File(folder.getParentFile(), title);
-        folder.renameTo(newFolder);
+        long modified = folder.getParentFile().lastModified();
+        if (folder.renameTo(newFolder)) {
+            updateSortedViews(folder.getParentFile(), modified, folder.getName(), newFolder);
+            SortedDirectoryViews.getViews(getRepositoryId()).remove(folder);
+            environment.getFolderParents().remove(folderId);
+            RepositoryEntry repositoryEntry = fetchRepositoryEntry(folderId);
+            try {
+                moveFileToMapping(repositoryEntry, folder, newFolder);
+            } catch (FileNotFoundException ex) {
+                throw new SystemException(ex.getMessage(), ex);
+            }
+        }
         return fileToFolder(newFolder);
     }
 
@@ -707,237 +940,1610 @@ public class LocalFileSystemRepository extends BaseRepositoryImpl {
      */
 
 
-    protected RepositoryEntry findEntryFromExpando(File file) throws SystemException {
-        String className = RepositoryEntry.class.getName();
-        long companyId = getCompanyId();
-        ExpandoColumn col = ExpandoColumnLocalServiceUtil.getDefaultTableColumn(companyId, className, Constants.ABSOLUTE_PATH);
-
-        DynamicQuery query = DynamicQueryFactoryUtil.forClass(ExpandoValue.class, PortalClassLoaderUtil.getClassLoader());
-        query.add(RestrictionsFactoryUtil.eq("columnId", col.getColumnId()));
-
+    protected RepositoryEntry findEntryFromMapping(File file) throws SystemException {
+        String relativePath;
         try {
-            query.add(RestrictionsFactoryUtil.eq("data", getCombinedExpandoValue(file)));
+            relativePath = getRelativePath(file);
         } catch (FileNotFoundException ex) {
             throw new SystemException(ex.getMessage(), ex);
         }
+        // lookup only, the path can come from the user and needn't exist
+        int nodeId = environment.getDictionary().findNodeId(relativePath);
 
-        List<ExpandoValue> result = (List<ExpandoValue>) ExpandoValueLocalServiceUtil.dynamicQuery(query);
-        if (result.size() == 0) {
+        FileSystemRepositoryEntryIndex entryIndex = environment.getEntryIndex();
+        long entryId = nodeId == FileSystemPathDictionary.NOT_FOUND ? 0 : entryIndex.getEntryId(nodeId);
+        if (entryId != 0) {
+            // the index is kept in sync by the RepositoryEntry listener
+            String uuid = entryIndex.getUuid(entryId);
+            if (uuid != null) {
+                return toIndexedEntry(entryId, uuid);
+            }
+            RepositoryEntry repositoryEntry = fetchRepositoryEntry(entryId);
+            if (repositoryEntry != null) {
+                entryIndex.put(nodeId, entryId, repositoryEntry.getUuid());
+                return repositoryEntry;
+            }
+            // removed behind our back
+            entryIndex.remove(entryId);
+        }
+
+        entryId = FileSystemPathMappingUtil.fetchEntryId(getRepositoryId(), relativePath);
+        if (entryId == 0) {
             return null;
         }
-        long entryId = result.get(0).getClassPK();
         try {
-            return RepositoryEntryUtil.findByPrimaryKey(entryId);
+            RepositoryEntry repositoryEntry = RepositoryEntryUtil.findByPrimaryKey(entryId);
+            entryIndex.put(environment.getDictionary().getNodeId(relativePath), entryId, repositoryEntry.getUuid());
+            return repositoryEntry;
         } catch (NoSuchRepositoryEntryException ex) {
             _log.error(ex);
             throw new SystemException(ex);
         }
     }
 
-    protected RepositoryEntry retrieveRepositoryEntry(File file, Class modelClass) throws SystemException {
-        RepositoryEntry repositoryEntry = findEntryFromExpando(file);
+    protected RepositoryEntry retrieveRepositoryEntry(final File file, final Class<?> modelClass) throws SystemException {
+        RepositoryEntry repositoryEntry = findEntryFromMapping(file);
 
         if (repositoryEntry != null) {
             return repositoryEntry;
         }
 
-        long repositoryEntryId = counterLocalService.increment();
-        repositoryEntry = RepositoryEntryUtil.create(repositoryEntryId);
-        repositoryEntry.setGroupId(getGroupId());
-        repositoryEntry.setRepositoryId(getRepositoryId());
-        repositoryEntry.setMappedId(LocalFileSystemRepository.class.getName() + String.valueOf(repositoryEntryId));
-        RepositoryEntryUtil.update(repositoryEntry);
+        // only registration goes through the gate, concurrent callers of the
+        // same path wait for the first one and get its entry; the path may
+        // come from the user, it gets a dictionary node only when it exists
+        if (!file.exists()) {
+            throw new SystemException("File doesn't exist: " + file);
+        }
+        int nodeId;
         try {
-            saveFileToExpando(repositoryEntry, file);
-        } catch (Exception ex) {
+            nodeId = environment.getDictionary().getNodeId(getRelativePath(file));
+        } catch (FileNotFoundException ex) {
             throw new SystemException(ex.getMessage(), ex);
         }
+        return environment.getRegistrationGate().register(nodeId, new Callable<RepositoryEntry>() {
 
-        try {
-            long userId = UserLocalServiceUtil.getDefaultUserId(getCompanyId());
-            if (PermissionThreadLocal.getPermissionChecker() != null) {
-                userId = PermissionThreadLocal.getPermissionChecker().getUserId();
+            public RepositoryEntry call() throws Exception {
+                RepositoryEntry repositoryEntry = findEntryFromMapping(file);
+                if (repositoryEntry != null) {
+                    return repositoryEntry;
+                }
+                return registerRepositoryEntry(file, modelClass);
             }
-            ResourceLocalServiceUtil.addResources(getCompanyId(), getGroupId(), userId, modelClass.getName(), repositoryEntryId, false, addGroupPermissions(), addGuestPermissions());
-        } catch (PortalException ex) {
+        });
+    }
+
+    /**
+     * Must be called under the {@link FileSystemRegistrationGate}.
+     */
+    protected RepositoryEntry registerRepositoryEntry(File file, Class<?> modelClass) throws SystemException {
+        RepositoryEntry repositoryEntry = createRepositoryEntry(FileSystemRepositoryIdAllocator.getInstance().nextId());
+        RepositoryEntryUtil.update(repositoryEntry);
+        try {
+            saveFileToMapping(repositoryEntry, file);
+        } catch (Exception ex) {
             throw new SystemException(ex.getMessage(), ex);
         }
 
+        addEntryResources(repositoryEntry, modelClass);
+
         return repositoryEntry;
     }
 
-    public Folder fileToFolder(File folder) throws SystemException, PortalException {
+    /**
+     * Batch variant of {@link #retrieveRepositoryEntry(File, Class)} used by
+     * listings - resolves all files with a constant number of queries
+     * (per {@link #BATCH_SIZE} files) instead of several queries per file.
+     *
+     * @return entries in the same order as the files
+     */
+    protected List<RepositoryEntry> retrieveRepositoryEntries(List<File> files, Class<?> modelClass) throws SystemException {
+        List<RepositoryEntry> result = new ArrayList<RepositoryEntry>(files.size());
+        for (int from = 0; from < files.size(); from += BATCH_SIZE) {
+            result.addAll(doRetrieveRepositoryEntries(files.subList(from, Math.min(files.size(), from + BATCH_SIZE)), modelClass));
+        }
+        return result;
+    }
+
+    protected List<RepositoryEntry> doRetrieveRepositoryEntries(List<File> files, Class<?> modelClass) throws SystemException {
+        FileSystemRepositoryEntryIndex entryIndex = environment.getEntryIndex();
+        FileSystemPathDictionary dictionary = environment.getDictionary();
+
+        int[] nodeIds = new int[files.size()];
+        String[] relativePaths = new String[files.size()];
+        long[] entryIds = new long[files.size()];
+        Map<String, Integer> unknownPaths = new HashMap<String, Integer>();
         try {
-            if (folder.getAbsolutePath().length() <= getRootFolder().getAbsolutePath().length()) {
-                Folder mountFolder = DLAppLocalServiceUtil.getMountFolder(getRepositoryId());
-                if (!LocalFileSystemPermissionsUtil.containsFolder(getGroupId(), mountFolder.getFolderId(), ActionKeys.VIEW)) {
-                    return null;
+            for (int i = 0; i < nodeIds.length; i++) {
+                String relativePath = getRelativePath(files.get(i));
+                relativePaths[i] = relativePath;
+                nodeIds[i] = dictionary.getNodeId(relativePath);
+                entryIds[i] = entryIndex.getEntryId(nodeIds[i]);
+                if (entryIds[i] == 0) {
+                    unknownPaths.put(relativePath, i);
                 }
-                return mountFolder;
             }
         } catch (FileNotFoundException ex) {
             throw new SystemException(ex.getMessage(), ex);
         }
 
-        RepositoryEntry entry = retrieveRepositoryEntry(folder, DLFolder.class);
-        if (!LocalFileSystemPermissionsUtil.containsFolder(getGroupId(), entry.getRepositoryEntryId(), ActionKeys.VIEW)) {
-            return null;
+        // 1, one IN query over the path hashes of the unknown paths
+        for (Map.Entry<String, Long> mapping : FileSystemPathMappingUtil.fetchEntryIds(getRepositoryId(), unknownPaths.keySet()).entrySet()) {
+            entryIds[unknownPaths.get(mapping.getKey())] = mapping.getValue();
         }
 
-        return new FileSystemFolder(this, entry.getUuid(), entry.getRepositoryEntryId(), folder);
-    }
+        // 2, bulk fetch of the entries not indexed with their UUIDs
+        List<Long> knownIds = new ArrayList<Long>();
+        Map<Long, RepositoryEntry> indexed = new HashMap<Long, RepositoryEntry>();
+        for (long entryId : entryIds) {
+            if (entryId == 0) {
+                continue;
+            }
+            String uuid = entryIndex.getUuid(entryId);
+            if (uuid != null) {
+                indexed.put(entryId, toIndexedEntry(entryId, uuid));
+            } else {
+                knownIds.add(entryId);
+            }
+        }
+        Map<Long, RepositoryEntry> entries = fetchRepositoryEntries(knownIds);
+        entries.putAll(indexed);
+
+        // 3, register the rest at once
+        List<RepositoryEntry> result = new ArrayList<RepositoryEntry>(files.size());
+        List<Integer> missing = new ArrayList<Integer>();
+        for (int i = 0; i < nodeIds.length; i++) {
+            RepositoryEntry entry = entryIds[i] != 0 ? entries.get(entryIds[i]) : null;
+            if (entry == null) {
+                if (entryIds[i] != 0) {
+                    // removed behind our back
+                    entryIndex.remove(entryIds[i]);
+                }
+                missing.add(i);
+            } else {
+                entryIndex.put(nodeIds[i], entryIds[i], entry.getUuid());
+            }
+            result.add(entry);
+        }
 
-    public FileVersion fileToFileVersion(File file) throws SystemException {
-        return fileToFileVersion(file, null);
+        if (!missing.isEmpty()) {
+            int[] missingNodeIds = new int[missing.size()];
+            for (int i = 0; i < missingNodeIds.length; i++) {
+                missingNodeIds[i] = nodeIds[missing.get(i)];
+            }
+            FileSystemRegistrationGate gate = environment.getRegistrationGate();
+            gate.await(missingNodeIds);
+            int[] stripes = gate.lock(missingNodeIds);
+            try {
+                registerRepositoryEntries(nodeIds, relativePaths, missing, result, modelClass);
+            } finally {
+                gate.unlock(stripes);
+            }
+        }
+
+        return result;
     }
 
-    public FileVersion fileToFileVersion(File file, FileEntry fileEntry) throws SystemException {
-        RepositoryEntry entry = retrieveRepositoryEntry(file, DLFileEntry.class);
+    /**
+     * Registers entries of the missing positions into the result, must be
+     * called with the stripes of the missing nodes locked.
+     */
+    protected void registerRepositoryEntries(int[] nodeIds, String[] relativePaths, List<Integer> missing, List<RepositoryEntry> result, Class<?> modelClass) throws SystemException {
+        FileSystemRepositoryEntryIndex entryIndex = environment.getEntryIndex();
+
+        // someone could have registered them since we looked, on this node
+        // or in a transaction committed meanwhile
+        Map<String, Integer> unknownPaths = new HashMap<String, Integer>();
+        for (Iterator<Integer> it = missing.iterator(); it.hasNext();) {
+            int position = it.next();
+            long entryId = entryIndex.getEntryId(nodeIds[position]);
+            RepositoryEntry entry = entryId != 0 ? fetchRepositoryEntry(entryId) : null;
+            if (entry != null) {
+                result.set(position, entry);
+                it.remove();
+            } else {
+                unknownPaths.put(relativePaths[position], position);
+            }
+        }
+        if (!unknownPaths.isEmpty()) {
+            Map<String, Long> mapped = FileSystemPathMappingUtil.fetchEntryIds(getRepositoryId(), unknownPaths.keySet());
+            Map<Long, RepositoryEntry> entries = fetchRepositoryEntries(new ArrayList<Long>(mapped.values()));
+            for (Map.Entry<String, Long> mapping : mapped.entrySet()) {
+                RepositoryEntry entry = entries.get(mapping.getValue());
+                if (entry != null) {
+                    int position = unknownPaths.get(mapping.getKey());
+                    entryIndex.put(nodeIds[position], entry.getRepositoryEntryId(), entry.getUuid());
+                    result.set(position, entry);
+                    missing.remove(Integer.valueOf(position));
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
 
-        if (!LocalFileSystemPermissionsUtil.containsFileEntry(getGroupId(), entry.getRepositoryEntryId(), ActionKeys.VIEW)) {
-            return null;
+        List<RepositoryEntry> created = new ArrayList<RepositoryEntry>(missing.size());
+        for (long repositoryEntryId : FileSystemRepositoryIdAllocator.getInstance().nextIds(missing.size())) {
+            RepositoryEntry entry = createRepositoryEntry(repositoryEntryId);
+            entry.setUuid(PortalUUIDUtil.generate());
+            created.add(entry);
         }
 
-        FileSystemFileVersion fileVersion = new FileSystemFileVersion(this, entry.getRepositoryEntryId(), fileEntry, file);
+        // through the persistence, so model listeners and the entity and
+        // finder caches see the new entries, in the caller's transaction
+        Map<Long, String> mappings = new HashMap<Long, String>();
+        for (int i = 0; i < created.size(); i++) {
+            RepositoryEntry entry = RepositoryEntryUtil.update(created.get(i));
+            created.set(i, entry);
+            mappings.put(entry.getRepositoryEntryId(), relativePaths[missing.get(i)]);
+        }
+        FileSystemPathMappingUtil.updateAll(getRepositoryId(), mappings);
 
-        return fileVersion;
+        for (int i = 0; i < created.size(); i++) {
+            RepositoryEntry entry = created.get(i);
+            int position = missing.get(i);
+            entryIndex.put(nodeIds[position], entry.getRepositoryEntryId(), entry.getUuid());
+            addEntryResources(entry, modelClass);
+            result.set(position, entry);
+        }
     }
 
-    public FileEntry fileToFileEntry(File file) throws SystemException {
-        return fileToFileEntry(file, null);
+    protected RepositoryEntry fetchRepositoryEntry(long repositoryEntryId) throws SystemException {
+        return RepositoryEntryUtil.fetchByPrimaryKey(repositoryEntryId);
     }
 
-    public FileEntry fileToFileEntry(File file, FileVersion fileVersion) throws SystemException {
-        RepositoryEntry entry = retrieveRepositoryEntry(file, DLFileEntry.class);
-
-        if (!LocalFileSystemPermissionsUtil.containsFileEntry(getGroupId(), entry.getRepositoryEntryId(), ActionKeys.VIEW)) {
-            return null;
-        }
-
-        FileSystemFileEntry fileEntry = new FileSystemFileEntry(this, entry.getUuid(), entry.getRepositoryEntryId(), null, file, fileVersion);
-
-        try {
-            long userId = PrincipalThreadLocal.getUserId();
-            if (userId == 0) {
-                userId = UserLocalServiceUtil.getDefaultUserId(getCompanyId());
+    /**
+     * Bulk variant of {@link #fetchRepositoryEntry(long)}, one query per
+     * {@link #BATCH_SIZE} entries.
+     *
+     * @return repositoryEntryId -> entry of the existing entries
+     */
+    protected Map<Long, RepositoryEntry> fetchRepositoryEntries(List<Long> repositoryEntryIds) throws SystemException {
+        Map<Long, RepositoryEntry> result = new HashMap<Long, RepositoryEntry>();
+        for (int from = 0; from < repositoryEntryIds.size(); from += BATCH_SIZE) {
+            DynamicQuery query = DynamicQueryFactoryUtil.forClass(RepositoryEntry.class, PortalClassLoaderUtil.getClassLoader());
+            query.add(RestrictionsFactoryUtil.in("repositoryEntryId", repositoryEntryIds.subList(from, Math.min(repositoryEntryIds.size(), from + BATCH_SIZE))));
+            List<RepositoryEntry> fetched = new ArrayList<RepositoryEntry>();
+            for (Object row : RepositoryEntryLocalServiceUtil.dynamicQuery(query)) {
+                fetched.add((RepositoryEntry) row);
+            }
+            RepositoryEntryUtil.cacheResult(fetched);
+            for (RepositoryEntry repositoryEntry : fetched) {
+                result.put(repositoryEntry.getRepositoryEntryId(), repositoryEntry);
             }
-            dlAppHelperLocalService.checkAssetEntry(
-                    userId, fileEntry,
-                    fileEntry.getFileVersion());
-        } catch (Exception e) {
-            _log.error("Unable to update asset", e);
         }
-
-        return fileEntry;
+        return result;
     }
 
-    protected File fileEntryIdToFile(long fileEntryId)
-            throws PortalException, SystemException {
-
-        RepositoryEntry repositoryEntry = RepositoryEntryUtil.fetchByPrimaryKey(
-                fileEntryId);
+    protected void updateRepositoryEntry(RepositoryEntry repositoryEntry) throws SystemException {
+        RepositoryEntryUtil.update(repositoryEntry);
+    }
 
-        if (repositoryEntry == null) {
-            throw new NoSuchFileEntryException(
-                    "No LocalFileSystem file entry with {fileEntryId=" + fileEntryId + "}");
-        }
-        if (!LocalFileSystemPermissionsUtil.containsFileEntry(getGroupId(), repositoryEntry.getRepositoryEntryId(), ActionKeys.VIEW)) {
-            return null;
-        }
+    protected void removeRepositoryEntry(long repositoryEntryId) throws PortalException, SystemException {
+        FileSystemIdentityMap.clear(getRepositoryId());
+        RepositoryEntryUtil.remove(repositoryEntryId);
+    }
 
-        try {
-            return getFileFromRepositoryEntry(repositoryEntry);
-        } catch (FileNotFoundException ex) {
-            RepositoryEntryUtil.remove(repositoryEntry.getRepositoryEntryId());
-            throw new NoSuchFolderException("File is no longer present on the file system!", ex);
+    protected boolean containsView(RepositoryEntry entry, Class<?> modelClass) throws SystemException {
+        long entryId = entry.getRepositoryEntryId();
+        if (modelClass == DLFolder.class) {
+            return containsFolder(entryId, ActionKeys.VIEW);
         }
+        return containsFileEntry(entryId, ActionKeys.VIEW);
     }
 
-    protected File fileVersionIdToFile(long fileVersionId)
-            throws PortalException, SystemException {
-
-        RepositoryEntry repositoryEntry = RepositoryEntryUtil.fetchByPrimaryKey(
-                fileVersionId);
-
-        if (repositoryEntry == null) {
-            throw new NoSuchFileVersionException(
-                    "No LocalFileSystem file version with {fileVersionId=" + fileVersionId + "}");
+    /**
+     * Batch variant of {@link #containsView(RepositoryEntry, Class)}.
+     *
+     * @return bit set on the positions of the entries the user can view
+     */
+    protected BitSet containsView(List<RepositoryEntry> entries, Class<?> modelClass) throws SystemException {
+        long[] ids = new long[entries.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = entries.get(i).getRepositoryEntryId();
         }
+        return modelClass == DLFolder.class
+                ? contains(DLFolder.class.getName(), ids, ActionKeys.VIEW)
+                : contains(DLFileEntry.class.getName(), ids, ActionKeys.VIEW);
+    }
 
-        if (!LocalFileSystemPermissionsUtil.containsFileEntry(getGroupId(), repositoryEntry.getRepositoryEntryId(), ActionKeys.VIEW)) {
-            return null;
+    protected void checkFolder(long folderId, String actionId) throws PrincipalException, SystemException {
+        if (!containsFolder(folderId, actionId)) {
+            throw new PrincipalException();
         }
+    }
 
-        try {
-            return getFileFromRepositoryEntry(repositoryEntry);
-        } catch (FileNotFoundException ex) {
-            RepositoryEntryUtil.remove(repositoryEntry.getRepositoryEntryId());
-            throw new NoSuchFolderException("File is no longer present on the file system!", ex);
+    protected void checkFileEntry(long fileEntryId, String actionId) throws PrincipalException, SystemException {
+        if (!containsFileEntry(fileEntryId, actionId)) {
+            throw new PrincipalException();
         }
     }
 
-    protected File folderIdToFile(long folderId)
-            throws PortalException, SystemException {
+    protected boolean containsFolder(long folderId, String actionId) throws SystemException {
+        return contains(DLFolder.class.getName(), folderId, actionId);
+    }
 
-        RepositoryEntry repositoryEntry =
-                RepositoryEntryUtil.fetchByPrimaryKey(folderId);
+    protected boolean containsFileEntry(long fileEntryId, String actionId) throws SystemException {
+        return contains(DLFileEntry.class.getName(), fileEntryId, actionId);
+    }
 
-        if (repositoryEntry != null) {
+    /**
+     * Checks the permission on the entry or, with inherited permissions, on
+     * the folder deciding the access to the entry.
+     */
+    public boolean contains(String className, long entryId, String actionId) throws SystemException {
+        long permissionEntryId = getPermissionEntryId(className, entryId);
+        if (permissionEntryId != entryId && LocalFileSystemPermissionsUtil.contains(getGroupId(), DLFolder.class.getName(), permissionEntryId, getInheritedActionId(className, actionId))) {
+            return true;
+        }
+        // the entry itself, with inherited permissions only its owner has rights on it
+        return LocalFileSystemPermissionsUtil.contains(getGroupId(), className, entryId, actionId);
+    }
 
-            if (!LocalFileSystemPermissionsUtil.containsFolder(getGroupId(), repositoryEntry.getRepositoryEntryId(), ActionKeys.VIEW)) {
-                return null;
+    /**
+     * Batch variant of {@link #contains(String, long, String)}, each deciding
+     * folder is checked once.
+     */
+    protected BitSet contains(String className, long[] entryIds, String actionId) throws SystemException {
+        if (!isInheritPermissions()) {
+            return LocalFileSystemPermissionsUtil.contains(getGroupId(), className, entryIds, actionId);
+        }
+        long[] permissionEntryIds = getPermissionEntryIds(className, entryIds);
+        List<Integer> own = new ArrayList<Integer>();
+        Map<Long, List<Integer>> inherited = new LinkedHashMap<Long, List<Integer>>();
+        for (int i = 0; i < entryIds.length; i++) {
+            if (permissionEntryIds[i] == entryIds[i]) {
+                own.add(i);
+                continue;
             }
-
-            try {
-                return getFileFromRepositoryEntry(repositoryEntry);
-            } catch (FileNotFoundException ex) {
-                RepositoryEntryUtil.remove(repositoryEntry.getRepositoryEntryId());
-                throw new NoSuchFolderException("Folder is no longer present on the file system!", ex);
+            List<Integer> positions = inherited.get(permissionEntryIds[i]);
+            if (positions == null) {
+                positions = new ArrayList<Integer>();
+                inherited.put(permissionEntryIds[i], positions);
             }
+            positions.add(i);
         }
 
-        DLFolder dlFolder = DLFolderUtil.fetchByPrimaryKey(folderId);
-
-        if (dlFolder == null) {
-            throw new NoSuchFolderException(
-                    "No LocalFileSystem folder with {folderId=" + folderId + "}");
-        } else if (!dlFolder.isMountPoint()) {
-            throw new RepositoryException(
-                    "LocalFileSystem repository should not be used with {folderId="
-                    + folderId + "}");
+        BitSet result = new BitSet(entryIds.length);
+        long[] ownIds = new long[own.size()];
+        for (int i = 0; i < ownIds.length; i++) {
+            ownIds[i] = entryIds[own.get(i)];
         }
-        try {
-            repositoryEntry = retrieveRepositoryEntry(getRootFolder(), DLFolder.class);
-            return getRootFolder();
-        } catch (FileNotFoundException ex) {
-            throw new RepositoryException("Mapped root folder doesn't exist on the file system!", ex);
+        BitSet allowed = LocalFileSystemPermissionsUtil.contains(getGroupId(), className, ownIds, actionId);
+        for (int i = allowed.nextSetBit(0); i >= 0; i = allowed.nextSetBit(i + 1)) {
+            result.set(own.get(i));
         }
-    }
 
-    protected File getFileFromRepositoryEntry(RepositoryEntry entry) throws FileNotFoundException, SystemException, PortalException {
-        return getFileFromExpando(entry);
+        List<Long> folderIds = new ArrayList<Long>(inherited.keySet());
+        long[] decidingIds = new long[folderIds.size()];
+        for (int i = 0; i < decidingIds.length; i++) {
+            decidingIds[i] = folderIds.get(i);
+        }
+        allowed = LocalFileSystemPermissionsUtil.contains(getGroupId(), DLFolder.class.getName(), decidingIds, getInheritedActionId(className, actionId));
+        List<Integer> denied = new ArrayList<Integer>();
+        for (int i = 0; i < decidingIds.length; i++) {
+            if (allowed.get(i)) {
+                for (int position : inherited.get(decidingIds[i])) {
+                    result.set(position);
+                }
+            } else {
+                denied.addAll(inherited.get(decidingIds[i]));
+            }
+        }
+
+        // owners keep their rights on the entries they created
+        long[] deniedIds = new long[denied.size()];
+        for (int i = 0; i < deniedIds.length; i++) {
+            deniedIds[i] = entryIds[denied.get(i)];
+        }
+        allowed = LocalFileSystemPermissionsUtil.contains(getGroupId(), className, deniedIds, actionId);
+        for (int i = allowed.nextSetBit(0); i >= 0; i = allowed.nextSetBit(i + 1)) {
+            result.set(denied.get(i));
+        }
+        return result;
     }
 
-    protected String getCombinedExpandoValue(File file) throws FileNotFoundException {
-        String relativePath = file.getAbsolutePath().substring(getRootFolder().getAbsolutePath().length());
-        return String.valueOf(getRepositoryId() + "-" + relativePath);
+    /**
+     * @see #getPermissionEntryIds(String, long[])
+     */
+    public long getPermissionEntryId(String className, long entryId) throws SystemException {
+        if (!isInheritPermissions()) {
+            return entryId;
+        }
+        return getPermissionEntryIds(className, new long[]{entryId})[0];
     }
 
-    protected void saveFileToExpando(RepositoryEntry entry, File file) throws FileNotFoundException, SystemException, PortalException {
-        ExpandoValueLocalServiceUtil.addValue(getCompanyId(), expandoColumn.getTableId(), expandoColumn.getColumnId(), entry.getPrimaryKey(), getCombinedExpandoValue(file));
+    /**
+     * With inherited permissions ({@link Constants#INHERIT_PERMISSIONS})
+     * entries without individual permissions of their own are decided by the
+     * nearest ancestor folder that has them, the mount folder at the latest.
+     *
+     * @return IDs of the deciding folders, the entry IDs themselves for entries
+     * with permissions of their own
+     */
+    protected long[] getPermissionEntryIds(String className, long[] entryIds) throws SystemException {
+        long[] result = entryIds.clone();
+        if (!isInheritPermissions() || entryIds.length == 0) {
+            return result;
+        }
+        long mountFolderId = getMountFolderId();
+        BitSet explicit = ExplicitPermissionCache.hasExplicitPermissions(getCompanyId(), className, entryIds);
+
+        // nodes of the inheriting entries, the misses read in one query
+        FileSystemRepositoryEntryIndex entryIndex = environment.getEntryIndex();
+        FileSystemPathDictionary dictionary = environment.getDictionary();
+        Map<Long, Integer> nodeIds = new HashMap<Long, Integer>();
+        List<Long> unknownIds = new ArrayList<Long>();
+        for (int i = 0; i < entryIds.length; i++) {
+            if (!explicit.get(i) && entryIds[i] != mountFolderId) {
+                int nodeId = entryIndex.getNodeId(entryIds[i]);
+                if (nodeId == FileSystemPathDictionary.NOT_FOUND) {
+                    unknownIds.add(entryIds[i]);
+                } else {
+                    nodeIds.put(entryIds[i], nodeId);
+                }
+            }
+        }
+        for (Map.Entry<Long, String> mapping : FileSystemPathMappingUtil.fetchPaths(getRepositoryId(), unknownIds).entrySet()) {
+            int nodeId = dictionary.getNodeId(mapping.getValue());
+            entryIndex.put(nodeId, mapping.getKey());
+            nodeIds.put(mapping.getKey(), nodeId);
+        }
+
+        Map<Integer, Long> resolved = new HashMap<Integer, Long>();
+        for (int i = 0; i < entryIds.length; i++) {
+            Integer nodeId = nodeIds.get(entryIds[i]);
+            if (nodeId != null) {
+                result[i] = getInheritedEntryId(dictionary.getParentId(nodeId), mountFolderId, resolved);
+            }
+            // unknown entries are decided by themselves
+        }
+        return result;
     }
 
-    protected File getFileFromExpando(RepositoryEntry entry) throws FileNotFoundException, SystemException, PortalException {
-        ExpandoValue expandoValue = ExpandoValueLocalServiceUtil.getValue(expandoColumn.getTableId(), expandoColumn.getColumnId(), entry.getPrimaryKey());
-        if(expandoValue == null){
-            throw new IllegalStateException("Database is corrupted! Please recreate this repository!");
+    /**
+     * Walks the ancestors of an entry up to the first folder with individual
+     * permissions. The ancestors come from {@link FileSystemPathDictionary},
+     * which follows moves and renames of the folders, and their entries are
+     * only looked up, folders not registered yet have no permissions.
+     *
+     * @param parentId dictionary node of the entry's parent folder
+     * @param resolved deciding folders of the nodes walked so far, entries
+     * of the same folder walk it once
+     */
+    protected long getInheritedEntryId(int parentId, long mountFolderId, Map<Integer, Long> resolved) throws SystemException {
+        FileSystemRepositoryEntryIndex entryIndex = environment.getEntryIndex();
+        FileSystemPathDictionary dictionary = environment.getDictionary();
+        File rootFolder;
+        try {
+            rootFolder = getRootFolder();
+        } catch (FileNotFoundException ex) {
+            throw new SystemException(ex.getMessage(), ex);
         }
-        String value = expandoValue.getString();
-        String file = value.substring(value.indexOf("-") + 1);
-        if (file == null) {
-            throw new RuntimeException("There is no absolute path in Expando for Repository Entry [id]: [" + entry.getRepositoryEntryId() + "]");
+
+        long result = mountFolderId;
+        List<Integer> walked = new ArrayList<Integer>();
+        for (int nodeId = parentId; nodeId > FileSystemPathDictionary.ROOT; nodeId = dictionary.getParentId(nodeId)) {
+            Long known = resolved.get(nodeId);
+            if (known != null) {
+                result = known;
+                break;
+            }
+            walked.add(nodeId);
+            long folderId = entryIndex.getEntryId(nodeId);
+            if (folderId == 0) {
+                File folder = dictionary.getFile(rootFolder, nodeId);
+                RepositoryEntry folderEntry = folder == null ? null : findEntryFromMapping(folder);
+                if (folderEntry == null) {
+                    continue;
+                }
+                folderId = folderEntry.getRepositoryEntryId();
+            }
+            if (ExplicitPermissionCache.hasExplicitPermissions(getCompanyId(), DLFolder.class.getName(), folderId)) {
+                result = folderId;
+                break;
+            }
+        }
+        for (int nodeId : walked) {
+            resolved.put(nodeId, result);
+        }
+        return result;
+    }
+
+    /**
+     * @return action checked on the deciding folder, file entry actions
+     * unknown to folders require UPDATE
+     */
+    public String getInheritedActionId(String className, String actionId) {
+        if (DLFolder.class.getName().equals(className) || ResourceActionsUtil.getResourceActions(DLFolder.class.getName()).contains(actionId)) {
+            return actionId;
+        }
+        return ActionKeys.UPDATE;
+    }
+
+    /**
+     * @return ID of the mount folder of the repository, looked up once
+     */
+    public long getMountFolderId() throws SystemException {
+        FileSystemFolderParents parents = environment.getFolderParents();
+        long mountFolderId = parents.getMountFolderId();
+        if (mountFolderId == 0) {
+            try {
+                mountFolderId = DLAppLocalServiceUtil.getMountFolder(getRepositoryId()).getFolderId();
+            } catch (PortalException ex) {
+                throw new SystemException(ex.getMessage(), ex);
+            }
+            parents.setMountFolderId(mountFolderId);
+        }
+        return mountFolderId;
+    }
+
+    /**
+     * @return true for the root folder of the repository (and above), it's
+     * represented by the mount folder
+     */
+    public boolean isMountPath(File file) {
+        String root = getRootPath();
+        return root == null || file.getAbsolutePath().length() <= root.length();
+    }
+
+    /**
+     * @return absolute path of the root folder, resolved once per instance,
+     * or null when not configured
+     */
+    protected String getRootPath() {
+        String root = rootPath;
+        if (root == null) {
+            String rootFolder = getTypeSettingsProperties().getProperty(ROOT_FOLDER);
+            if (rootFolder == null) {
+                return null;
+            }
+            root = new File(rootFolder).getAbsolutePath();
+            rootPath = root;
+        }
+        return root;
+    }
+
+    /**
+     * Parent resolved once, then answered from memory.
+     *
+     * @param folder the folder on the file system
+     * @return ID of the parent folder, the mount folder for top level folders
+     */
+    public long getParentFolderId(long folderId, File folder) throws SystemException {
+        FileSystemFolderParents parents = environment.getFolderParents();
+        long parentId = parents.getParentId(folderId);
+        if (parentId != 0) {
+            return parentId;
+        }
+        File parentFile = folder.getParentFile();
+        if (parentFile == null || isMountPath(parentFile)) {
+            parentId = getMountFolderId();
+        } else {
+            parentId = retrieveRepositoryEntry(parentFile, DLFolder.class).getRepositoryEntryId();
+        }
+        parents.put(folderId, parentId);
+        return parentId;
+    }
+
+    /**
+     * @return IDs of the ancestors of the folder up to the mount folder,
+     * closest first
+     */
+    protected List<Long> getRepositoryAncestorIds(long folderId, File folder) throws SystemException {
+        List<Long> result = new ArrayList<Long>();
+        long mountFolderId = getMountFolderId();
+        long id = folderId;
+        File file = folder;
+        while (id != mountFolderId && file != null) {
+            id = getParentFolderId(id, file);
+            result.add(id);
+            file = file.getParentFile();
+        }
+        return result;
+    }
+
+    /**
+     * @return IDs of all ancestors of the folder, the ancestors of the mount
+     * folder included
+     */
+    public List<Long> getAncestorFolderIds(long folderId, File folder) throws PortalException, SystemException {
+        List<Long> result = getRepositoryAncestorIds(folderId, folder);
+        Folder mountFolder = DLAppLocalServiceUtil.getMountFolder(getRepositoryId());
+        if (!mountFolder.isRoot()) {
+            result.addAll(mountFolder.getAncestorFolderIds());
+        }
+        return result;
+    }
+
+    /**
+     * Folders of the repository are built from entries fetched at once, the
+     * walk stops at the first folder the user cannot see. Walking
+     * {@link Folder#getParentFolder()} would fail there on the null parent,
+     * the ancestors above it are left out instead.
+     *
+     * @return ancestors of the folder up to the first one the user cannot
+     * see, all of them including the ancestors of the mount folder otherwise
+     */
+    public List<Folder> getAncestors(long folderId, File folder) throws PortalException, SystemException {
+        List<Long> ids = getRepositoryAncestorIds(folderId, folder);
+        List<Folder> result = new ArrayList<Folder>(ids.size());
+        List<Long> entryIds = ids.subList(0, Math.max(0, ids.size() - 1));
+        Map<Long, RepositoryEntry> entries = fetchRepositoryEntries(entryIds);
+        List<RepositoryEntry> ancestorEntries = new ArrayList<RepositoryEntry>(entryIds.size());
+        for (long entryId : entryIds) {
+            RepositoryEntry entry = entries.get(entryId);
+            if (entry == null) {
+                // removed meanwhile
+                return result;
+            }
+            ancestorEntries.add(entry);
+        }
+        BitSet viewable = containsView(ancestorEntries, DLFolder.class);
+        File file = folder.getParentFile();
+        for (int i = 0; i < ancestorEntries.size(); i++) {
+            if (!viewable.get(i)) {
+                return result;
+            }
+            result.add(toFolder(file, ancestorEntries.get(i), false));
+            file = file.getParentFile();
+        }
+        Folder mountFolder = DLAppLocalServiceUtil.getMountFolder(getRepositoryId());
+        result.add(mountFolder);
+        if (!mountFolder.isRoot()) {
+            result.addAll(mountFolder.getAncestors());
+        }
+        return result;
+    }
+
+    protected long getDefaultUserId() throws PortalException, SystemException {
+        Long userId = _defaultUserIds.get(getCompanyId());
+        if (userId == null) {
+            userId = UserLocalServiceUtil.getDefaultUserId(getCompanyId());
+            _defaultUserIds.put(getCompanyId(), userId);
+        }
+        return userId;
+    }
+
+    protected RepositoryEntry createRepositoryEntry(long repositoryEntryId) {
+        RepositoryEntry repositoryEntry = RepositoryEntryUtil.create(repositoryEntryId);
+        repositoryEntry.setGroupId(getGroupId());
+        repositoryEntry.setCompanyId(getCompanyId());
+        repositoryEntry.setRepositoryId(getRepositoryId());
+        repositoryEntry.setMappedId(LocalFileSystemRepository.class.getName() + String.valueOf(repositoryEntryId));
+        return repositoryEntry;
+    }
+
+    /**
+     * @return entry rebuilt from the {@link FileSystemRepositoryEntryIndex}
+     * without a fetch, for reading its ID and UUID only
+     */
+    protected RepositoryEntry toIndexedEntry(long repositoryEntryId, String uuid) {
+        RepositoryEntry repositoryEntry = createRepositoryEntry(repositoryEntryId);
+        repositoryEntry.setUuid(uuid);
+        repositoryEntry.setNew(false);
+        return repositoryEntry;
+    }
+
+    /**
+     * With inherited permissions only the owner role permissions are added,
+     * so the user who created the entry keeps the rights on it, and nothing
+     * for the entries discovered on behalf of the guest.
+     */
+    protected void addEntryResources(RepositoryEntry repositoryEntry, Class<?> modelClass) throws SystemException {
+        try {
+            long userId = getDefaultUserId();
+            if (PermissionThreadLocal.getPermissionChecker() != null) {
+                userId = PermissionThreadLocal.getPermissionChecker().getUserId();
+            }
+            if (isInheritPermissions()) {
+                if (userId != getDefaultUserId()) {
+                    ResourceLocalServiceUtil.addResources(getCompanyId(), getGroupId(), userId, modelClass.getName(), repositoryEntry.getRepositoryEntryId(), false, false, false);
+                }
+                return;
+            }
+            ResourceLocalServiceUtil.addResources(getCompanyId(), getGroupId(), userId, modelClass.getName(), repositoryEntry.getRepositoryEntryId(), false, addGroupPermissions(), addGuestPermissions());
+        } catch (PortalException ex) {
+            throw new SystemException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Converts files of one directory into models, entries are resolved in
+     * batches. Files that the user cannot see are skipped.
+     *
+     * @param limit stop after this number of models, the rest of files is not
+     * resolved at all
+     */
+    protected List<Object> filesToModels(List<File> files, int limit) throws SystemException, PortalException {
+        return filesToModels(files.iterator(), limit);
+    }
+
+    /**
+     * Files are consumed lazily, the iterator is not read past the last
+     * needed file.
+     */
+    protected List<Object> filesToModels(Iterator<File> files, int limit) throws SystemException, PortalException {
+        return filesToModels(files, false, limit);
+    }
+
+    /**
+     * @param readableOnly skip files the portal cannot read, checked per
+     * batch
+     */
+    protected List<Object> filesToModels(Iterator<File> files, boolean readableOnly, int limit) throws SystemException, PortalException {
+        List<Object> result = new ArrayList<Object>();
+        while (files.hasNext() && result.size() < limit) {
+            List<File> batch = new ArrayList<File>();
+            while (files.hasNext() && batch.size() < Math.min(limit - result.size(), BATCH_SIZE)) {
+                batch.add(files.next());
+            }
+            if (readableOnly) {
+                batch = filterReadable(batch);
+            }
+            batch = readAttributes(batch);
+            for (Object model : resolveModels(batch)) {
+                if (model != null) {
+                    result.add(model);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Resolves entries of the files in batches.
+     *
+     * @return models in the order of the files, null for those the user
+     * cannot see
+     */
+    protected List<Object> resolveModels(List<File> batch) throws SystemException, PortalException {
+        List<File> folders = new ArrayList<File>();
+        List<File> fileEntries = new ArrayList<File>();
+        boolean[] isFolder = new boolean[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            isFolder[i] = batch.get(i).isDirectory();
+            if (isFolder[i]) {
+                folders.add(batch.get(i));
+            } else {
+                fileEntries.add(batch.get(i));
+            }
+        }
+
+        List<Object> result = new ArrayList<Object>(batch.size());
+        List<RepositoryEntry> folderEntries = retrieveRepositoryEntries(folders, DLFolder.class);
+        List<RepositoryEntry> fileEntryEntries = retrieveRepositoryEntries(fileEntries, DLFileEntry.class);
+        BitSet viewableFolders = containsView(folderEntries, DLFolder.class);
+        BitSet viewableFileEntries = containsView(fileEntryEntries, DLFileEntry.class);
+        int folderIndex = 0;
+        int fileEntryIndex = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            if (isFolder[i]) {
+                RepositoryEntry entry = folderEntries.get(folderIndex);
+                result.add(viewableFolders.get(folderIndex++) ? toFolder(batch.get(i), entry, false) : null);
+            } else {
+                RepositoryEntry entry = fileEntryEntries.get(fileEntryIndex);
+                result.add(viewableFileEntries.get(fileEntryIndex++) ? toFileEntry(batch.get(i), entry, null, false, true) : null);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Projections of the files of one directory in the listing order, the
+     * user cannot see the missing ones.
+     *
+     * @param limit stop after this number of projections
+     */
+    protected List<FileSystemProjection> listProjections(File dir, int type, boolean readableOnly, MimeTypeFilter filter, int limit) throws SystemException, PortalException {
+        List<File> files = listFiles(dir, type, readableOnly, filter);
+        List<FileSystemProjection> result = new ArrayList<FileSystemProjection>();
+        for (int from = 0; from < files.size() && result.size() < limit; from += BATCH_SIZE) {
+            for (FileSystemProjection projection : resolveProjections(files.subList(from, Math.min(files.size(), from + BATCH_SIZE)))) {
+                if (projection != null && result.size() < limit) {
+                    result.add(projection);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Like {@link #resolveModels(List)}, but permissions of the whole batch
+     * are checked at once and no models are built.
+     *
+     * @return projections in the order of the files, null for those the user
+     * cannot see
+     */
+    protected List<FileSystemProjection> resolveProjections(List<File> batch) throws SystemException, PortalException {
+        List<File> folders = new ArrayList<File>();
+        List<File> fileEntries = new ArrayList<File>();
+        boolean[] isFolder = new boolean[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            isFolder[i] = batch.get(i).isDirectory();
+            if (isFolder[i]) {
+                folders.add(batch.get(i));
+            } else {
+                fileEntries.add(batch.get(i));
+            }
+        }
+
+        List<RepositoryEntry> folderEntries = retrieveRepositoryEntries(folders, DLFolder.class);
+        List<RepositoryEntry> fileEntryEntries = retrieveRepositoryEntries(fileEntries, DLFileEntry.class);
+        BitSet viewableFolders = containsView(folderEntries, DLFolder.class);
+        BitSet viewableFileEntries = containsView(fileEntryEntries, DLFileEntry.class);
+        List<FileSystemProjection> result = new ArrayList<FileSystemProjection>(batch.size());
+        int folderIndex = 0;
+        int fileEntryIndex = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            if (isFolder[i]) {
+                result.add(viewableFolders.get(folderIndex) ? new FileSystemProjection(folderEntries.get(folderIndex).getRepositoryEntryId(), batch.get(i), true) : null);
+                folderIndex++;
+            } else {
+                result.add(viewableFileEntries.get(fileEntryIndex) ? new FileSystemProjection(fileEntryEntries.get(fileEntryIndex).getRepositoryEntryId(), batch.get(i), false) : null);
+                fileEntryIndex++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Number of entries the user can see, consistent with the listing of the
+     * same type. Nothing is registered: the registered entries are checked
+     * in batches and the others are counted the way the user would see them
+     * once listed, see {@link #isUnregisteredVisible()}.
+     */
+    protected int countEntries(File dir, int type, boolean readableOnly, MimeTypeFilter filter) throws SystemException, PortalException {
+        if (LocalFileSystemLocalRepository.isLocalCall()) {
+            // no permissions to check, no need to resolve the entries
+            return readableOnly ? listFiles(dir, type, true, filter).size() : countFilesOnDisk(dir, type, filter);
+        }
+        List<File> files = listFiles(dir, type, readableOnly, filter);
+        boolean unregisteredVisible = isUnregisteredVisible();
+        int result = 0;
+        for (int from = 0; from < files.size(); from += BATCH_SIZE) {
+            List<File> folders = new ArrayList<File>();
+            List<File> fileEntries = new ArrayList<File>();
+            for (File file : files.subList(from, Math.min(files.size(), from + BATCH_SIZE))) {
+                if (file.isDirectory()) {
+                    folders.add(file);
+                } else {
+                    fileEntries.add(file);
+                }
+            }
+            result += countVisible(folders, DLFolder.class, unregisteredVisible);
+            result += countVisible(fileEntries, DLFileEntry.class, unregisteredVisible);
+        }
+        return result;
+    }
+
+    protected int countVisible(List<File> files, Class<?> modelClass, boolean unregisteredVisible) throws SystemException {
+        long[] entryIds = findEntryIds(files);
+        List<Long> registered = new ArrayList<Long>(entryIds.length);
+        int result = 0;
+        for (long entryId : entryIds) {
+            if (entryId != 0) {
+                registered.add(entryId);
+            } else if (unregisteredVisible) {
+                result++;
+            }
+        }
+        long[] ids = new long[registered.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = registered.get(i);
+        }
+        return result + contains(modelClass.getName(), ids, ActionKeys.VIEW).cardinality();
+    }
+
+    /**
+     * A file is registered by the first user who lists it, the entry gets
+     * the owner permissions of that user or the guest permissions for the
+     * guest. With inherited permissions it's decided by the listed folder,
+     * which the user can see.
+     *
+     * @return whether the user would see the files not registered yet
+     */
+    protected boolean isUnregisteredVisible() {
+        if (isInheritPermissions()) {
+            return true;
+        }
+        PermissionChecker permissionChecker = PermissionThreadLocal.getPermissionChecker();
+        return (permissionChecker != null && permissionChecker.isSignedIn()) || addGuestPermissions();
+    }
+
+    /**
+     * Lookup only, unlike {@link #retrieveRepositoryEntries(List, Class)}
+     * nothing is registered.
+     *
+     * @return IDs of the entries of the files, 0 for files not registered
+     */
+    protected long[] findEntryIds(List<File> files) throws SystemException {
+        FileSystemRepositoryEntryIndex entryIndex = environment.getEntryIndex();
+        FileSystemPathDictionary dictionary = environment.getDictionary();
+        long[] entryIds = new long[files.size()];
+        Map<String, Integer> unknownPaths = new HashMap<String, Integer>();
+        try {
+            for (int i = 0; i < entryIds.length; i++) {
+                String relativePath = getRelativePath(files.get(i));
+                int nodeId = dictionary.findNodeId(relativePath);
+                entryIds[i] = nodeId == FileSystemPathDictionary.NOT_FOUND ? 0 : entryIndex.getEntryId(nodeId);
+                if (entryIds[i] == 0) {
+                    unknownPaths.put(relativePath, i);
+                }
+            }
+        } catch (FileNotFoundException ex) {
+            throw new SystemException(ex.getMessage(), ex);
+        }
+        for (Map.Entry<String, Long> mapping : FileSystemPathMappingUtil.fetchEntryIds(getRepositoryId(), unknownPaths.keySet()).entrySet()) {
+            entryIds[unknownPaths.get(mapping.getKey())] = mapping.getValue();
+            // mapped paths exist, safe to add to the dictionary
+            entryIndex.put(dictionary.getNodeId(mapping.getKey()), mapping.getValue());
+        }
+        return entryIds;
+    }
+
+    /**
+     * Files of the listing, filtered on the file system level only.
+     */
+    protected List<File> listFiles(File dir, int type, boolean readableOnly, MimeTypeFilter filter) throws SystemException {
+        List<File> files = loadFilesFromDisk(dir, type);
+        if (filter != null) {
+            files = filter.filter(files);
+        }
+        if (readableOnly) {
+            files = filterReadable(files);
+        }
+        return files;
+    }
+
+    /**
+     * Without a comparator only the first <code>end</code> visible models are
+     * needed, so the directory is streamed and not read any further. The same
+     * goes for a directory with a sorted view of the comparator.
+     *
+     * @param filter MIME type filter or null, applied before any resolution
+     */
+    protected List<Object> listModels(File dir, int type, boolean readableOnly, MimeTypeFilter filter, int end, OrderByComparator obc) throws SystemException, PortalException {
+        if (obc != null) {
+            SortedDirectoryViews.SortKey key = getSortKey(obc);
+            List<File> listed = new ArrayList<File>();
+            List<File> sorted = key == null ? null : getSortedView(dir, key, obc.isAscending(), listed);
+            if (sorted != null) {
+                Iterator<File> files = DirectoryListing.filter(sorted.iterator(), type, false);
+                return filesToModels(filter == null ? files : filter.filter(files), readableOnly, end);
+            }
+            List<File> files = key == null ? loadFilesFromDisk(dir, type) : filterByType(listed, type);
+            if (filter != null) {
+                files = filter.filter(files);
+            }
+            if (readableOnly) {
+                files = filterReadable(files);
+            }
+            return sortedFilesToModels(readAttributes(files), end, obc);
+        }
+        DirectoryListing listing = null;
+        try {
+            listing = DirectoryListing.open(dir, type, readableOnly, getListingExecutor());
+            return filesToModels(filter == null ? listing.iterator() : filter.filter(listing.iterator()), end);
+        } catch (IOException ex) {
+            throw new SystemException(ex.getMessage(), ex);
+        } finally {
+            DirectoryListing.close(listing);
+        }
+    }
+
+    /**
+     * Orders lightweight models (no RepositoryEntry, attributes only) and
+     * resolves just the first <code>end</code> of them. When some of them
+     * cannot be viewed the selection grows until there are enough visible
+     * models or no more files.
+     *
+     * @return the first <code>end</code> visible models, sorted
+     */
+    protected List<Object> sortedFilesToModels(List<File> files, int end, final OrderByComparator obc) throws SystemException, PortalException {
+        List<Object> candidates = new ArrayList<Object>(files.size());
+        for (File file : files) {
+            candidates.add(toLightweightModel(file));
+        }
+        // ties broken by the file name, unique within the directory
+        return selectModels(candidates, end, new Comparator<Object>() {
+
+            public int compare(Object model1, Object model2) {
+                int result = obc.compare(model1, model2);
+                if (result == 0) {
+                    result = ((File) ((FileSystemModel) model1).getModel()).getName().compareTo(((File) ((FileSystemModel) model2).getModel()).getName());
+                }
+                return result;
+            }
+        });
+    }
+
+    /**
+     * @param candidates lightweight models, see {@link #toLightweightModel(File)}
+     */
+    protected List<Object> selectModels(List<Object> candidates, int end, Comparator<Object> obc) throws SystemException, PortalException {
+        Map<File, Object> resolved = new HashMap<File, Object>();
+        int k = end;
+        while (true) {
+            List<Object> selected = BoundedSelection.select(candidates, k, obc);
+            List<File> unresolved = new ArrayList<File>();
+            for (Object candidate : selected) {
+                File file = (File) ((FileSystemModel) candidate).getModel();
+                if (!resolved.containsKey(file)) {
+                    unresolved.add(file);
+                }
+            }
+            for (int from = 0; from < unresolved.size(); from += BATCH_SIZE) {
+                List<File> batch = unresolved.subList(from, Math.min(unresolved.size(), from + BATCH_SIZE));
+                List<Object> models = resolveModels(batch);
+                for (int i = 0; i < batch.size(); i++) {
+                    resolved.put(batch.get(i), models.get(i));
+                }
+            }
+
+            List<Object> result = new ArrayList<Object>(selected.size());
+            for (Object candidate : selected) {
+                Object model = resolved.get((File) ((FileSystemModel) candidate).getModel());
+                if (model != null && result.size() < end) {
+                    result.add(model);
+                }
+            }
+            if (result.size() >= end || selected.size() >= candidates.size()) {
+                return result;
+            }
+            // some rows were filtered out, select more
+            k = (int) Math.min(candidates.size(), Math.max(2L * k, (long) k + 2L * (end - result.size())));
+        }
+    }
+
+    /**
+     * Model without a RepositoryEntry, good for ordering only.
+     */
+    protected FileSystemModel toLightweightModel(File file) {
+        if (file.isDirectory()) {
+            return new FileSystemFolder(this, null, 0, file);
+        }
+        return new FileSystemFileEntry(this, null, 0, null, file, null);
+    }
+
+    /**
+     * Returns the sorted view of the directory, the view is built when
+     * missing or stale and the directory is big enough.
+     *
+     * @param listed receives all entries of the directory when it was listed
+     * and found too small for a view, so the caller need not list it again
+     * @return all entries of the directory in the order of the sort key or
+     * null when there is no view for it
+     */
+    protected List<File> getSortedView(File dir, SortedDirectoryViews.SortKey key, boolean ascending, List<File> listed) {
+        SortedDirectoryViews views = SortedDirectoryViews.getViews(getRepositoryId());
+        List<File> sorted = views.get(dir, key, ascending);
+        if (sorted != null) {
+            return sorted;
+        }
+        long modified = dir.lastModified();
+        List<File> files = loadFilesFromDisk(dir, DirectoryListing.ALL);
+        if (!views.isViewable(files.size())) {
+            listed.addAll(files);
+            return null;
+        }
+        List<FileSystemModel> candidates = new ArrayList<FileSystemModel>(files.size());
+        for (File file : files) {
+            candidates.add(toLightweightModel(file));
+        }
+        Collections.sort(candidates, getSortOrder(key, ascending));
+        sorted = new ArrayList<File>(candidates.size());
+        long[] values = new long[candidates.size()];
+        for (int i = 0; i < values.length; i++) {
+            FileSystemModel candidate = candidates.get(i);
+            File file = (File) candidate.getModel();
+            values[i] = getSortValue(key, candidate);
+            sorted.add(new SortedDirectoryViews.SortedFile(dir, file.getName(), file.isDirectory(), values[i]));
+        }
+        views.put(dir, key, ascending, modified, sorted, values);
+        return sorted;
+    }
+
+    /**
+     * Keeps the sorted views of the directory current after a change made
+     * through the repository.
+     *
+     * @param modified modification time of the directory before the change
+     */
+    protected void updateSortedViews(File dir, long modified, String removedName, File addedFile) {
+        SortedDirectoryViews.getViews(getRepositoryId()).update(dir, modified, removedName, addedFile);
+    }
+
+    /**
+     * @return the sort key of one of the standard comparators or null
+     */
+    protected SortedDirectoryViews.SortKey getSortKey(OrderByComparator obc) {
+        if (obc.getClass() == RepositoryModelNameComparator.class) {
+            return SortedDirectoryViews.SortKey.NAME;
+        }
+        if (obc.getClass() == RepositoryModelModifiedDateComparator.class) {
+            return SortedDirectoryViews.SortKey.MODIFIED_DATE;
+        }
+        if (obc.getClass() == RepositoryModelSizeComparator.class) {
+            return SortedDirectoryViews.SortKey.SIZE;
+        }
+        return null;
+    }
+
+    /**
+     * Order of the standard comparator of the sort key, made total by the
+     * exact name, see {@link ListingCursor#compare}.
+     */
+    protected Comparator<Object> getSortOrder(final SortedDirectoryViews.SortKey key, final boolean ascending) {
+        return new Comparator<Object>() {
+
+            public int compare(Object model1, Object model2) {
+                return ListingCursor.compare(key, ascending, getSortName(model1), getSortValue(key, model1), getSortName(model2), getSortValue(key, model2));
+            }
+        };
+    }
+
+    protected String getSortName(Object model) {
+        if (model instanceof Folder) {
+            return ((Folder) model).getName();
+        }
+        return ((FileEntry) model).getTitle();
+    }
+
+    /**
+     * Mirrors the standard comparators, folders have no size.
+     */
+    protected long getSortValue(SortedDirectoryViews.SortKey key, Object model) {
+        switch (key) {
+            case MODIFIED_DATE:
+                if (model instanceof Folder) {
+                    return ((Folder) model).getModifiedDate().getTime();
+                }
+                return ((FileEntry) model).getModifiedDate().getTime();
+            case SIZE:
+                return model instanceof FileEntry ? ((FileEntry) model).getSize() : 0;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Cursor based listing, each page costs O(page size) with a sorted view
+     * of the directory and one pass over the listing without it, no matter
+     * how deep the page is. Without a comparator the entries are ordered by
+     * name.
+     *
+     * @param cursor token of the previous page or null for the first page
+     * @param modelClass type of the models listed by <code>type</code>
+     */
+    protected <T> ListingPage<T> listPage(File dir, int type, boolean readableOnly, String cursor, int pageSize, OrderByComparator obc, Class<T> modelClass) throws SystemException, PortalException {
+        SortedDirectoryViews.SortKey key = obc == null ? SortedDirectoryViews.SortKey.NAME : getSortKey(obc);
+        boolean ascending = obc == null || obc.isAscending();
+        if (key == null) {
+            throw new RepositoryException("Cursor listing supports only name, modified date and size ordering, not " + obc.getClass().getName());
+        }
+        ListingCursor after = null;
+        if (Validator.isNotNull(cursor)) {
+            after = ListingCursor.decode(cursor);
+            if (after == null || after.getKey() != key || after.isAscending() != ascending) {
+                throw new RepositoryException("Invalid listing cursor: " + cursor);
+            }
+        }
+        if (dir == null || !dir.canRead() || pageSize <= 0) {
+            return new ListingPage<T>(new ArrayList<T>(), null);
+        }
+
+        // one more model tells whether there is a next page
+        List<Object> models;
+        int from = 0;
+        List<File> listed = new ArrayList<File>();
+        List<File> sorted = getSortedView(dir, key, ascending, listed);
+        if (sorted != null) {
+            from = after == null ? 0 : seek(sorted, after);
+            models = filesToModels(DirectoryListing.filter(sorted.subList(from, sorted.size()).iterator(), type, false), readableOnly, pageSize + 1);
+        } else {
+            List<File> files = filterByType(listed, type);
+            if (readableOnly) {
+                files = filterReadable(files);
+            }
+            List<Object> candidates = new ArrayList<Object>();
+            for (File file : readAttributes(files)) {
+                FileSystemModel candidate = toLightweightModel(file);
+                if (after == null || after.isBefore(getSortName(candidate), getSortValue(key, candidate))) {
+                    candidates.add(candidate);
+                }
+            }
+            models = selectModels(candidates, pageSize + 1, getSortOrder(key, ascending));
+        }
+
+        String nextCursor = null;
+        if (models.size() > pageSize) {
+            models = models.subList(0, pageSize);
+            Object last = models.get(pageSize - 1);
+            long value = getSortValue(key, last);
+            if (sorted != null) {
+                // the next seek runs over the values of the view
+                for (File file : sorted.subList(from, sorted.size())) {
+                    if (file.getName().equals(getSortName(last))) {
+                        value = ((SortedDirectoryViews.SortedFile) file).getSortValue();
+                        break;
+                    }
+                }
+            }
+            nextCursor = new ListingCursor(key, ascending, getSortName(last), value).encode();
+        }
+        List<T> items = new ArrayList<T>(models.size());
+        for (Object model : models) {
+            items.add(modelClass.cast(model));
+        }
+        return new ListingPage<T>(items, nextCursor);
+    }
+
+    /**
+     * Runs over the values the view was sorted by.
+     *
+     * @return index of the first file of the sorted view after the cursor
+     */
+    protected int seek(List<File> sorted, ListingCursor after) {
+        int low = 0;
+        int high = sorted.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            SortedDirectoryViews.SortedFile file = (SortedDirectoryViews.SortedFile) sorted.get(mid);
+            if (after.isBefore(file.getName(), file.getSortValue())) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    public Folder fileToFolder(File folder) throws SystemException, PortalException {
+        return fileToFolder(folder, true);
+    }
+
+    /**
+     * @param checkView false when the caller has already checked the VIEW
+     * permission
+     */
+    protected Folder fileToFolder(File folder, boolean checkView) throws SystemException, PortalException {
+        try {
+            if (folder.getAbsolutePath().length() <= getRootFolder().getAbsolutePath().length()) {
+                Folder mountFolder = DLAppLocalServiceUtil.getMountFolder(getRepositoryId());
+                if (checkView && !containsFolder(mountFolder.getFolderId(), ActionKeys.VIEW)) {
+                    return null;
+                }
+                return mountFolder;
+            }
+        } catch (FileNotFoundException ex) {
+            throw new SystemException(ex.getMessage(), ex);
+        }
+
+        Object cached = FileSystemIdentityMap.get(getRepositoryId(), Folder.class, folder);
+        if (cached != null) {
+            return cached == FileSystemIdentityMap.NOT_VISIBLE ? null : (Folder) cached;
+        }
+        Folder result = toFolder(folder, retrieveRepositoryEntry(folder, DLFolder.class), checkView);
+        FileSystemIdentityMap.put(getRepositoryId(), Folder.class, folder, result);
+        return result;
+    }
+
+    protected Folder toFolder(File folder, RepositoryEntry entry) throws SystemException {
+        return toFolder(folder, entry, true);
+    }
+
+    protected Folder toFolder(File folder, RepositoryEntry entry, boolean checkView) throws SystemException {
+        Object cached = FileSystemIdentityMap.get(getRepositoryId(), Folder.class, entry.getRepositoryEntryId());
+        if (cached != null) {
+            return cached == FileSystemIdentityMap.NOT_VISIBLE ? null : (Folder) cached;
+        }
+
+        Folder result = null;
+        if (!checkView || containsView(entry, DLFolder.class)) {
+            result = new FileSystemFolder(this, entry.getUuid(), entry.getRepositoryEntryId(), folder);
+        }
+        FileSystemIdentityMap.put(getRepositoryId(), Folder.class, entry.getRepositoryEntryId(), result);
+        return result;
+    }
+
+    public FileVersion fileToFileVersion(File file) throws SystemException {
+        return fileToFileVersion(file, null);
+    }
+
+    public FileVersion fileToFileVersion(File file, FileEntry fileEntry) throws SystemException {
+        return fileToFileVersion(file, fileEntry, true);
+    }
+
+    protected FileVersion fileToFileVersion(File file, FileEntry fileEntry, boolean checkView) throws SystemException {
+        // versions of a given entry are not shared
+        Object cached = fileEntry == null ? FileSystemIdentityMap.get(getRepositoryId(), FileVersion.class, file) : null;
+        if (cached != null) {
+            return cached == FileSystemIdentityMap.NOT_VISIBLE ? null : (FileVersion) cached;
+        }
+
+        RepositoryEntry entry = retrieveRepositoryEntry(file, DLFileEntry.class);
+
+        FileSystemFileVersion fileVersion = null;
+        if (!checkView || containsView(entry, DLFileEntry.class)) {
+            fileVersion = new FileSystemFileVersion(this, entry.getRepositoryEntryId(), fileEntry, file);
+        }
+        if (fileEntry == null) {
+            FileSystemIdentityMap.put(getRepositoryId(), FileVersion.class, file, fileVersion);
+        }
+
+        return fileVersion;
+    }
+
+    public FileEntry fileToFileEntry(File file) throws SystemException {
+        return fileToFileEntry(file, null);
+    }
+
+    public FileEntry fileToFileEntry(File file, FileVersion fileVersion) throws SystemException {
+        return fileToFileEntry(file, fileVersion, true);
+    }
+
+    protected FileEntry fileToFileEntry(File file, FileVersion fileVersion, boolean checkView) throws SystemException {
+        // entries of a given version are not shared
+        Object cached = fileVersion == null ? FileSystemIdentityMap.get(getRepositoryId(), FileEntry.class, file) : null;
+        if (cached != null) {
+            return cached == FileSystemIdentityMap.NOT_VISIBLE ? null : (FileEntry) cached;
+        }
+        FileEntry result = toFileEntry(file, retrieveRepositoryEntry(file, DLFileEntry.class), fileVersion, checkView);
+        if (fileVersion == null) {
+            FileSystemIdentityMap.put(getRepositoryId(), FileEntry.class, file, result);
+        }
+        return result;
+    }
+
+    protected FileEntry toFileEntry(File file, RepositoryEntry entry, FileVersion fileVersion) throws SystemException {
+        return toFileEntry(file, entry, fileVersion, true);
+    }
+
+    protected FileEntry toFileEntry(File file, RepositoryEntry entry, FileVersion fileVersion, boolean checkView) throws SystemException {
+        return toFileEntry(file, entry, fileVersion, checkView, false);
+    }
+
+    /**
+     * @param queueAsset true on the listing path, the asset entry is then
+     * synchronized in the background by {@link FileSystemAssetSyncQueue}
+     */
+    protected FileEntry toFileEntry(File file, RepositoryEntry entry, FileVersion fileVersion, boolean checkView, boolean queueAsset) throws SystemException {
+        Object cached = fileVersion == null ? FileSystemIdentityMap.get(getRepositoryId(), FileEntry.class, entry.getRepositoryEntryId()) : null;
+        if (cached != null) {
+            return cached == FileSystemIdentityMap.NOT_VISIBLE ? null : (FileEntry) cached;
+        }
+
+        FileEntry result = null;
+        if (!checkView || containsView(entry, DLFileEntry.class)) {
+            result = createFileEntry(file, entry, fileVersion);
+            checkAssetEntry(result, queueAsset);
+        }
+        if (fileVersion == null) {
+            FileSystemIdentityMap.put(getRepositoryId(), FileEntry.class, entry.getRepositoryEntryId(), result);
+        }
+        return result;
+    }
+
+    /**
+     * Creates the model without any permission check.
+     */
+    protected FileEntry createFileEntry(File file, RepositoryEntry entry, FileVersion fileVersion) throws SystemException {
+        return new FileSystemFileEntry(this, entry.getUuid(), entry.getRepositoryEntryId(), null, file, fileVersion);
+    }
+
+    /**
+     * @param queue true to synchronize the asset entry in the background
+     */
+    protected void checkAssetEntry(FileEntry fileEntry, boolean queue) {
+        try {
+            long userId = PrincipalThreadLocal.getUserId();
+            if (userId == 0) {
+                userId = getDefaultUserId();
+            }
+            if (queue) {
+                FileSystemAssetSyncQueue.getInstance().add(getRepositoryId(), userId, fileEntry.getFileEntryId(), fileEntry.getModifiedDate().getTime());
+            } else {
+                dlAppHelperLocalService.checkAssetEntry(userId, fileEntry, fileEntry.getFileVersion());
+            }
+        } catch (Exception e) {
+            _log.error("Unable to update asset", e);
+        }
+    }
+
+    /**
+     * Synchronizes the asset entry of the file entry queued by a listing.
+     *
+     * @return modification time of the synchronized file entry
+     */
+    public long checkAssetEntry(long userId, long fileEntryId) throws PortalException, SystemException {
+        File file = fileEntryIdToFile(fileEntryId, false);
+        FileEntry fileEntry = createFileEntry(file, fetchRepositoryEntry(fileEntryId), null);
+        dlAppHelperLocalService.checkAssetEntry(userId, fileEntry, fileEntry.getFileVersion());
+        return fileEntry.getModifiedDate().getTime();
+    }
+
+    protected File fileEntryIdToFile(long fileEntryId)
+            throws PortalException, SystemException {
+
+        return fileEntryIdToFile(fileEntryId, true);
+    }
+
+    /**
+     * @param checkView false when the caller has already checked the VIEW
+     * permission
+     */
+    protected File fileEntryIdToFile(long fileEntryId, boolean checkView)
+            throws PortalException, SystemException {
+
+        RepositoryEntry repositoryEntry = fetchRepositoryEntry(
+                fileEntryId);
+
+        if (repositoryEntry == null) {
+            throw new NoSuchFileEntryException(
+                    "No LocalFileSystem file entry with {fileEntryId=" + fileEntryId + "}");
+        }
+        if (checkView && !containsView(repositoryEntry, DLFileEntry.class)) {
+            return null;
+        }
+
+        try {
+            return getFileFromRepositoryEntry(repositoryEntry);
+        } catch (FileNotFoundException ex) {
+            removeRepositoryEntry(repositoryEntry.getRepositoryEntryId());
+            throw new NoSuchFolderException("File is no longer present on the file system!", ex);
+        }
+    }
+
+    protected File fileVersionIdToFile(long fileVersionId)
+            throws PortalException, SystemException {
+
+        return fileVersionIdToFile(fileVersionId, true);
+    }
+
+    /**
+     * @param checkView false when the caller has already checked the VIEW
+     * permission
+     */
+    protected File fileVersionIdToFile(long fileVersionId, boolean checkView)
+            throws PortalException, SystemException {
+
+        RepositoryEntry repositoryEntry = fetchRepositoryEntry(
+                fileVersionId);
+
+        if (repositoryEntry == null) {
+            throw new NoSuchFileVersionException(
+                    "No LocalFileSystem file version with {fileVersionId=" + fileVersionId + "}");
+        }
+
+        if (checkView && !containsView(repositoryEntry, DLFileEntry.class)) {
+            return null;
+        }
+
+        try {
+            return getFileFromRepositoryEntry(repositoryEntry);
+        } catch (FileNotFoundException ex) {
+            removeRepositoryEntry(repositoryEntry.getRepositoryEntryId());
+            throw new NoSuchFolderException("File is no longer present on the file system!", ex);
+        }
+    }
+
+    protected File folderIdToFile(long folderId)
+            throws PortalException, SystemException {
+
+        return folderIdToFile(folderId, true);
+    }
+
+    /**
+     * @param checkView false when the caller has already checked the VIEW
+     * permission
+     */
+    protected File folderIdToFile(long folderId, boolean checkView)
+            throws PortalException, SystemException {
+
+        RepositoryEntry repositoryEntry =
+                fetchRepositoryEntry(folderId);
+
+        if (repositoryEntry != null) {
+
+            if (checkView && !containsView(repositoryEntry, DLFolder.class)) {
+                return null;
+            }
+
+            try {
+                return getFileFromRepositoryEntry(repositoryEntry);
+            } catch (FileNotFoundException ex) {
+                removeRepositoryEntry(repositoryEntry.getRepositoryEntryId());
+                throw new NoSuchFolderException("Folder is no longer present on the file system!", ex);
+            }
+        }
+
+        DLFolder dlFolder = DLFolderUtil.fetchByPrimaryKey(folderId);
+
+        if (dlFolder == null) {
+            throw new NoSuchFolderException(
+                    "No LocalFileSystem folder with {folderId=" + folderId + "}");
+        } else if (!dlFolder.isMountPoint()) {
+            throw new RepositoryException(
+                    "LocalFileSystem repository should not be used with {folderId="
+                    + folderId + "}");
+        }
+        try {
+            repositoryEntry = retrieveRepositoryEntry(getRootFolder(), DLFolder.class);
+            return getRootFolder();
+        } catch (FileNotFoundException ex) {
+            throw new RepositoryException("Mapped root folder doesn't exist on the file system!", ex);
+        }
+    }
+
+    protected File getFileFromRepositoryEntry(RepositoryEntry entry) throws FileNotFoundException, SystemException, PortalException {
+        return getFileFromMapping(entry);
+    }
+
+    protected String getRelativePath(File file) throws FileNotFoundException {
+        return file.getAbsolutePath().substring(getRootFolder().getAbsolutePath().length());
+    }
+
+    protected void saveFileToMapping(RepositoryEntry entry, File file) throws FileNotFoundException, SystemException, PortalException {
+        String relativePath = getRelativePath(file);
+        FileSystemPathMappingUtil.update(getRepositoryId(), entry.getRepositoryEntryId(), relativePath);
+        environment.getEntryIndex().put(environment.getDictionary().getNodeId(relativePath), entry.getRepositoryEntryId(), entry.getUuid());
+    }
+
+    /**
+     * Re-maps the moved or renamed entry and everything below it. The
+     * dictionary node is moved, so the indexed descendants follow it.
+     */
+    protected void moveFileToMapping(RepositoryEntry entry, File srcFile, File dstFile) throws FileNotFoundException, SystemException {
+        FileSystemIdentityMap.clear(getRepositoryId());
+        String srcPath = getRelativePath(srcFile);
+        String dstPath = getRelativePath(dstFile);
+        FileSystemPathMappingUtil.update(getRepositoryId(), entry.getRepositoryEntryId(), dstPath);
+        if (dstFile.isDirectory()) {
+            FileSystemPathMappingUtil.moveDescendants(getRepositoryId(), srcPath, dstPath);
+        }
+
+        FileSystemRepositoryEntryIndex entryIndex = environment.getEntryIndex();
+        FileSystemPathDictionary dictionary = environment.getDictionary();
+        int nodeId = entryIndex.getNodeId(entry.getRepositoryEntryId());
+        if (nodeId == FileSystemPathDictionary.NOT_FOUND) {
+            nodeId = dictionary.findNodeId(srcPath);
+        }
+        if (nodeId == FileSystemPathDictionary.NOT_FOUND || nodeId == FileSystemPathDictionary.ROOT) {
+            nodeId = dictionary.getNodeId(dstPath);
+        } else {
+            int parentId = dictionary.getNodeId(getRelativePath(dstFile.getParentFile()));
+            entryIndex.removeNodes(dictionary.move(nodeId, parentId, dstFile.getName()));
+        }
+        entryIndex.put(nodeId, entry.getRepositoryEntryId(), entry.getUuid());
+    }
+
+    /**
+     * Drops the dictionary nodes of the deleted entry and its descendants.
+     */
+    protected void removeFromDictionary(long entryId) {
+        FileSystemRepositoryEntryIndex entryIndex = environment.getEntryIndex();
+        int nodeId = entryIndex.getNodeId(entryId);
+        if (nodeId != FileSystemPathDictionary.NOT_FOUND && nodeId != FileSystemPathDictionary.ROOT) {
+            entryIndex.removeNodes(environment.getDictionary().remove(nodeId));
+        }
+    }
+
+    protected File getFileFromMapping(RepositoryEntry entry) throws FileNotFoundException, SystemException, PortalException {
+        FileSystemPathDictionary dictionary = environment.getDictionary();
+        int nodeId = environment.getEntryIndex().getNodeId(entry.getRepositoryEntryId());
+        if (nodeId == FileSystemPathDictionary.NOT_FOUND) {
+            String file = FileSystemPathMappingUtil.fetchPath(getRepositoryId(), entry.getRepositoryEntryId());
+            if (file == null) {
+                // the path was taken over by another entry
+                throw new FileNotFoundException("There is no path mapped for Repository Entry [id]: [" + entry.getRepositoryEntryId() + "]");
+            }
+            nodeId = dictionary.getNodeId(file);
+            environment.getEntryIndex().put(nodeId, entry.getRepositoryEntryId(), entry.getUuid());
+        }
+        File f = dictionary.getFile(getRootFolder(), nodeId);
+        if (f == null) {
+            throw new FileNotFoundException("There is no path mapped for Repository Entry [id]: [" + entry.getRepositoryEntryId() + "]");
         }
-        File f = new File(getRootFolder(), file);
         if (!f.exists()) {
             throw new FileNotFoundException("File no longer exists on the file system: " + f.getAbsolutePath());
         }
@@ -964,40 +2570,106 @@ public class LocalFileSystemRepository extends BaseRepositoryImpl {
         return GetterUtil.getBoolean(getTypeSettingsProperties().getProperty(ADD_GROUP_PERMISSIONS), true);
     }
 
+    /**
+     * @return true when new entries get only the owner's resources and
+     * inherit permissions of their folders, see
+     * {@link #getPermissionEntryIds(String, long[])}
+     */
+    public boolean isInheritPermissions() {
+        return GetterUtil.getBoolean(getTypeSettingsProperties().getProperty(INHERIT_PERMISSIONS), false);
+    }
+
     protected List<File> loadFilesFromDisk(File dir, final int type){
-        List<File> result = new ArrayList<File>();
         if(!dir.canRead()){
-            return result;
+            return new ArrayList<File>();
         }
-        String cacheKey = dir.getAbsolutePath();
-        File[] cached = getFromCache(cacheKey);
+        DirectoryListingCache cache = DirectoryListingCache.getCache(getRepositoryId());
+        File[] cached = cache.get(DirectoryListingCache.Region.LISTING, dir);
         if(cached == null){
-            cached = dir.listFiles();
-            putToCache(cacheKey, cached);
-        }
-        for(File f : cached){
-            switch (type){
-                case 2 : {
-                    if(!f.isDirectory()){
-                        result.add(f);
-                    }
-                    break;
-                }
-                case 1 : {
-                    if(f.isDirectory()){
-                        result.add(f);
-                    }
-                    break;
-                }
-                case 0 :
-                default : {
-                    result.add(f);
-                    break;
-                }
+            long modified = dir.lastModified();
+            List<File> files = DirectoryListing.list(dir, DirectoryListing.ALL, false, getListingExecutor());
+            cached = new File[files.size()];
+            for (int i = 0; i < cached.length; i++) {
+                // size and mtime of the files may change without the directory
+                cached[i] = new TypedFile(dir, files.get(i).getName(), files.get(i).isDirectory());
+            }
+            cache.put(DirectoryListingCache.Region.LISTING, dir, modified, cached);
+            cached = files.toArray(new File[files.size()]);
+        }
+        return filterByType(Arrays.asList(cached), type);
+    }
+
+    /**
+     * @param type one of the {@link DirectoryListing} types
+     */
+    protected List<File> filterByType(List<File> files, int type) {
+        List<File> result = new ArrayList<File>();
+        for(File f : files){
+            if (type == DirectoryListing.ALL || (type == DirectoryListing.FOLDERS) == f.isDirectory()) {
+                result.add(f);
             }
         }
         return result;
     }
+
+    /**
+     * @return the executor configured by {@link Constants#LISTING_THREADS} or
+     * null for serial listing
+     */
+    protected ListingExecutor getListingExecutor() {
+        return ListingExecutor.getExecutor(getRepositoryId(), GetterUtil.getInteger(getTypeSettingsProperties().getProperty(LISTING_THREADS)));
+    }
+
+    /**
+     * @return the files carrying their attributes, read concurrently when
+     * there is an executor
+     */
+    protected List<File> readAttributes(List<File> files) throws SystemException {
+        ListingExecutor executor = getListingExecutor();
+        if (executor == null) {
+            return files;
+        }
+        return executor.readAttributes(files);
+    }
+
+    /**
+     * @return the readable files carrying their attributes, access is
+     * answered by {@link FileAttributes#canRead()}
+     */
+    protected List<File> filterReadable(List<File> files) throws SystemException {
+        ListingExecutor executor = getListingExecutor();
+        if (executor != null) {
+            return executor.filterReadable(files);
+        }
+        List<File> result = new ArrayList<File>(files.size());
+        for (File file : files) {
+            if (!(file instanceof ListedFile)) {
+                file = new ListedFile(file.getParentFile(), file.getName(), FileAttributes.read(file));
+            }
+            if (DirectoryListing.canRead(file)) {
+                result.add(file);
+            }
+        }
+        return result;
+    }
+
+    protected int countFilesOnDisk(File dir, int type, MimeTypeFilter filter) {
+        File[] cached = DirectoryListingCache.getCache(getRepositoryId()).get(DirectoryListingCache.Region.LISTING, dir);
+        if (cached == null && filter == null) {
+            return DirectoryListing.count(dir, type);
+        }
+        if (cached == null) {
+            return filter.filter(loadFilesFromDisk(dir, type)).size();
+        }
+        int count = 0;
+        for (File f : cached) {
+            if ((type == DirectoryListing.ALL || (type == DirectoryListing.FOLDERS) == f.isDirectory()) && (filter == null || filter.accept(f))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
 /*
     protected List<FileEntry> getFileEntriesFromDisk(File dir) throws SystemException {
         List<FileEntry> result = new ArrayList<FileEntry>();
@@ -1046,20 +2718,5 @@ public class LocalFileSystemRepository extends BaseRepositoryImpl {
     }
 
 */
-    protected File[] getFromCache(String cacheKey){
-        String cacheName = new Exception().getStackTrace()[1].getMethodName();
-        ThreadLocalCache<File[]> threadLocalCache =
-                ThreadLocalCacheManager.getThreadLocalCache(
-                        Lifecycle.REQUEST, cacheName);
-        return  threadLocalCache != null ? threadLocalCache.get(cacheKey) : null;
-    }
-
-    protected void putToCache(String cacheKey, File[] value){
-        String cacheName = new Exception().getStackTrace()[1].getMethodName();
-        ThreadLocalCache<File[]> threadLocalCache =
-                ThreadLocalCacheManager.getThreadLocalCache(
-                        Lifecycle.REQUEST, cacheName);
-        threadLocalCache.put(cacheKey, value);
-    }
 
 }
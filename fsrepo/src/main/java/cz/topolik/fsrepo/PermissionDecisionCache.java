@@ -0,0 +1,191 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo;
+
+import com.liferay.portal.kernel.cache.MultiVMPoolUtil;
+import com.liferay.portal.kernel.cache.PortalCache;
+import com.liferay.portal.kernel.util.GetterUtil;
+import com.liferay.portal.kernel.util.PropsUtil;
+import java.io.Serializable;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Permission decisions shared across requests, keyed by the user, the roles
+ * the user has in the group, the resource and the action.
+ *
+ * Decisions are stamped with the tokens of the scopes they depend on - the
+ * resource, the resource name, the group and a global one - and a decision
+ * with a stamp that no longer matches is ignored. Invalidating a scope removes
+ * its token, the model listeners registered in portal.properties invalidate
+ * just the scope that changed. Both the decisions and the tokens live in the
+ * multi VM pool, so removing a token invalidates the scope on all cluster
+ * nodes, the same way the portal's own permission cache is kept in sync.
+ * Decisions also expire after fsrepo.permission.cache.ttl (ms).
+ *
+ * The size of the caches is set by the multi VM pool configuration,
+ * fsrepo.permission.cache.size 0 disables the cache.
+ *
+ * @author Tomas Polesovsky
+ */
+public class PermissionDecisionCache {
+
+    private static final String CACHE_NAME = PermissionDecisionCache.class.getName();
+    private static final int MAX_SIZE = GetterUtil.getInteger(PropsUtil.get(Constants.FSREPO_PERMISSION_CACHE_SIZE), 100000);
+    private static final int TTL = (int) (GetterUtil.getLong(PropsUtil.get(Constants.FSREPO_PERMISSION_CACHE_TTL), 300000) / 1000);
+    private static final String GLOBAL_TOKEN = "GLOBAL";
+    private static final Random _random = new SecureRandom();
+    private static final PortalCache<String, Decision> _decisions = MultiVMPoolUtil.getCache(CACHE_NAME);
+    private static final PortalCache<String, Long> _tokens = MultiVMPoolUtil.getCache(CACHE_NAME + "_TOKENS");
+
+    /**
+     * Tokens of the scopes a decision depends on.
+     */
+    public static final class Stamp implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        private final long global;
+        private final long group;
+        private final long name;
+        private final long resource;
+
+        private Stamp(long global, long group, long name, long resource) {
+            this.global = global;
+            this.group = group;
+            this.name = name;
+            this.resource = resource;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Stamp)) {
+                return false;
+            }
+            Stamp stamp = (Stamp) obj;
+            return global == stamp.global && group == stamp.group && name == stamp.name && resource == stamp.resource;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (global ^ group ^ name ^ resource);
+        }
+    }
+
+    private static class Decision implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        private final boolean allowed;
+        private final Stamp stamp;
+
+        public Decision(boolean allowed, Stamp stamp) {
+            this.allowed = allowed;
+            this.stamp = stamp;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return MAX_SIZE > 0;
+    }
+
+    /**
+     * @param roleIds roles of the user in the group
+     * @return key prefix of the user's decisions in the group
+     */
+    public static String getUserKey(long groupId, long userId, long[] roleIds) {
+        long[] sorted = roleIds.clone();
+        Arrays.sort(sorted);
+        return groupId + "_" + userId + "_" + Arrays.toString(sorted);
+    }
+
+    /**
+     * @return the decision or null when it's not cached or no longer valid
+     */
+    public static Boolean get(long groupId, String userKey, String className, long primKey, String actionId) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Decision decision = _decisions.get(getKey(userKey, className, primKey, actionId));
+        if (decision == null || !decision.stamp.equals(getStamp(groupId, className, String.valueOf(primKey)))) {
+            return null;
+        }
+        return decision.allowed;
+    }
+
+    /**
+     * @param stamp {@link #getStamp(long, String, String)} read before the
+     * decision was made
+     */
+    public static void put(long groupId, String userKey, String className, long primKey, String actionId, boolean allowed, Stamp stamp) {
+        if (!isEnabled() || !stamp.equals(getStamp(groupId, className, String.valueOf(primKey)))) {
+            return;
+        }
+        _decisions.put(getKey(userKey, className, primKey, actionId), new Decision(allowed, stamp), TTL);
+    }
+
+    /**
+     * @return current tokens of the scopes of the resource
+     */
+    public static Stamp getStamp(long groupId, String className, String primKey) {
+        return new Stamp(
+                getToken(GLOBAL_TOKEN),
+                getToken("GROUP_" + groupId),
+                getToken("NAME_" + className),
+                getToken("RESOURCE_" + className + "_" + primKey));
+    }
+
+    /**
+     * Invalidates all decisions.
+     */
+    public static void invalidate() {
+        _tokens.remove(GLOBAL_TOKEN);
+    }
+
+    /**
+     * Invalidates decisions made in the group.
+     */
+    public static void invalidate(long groupId) {
+        _tokens.remove("GROUP_" + groupId);
+    }
+
+    /**
+     * Invalidates decisions about all resources of the name, used when
+     * company, group or group template scoped permissions change.
+     */
+    public static void invalidate(String className) {
+        _tokens.remove("NAME_" + className);
+    }
+
+    /**
+     * Invalidates decisions about one resource.
+     */
+    public static void invalidate(String className, String primKey) {
+        _tokens.remove("RESOURCE_" + className + "_" + primKey);
+    }
+
+    private static long getToken(String key) {
+        Long token = _tokens.get(key);
+        if (token == null) {
+            // concurrent callers may overwrite each other's token, decisions
+            // stamped with the lost one are only missed
+            token = _random.nextLong();
+            _tokens.put(key, token);
+        }
+        return token;
+    }
+
+    private static String getKey(String userKey, String className, long primKey, String actionId) {
+        return userKey + "_" + className + "_" + primKey + "_" + actionId;
+    }
+}
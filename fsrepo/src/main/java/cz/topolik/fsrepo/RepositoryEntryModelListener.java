@@ -21,6 +21,9 @@ import com.liferay.portlet.asset.service.AssetEntryLocalServiceUtil;
 import com.liferay.portlet.documentlibrary.model.DLFileEntryConstants;
 import com.liferay.portlet.expando.model.ExpandoTableConstants;
 import com.liferay.portlet.expando.service.ExpandoRowLocalServiceUtil;
+import cz.topolik.fsrepo.mapper.FileSystemFolderParents;
+import cz.topolik.fsrepo.mapper.FileSystemPathMappingUtil;
+import cz.topolik.fsrepo.mapper.FileSystemRepositoryEntryIndex;
 
 /**
  *
@@ -37,6 +40,15 @@ public class RepositoryEntryModelListener implements ModelListener<RepositoryEnt
     }
 
     public void onAfterRemove(RepositoryEntry repositoryEntry) throws ModelListenerException {
+        FileSystemRepositoryEntryIndex.removeEntry(repositoryEntry.getRepositoryId(), repositoryEntry.getRepositoryEntryId());
+        FileSystemFolderParents.removeFolder(repositoryEntry.getRepositoryId(), repositoryEntry.getRepositoryEntryId());
+
+        try {
+            FileSystemPathMappingUtil.remove(repositoryEntry.getRepositoryEntryId());
+        } catch (Exception ex) {
+            throw new ModelListenerException("Cannot remove path mapping for RepositoryEntry " + repositoryEntry.getRepositoryEntryId(), ex);
+        }
+
         try {
             long companyId = GroupLocalServiceUtil.getGroup(repositoryEntry.getGroupId()).getCompanyId();
             ExpandoRowLocalServiceUtil.deleteRow(companyId, RepositoryEntry.class.getName(), ExpandoTableConstants.DEFAULT_TABLE_NAME, repositoryEntry.getRepositoryEntryId());
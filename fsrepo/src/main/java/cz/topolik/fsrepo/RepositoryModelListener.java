@@ -0,0 +1,39 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo;
+
+import com.liferay.portal.ModelListenerException;
+import com.liferay.portal.model.BaseModelListener;
+import com.liferay.portal.model.Repository;
+import cz.topolik.fsrepo.listing.DirectoryListingCache;
+import cz.topolik.fsrepo.listing.ListingExecutor;
+import cz.topolik.fsrepo.mapper.FileSystemFolderParents;
+
+/**
+ * Stops the background work of a deleted repository and drops its caches.
+ *
+ * @author Tomas Polesovsky
+ */
+public class RepositoryModelListener extends BaseModelListener<Repository> {
+
+    @Override
+    public void onAfterRemove(Repository repository) throws ModelListenerException {
+        if (LocalFileSystemRepository.class.getName().equals(repository.getClassName())) {
+            DirectoryListingCache.shutdown(repository.getRepositoryId());
+            ListingExecutor.shutdown(repository.getRepositoryId());
+            FileSystemAssetSyncQueue.getInstance().remove(repository.getRepositoryId());
+            FileSystemFolderParents.removeParents(repository.getRepositoryId());
+        }
+    }
+}
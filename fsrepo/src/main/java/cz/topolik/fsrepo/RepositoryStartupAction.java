@@ -23,6 +23,7 @@ import com.liferay.portal.kernel.log.LogFactoryUtil;
 import com.liferay.portal.kernel.util.GetterUtil;
 import com.liferay.portal.model.Repository;
 import com.liferay.portal.service.RepositoryLocalServiceUtil;
+import cz.topolik.fsrepo.upgrade.UpgradePathMapping;
 import java.util.List;
 
 /**
@@ -37,9 +38,10 @@ public class RepositoryStartupAction extends SimpleAction {
     public void run(String[] strings) throws ActionException {
         long companyId = GetterUtil.getLong(strings[0]);
         try {
+            new UpgradePathMapping().upgrade();
             initAll(companyId);
         } catch (Exception ex) {
-            _log.error("Cannot reindex FileSystemRepository: " + ex.getMessage(), ex);
+            _log.error("Cannot initialize FileSystemRepository: " + ex.getMessage(), ex);
         }
     }
 
@@ -0,0 +1,57 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo;
+
+import com.liferay.portal.ModelListenerException;
+import com.liferay.portal.model.BaseModelListener;
+import com.liferay.portal.model.ResourceConstants;
+import com.liferay.portal.model.ResourcePermission;
+
+/**
+ * Invalidates cached permission decisions whenever resource permissions
+ * change, as well as the cached knowledge of which resources have permissions
+ * of their own.
+ *
+ * @author Tomas Polesovsky
+ */
+public class ResourcePermissionModelListener extends BaseModelListener<ResourcePermission> {
+
+    @Override
+    public void onAfterCreate(ResourcePermission resourcePermission) throws ModelListenerException {
+        invalidate(resourcePermission);
+    }
+
+    @Override
+    public void onAfterRemove(ResourcePermission resourcePermission) throws ModelListenerException {
+        invalidate(resourcePermission);
+    }
+
+    @Override
+    public void onAfterUpdate(ResourcePermission resourcePermission) throws ModelListenerException {
+        invalidate(resourcePermission);
+    }
+
+    /**
+     * Individual permissions invalidate just the resource, permissions of
+     * the other scopes all resources of the name.
+     */
+    protected void invalidate(ResourcePermission resourcePermission) {
+        if (resourcePermission.getScope() == ResourceConstants.SCOPE_INDIVIDUAL) {
+            ExplicitPermissionCache.invalidate(resourcePermission.getName(), resourcePermission.getPrimKey());
+            PermissionDecisionCache.invalidate(resourcePermission.getName(), resourcePermission.getPrimKey());
+        } else {
+            PermissionDecisionCache.invalidate(resourcePermission.getName());
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo;
+
+import com.liferay.portal.ModelListenerException;
+import com.liferay.portal.model.BaseModelListener;
+import com.liferay.portal.model.UserGroupRole;
+
+/**
+ * Invalidates cached permission decisions of the group whenever site roles
+ * are assigned or unassigned.
+ *
+ * @author Tomas Polesovsky
+ */
+public class UserGroupRoleModelListener extends BaseModelListener<UserGroupRole> {
+
+    @Override
+    public void onAfterCreate(UserGroupRole userGroupRole) throws ModelListenerException {
+        PermissionDecisionCache.invalidate(userGroupRole.getGroupId());
+    }
+
+    @Override
+    public void onAfterRemove(UserGroupRole userGroupRole) throws ModelListenerException {
+        PermissionDecisionCache.invalidate(userGroupRole.getGroupId());
+    }
+
+    @Override
+    public void onAfterUpdate(UserGroupRole userGroupRole) throws ModelListenerException {
+        PermissionDecisionCache.invalidate(userGroupRole.getGroupId());
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo;
+
+import com.liferay.portal.ModelListenerException;
+import com.liferay.portal.model.BaseModelListener;
+import com.liferay.portal.model.User;
+
+/**
+ * Invalidates cached permission decisions whenever users are added to or
+ * removed from roles, groups, organizations or user groups, any of them can
+ * change the roles of the user.
+ *
+ * @author Tomas Polesovsky
+ */
+public class UserModelListener extends BaseModelListener<User> {
+
+    @Override
+    public void onAfterAddAssociation(Object userId, String associationClassName, Object associationClassPK) throws ModelListenerException {
+        PermissionDecisionCache.invalidate();
+    }
+
+    @Override
+    public void onAfterRemoveAssociation(Object userId, String associationClassName, Object associationClassPK) throws ModelListenerException {
+        PermissionDecisionCache.invalidate();
+    }
+}
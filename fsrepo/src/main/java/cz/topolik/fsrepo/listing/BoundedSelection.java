@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo.listing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Top-K selection with a bounded heap, O(n log k) instead of sorting all n
+ * items when only the first k are needed.
+ *
+ * Items the comparator finds equal keep the order of the input, so the first
+ * k items are always a prefix of the first k + 1 items and pages selected
+ * with different k don't split ties differently.
+ *
+ * @author Tomas Polesovsky
+ */
+public class BoundedSelection {
+
+    /**
+     * @return the first k items in the order of the comparator, equal items
+     * in the order of the input
+     */
+    public static <T> List<T> select(final List<T> items, int k, final Comparator<? super T> comparator) {
+        if (k <= 0) {
+            return new ArrayList<T>();
+        }
+        // positions in the input break the ties
+        Comparator<Integer> order = new Comparator<Integer>() {
+
+            public int compare(Integer position1, Integer position2) {
+                int result = comparator.compare(items.get(position1), items.get(position2));
+                return result != 0 ? result : position1.compareTo(position2);
+            }
+        };
+        List<Integer> positions;
+        if (k >= items.size()) {
+            positions = new ArrayList<Integer>(items.size());
+            for (int i = 0; i < items.size(); i++) {
+                positions.add(i);
+            }
+        } else {
+            // the worst of the selected items on the top
+            PriorityQueue<Integer> heap = new PriorityQueue<Integer>(k, Collections.reverseOrder(order));
+            for (int i = 0; i < items.size(); i++) {
+                if (heap.size() < k) {
+                    heap.add(i);
+                } else if (order.compare(i, heap.peek()) < 0) {
+                    heap.poll();
+                    heap.add(i);
+                }
+            }
+            positions = new ArrayList<Integer>(heap);
+        }
+        Collections.sort(positions, order);
+        List<T> result = new ArrayList<T>(positions.size());
+        for (int position : positions) {
+            result.add(items.get(position));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,304 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo.listing;
+
+import com.liferay.portal.kernel.exception.SystemException;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Streaming listing of one directory on top of {@link DirectoryStream}.
+ *
+ * Entries are read from the disk as they are iterated, so a caller which
+ * needs only the first N entries doesn't read (nor allocate) the rest.
+ * Attributes of every entry are read once and carried by the returned
+ * {@link ListedFile}s as {@link FileAttributes}. Entries that disappear while listing are skipped.
+ * With a {@link ListingExecutor} the attributes are read concurrently, a few
+ * entries ahead of the iteration.
+ *
+ * The listing must be closed.
+ *
+ * @author Tomas Polesovsky
+ */
+public class DirectoryListing implements Iterable<File>, Closeable {
+
+    public static final int ALL = 0;
+    public static final int FOLDERS = 1;
+    public static final int FILES = 2;
+    private static Log _log = LogFactoryUtil.getLog(DirectoryListing.class);
+    // entries read ahead with an executor
+    private static final int PREFETCH_SIZE = 64;
+    private final File dir;
+    private final int type;
+    private final boolean readableOnly;
+    private final DirectoryStream<Path> stream;
+    private final ListingExecutor executor;
+
+    protected DirectoryListing(File dir, int type, boolean readableOnly, DirectoryStream<Path> stream) {
+        this(dir, type, readableOnly, stream, null);
+    }
+
+    protected DirectoryListing(File dir, int type, boolean readableOnly, DirectoryStream<Path> stream, ListingExecutor executor) {
+        this.dir = dir;
+        this.type = type;
+        this.readableOnly = readableOnly;
+        this.stream = stream;
+        this.executor = executor;
+    }
+
+    /**
+     * @param type {@link #ALL}, {@link #FOLDERS} or {@link #FILES}
+     * @param readableOnly skip entries the portal cannot read
+     */
+    public static DirectoryListing open(File dir, int type, boolean readableOnly) throws IOException {
+        return open(dir, type, readableOnly, null);
+    }
+
+    /**
+     * @param executor executor for the attribute reads or null
+     */
+    public static DirectoryListing open(File dir, int type, boolean readableOnly, ListingExecutor executor) throws IOException {
+        return new DirectoryListing(dir, type, readableOnly, Files.newDirectoryStream(dir.toPath()), executor);
+    }
+
+    /**
+     * Full pass over the directory.
+     */
+    public static List<File> list(File dir, int type, boolean readableOnly) {
+        return list(dir, type, readableOnly, null);
+    }
+
+    public static List<File> list(File dir, int type, boolean readableOnly, ListingExecutor executor) {
+        List<File> result = new ArrayList<File>();
+        if (!dir.canRead()) {
+            return result;
+        }
+        DirectoryListing listing = null;
+        try {
+            listing = open(dir, type, readableOnly, executor);
+            for (File file : listing) {
+                result.add(file);
+            }
+        } catch (IOException ex) {
+            _log.warn("Cannot list " + dir.getAbsolutePath() + ": " + ex.getMessage());
+        } finally {
+            close(listing);
+        }
+        return result;
+    }
+
+    public static int count(File dir, int type) {
+        int count = 0;
+        if (!dir.canRead()) {
+            return count;
+        }
+        DirectoryListing listing = null;
+        try {
+            listing = open(dir, type, false);
+            for (Iterator<File> it = listing.iterator(); it.hasNext(); it.next()) {
+                count++;
+            }
+        } catch (IOException ex) {
+            _log.warn("Cannot list " + dir.getAbsolutePath() + ": " + ex.getMessage());
+        } finally {
+            close(listing);
+        }
+        return count;
+    }
+
+    /**
+     * Lazily filters already listed files, e.g. a cached listing.
+     */
+    public static Iterator<File> filter(final Iterator<File> files, final int type, final boolean readableOnly) {
+        return new Iterator<File>() {
+
+            private File next;
+
+            public boolean hasNext() {
+                while (next == null && files.hasNext()) {
+                    File file = files.next();
+                    if ((type == ALL || (type == FOLDERS) == file.isDirectory()) && (!readableOnly || canRead(file))) {
+                        next = file;
+                    }
+                }
+                return next != null;
+            }
+
+            public File next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                File result = next;
+                next = null;
+                return result;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public static void close(DirectoryListing listing) {
+        if (listing != null) {
+            try {
+                listing.close();
+            } catch (IOException ex) {
+                _log.warn(ex);
+            }
+        }
+    }
+
+    /**
+     * Can be called only once.
+     */
+    public Iterator<File> iterator() {
+        final Iterator<Path> paths = stream.iterator();
+        if (executor != null) {
+            return prefetchingIterator(paths);
+        }
+        return new Iterator<File>() {
+
+            private File next;
+
+            public boolean hasNext() {
+                while (next == null && hasNextPath(paths)) {
+                    next = accept(paths.next());
+                }
+                return next != null;
+            }
+
+            public File next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                File result = next;
+                next = null;
+                return result;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private Iterator<File> prefetchingIterator(final Iterator<Path> paths) {
+        final ListingExecutor.Task<Path, File> acceptTask = new ListingExecutor.Task<Path, File>() {
+
+            public File call(Path path) {
+                return accept(path);
+            }
+        };
+        return new Iterator<File>() {
+
+            private Iterator<File> buffer = Collections.<File>emptyList().iterator();
+
+            public boolean hasNext() {
+                while (!buffer.hasNext() && hasNextPath(paths)) {
+                    List<Path> chunk = new ArrayList<Path>(PREFETCH_SIZE);
+                    while (chunk.size() < PREFETCH_SIZE && hasNextPath(paths)) {
+                        chunk.add(paths.next());
+                    }
+                    List<File> accepted = new ArrayList<File>(chunk.size());
+                    for (File file : acceptAll(chunk, acceptTask)) {
+                        if (file != null) {
+                            accepted.add(file);
+                        }
+                    }
+                    buffer = accepted.iterator();
+                }
+                return buffer.hasNext();
+            }
+
+            public File next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return buffer.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private List<File> acceptAll(List<Path> chunk, ListingExecutor.Task<Path, File> acceptTask) {
+        try {
+            return executor.map(chunk, acceptTask);
+        } catch (SystemException ex) {
+            _log.warn("Concurrent listing of " + dir.getAbsolutePath() + " failed, listing serially: " + ex.getMessage());
+            List<File> result = new ArrayList<File>(chunk.size());
+            for (Path path : chunk) {
+                result.add(accept(path));
+            }
+            return result;
+        }
+    }
+
+    private boolean hasNextPath(Iterator<Path> paths) {
+        try {
+            return paths.hasNext();
+        } catch (DirectoryIteratorException ex) {
+            _log.warn("Listing of " + dir.getAbsolutePath() + " interrupted: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    public void close() throws IOException {
+        stream.close();
+    }
+
+    /**
+     * Listed files answer from their attributes, see
+     * {@link FileAttributes#canRead()}.
+     */
+    public static boolean canRead(File file) {
+        if (file instanceof ListedFile) {
+            return ((ListedFile) file).getAttributes().canRead();
+        }
+        return file.canRead();
+    }
+
+    /**
+     * @return the file or null when it doesn't pass the filter
+     */
+    protected File accept(Path path) {
+        FileAttributes attributes = FileAttributes.read(path);
+        if (!attributes.exists()) {
+            // removed meanwhile
+            return null;
+        }
+        if ((type == FOLDERS && !attributes.isDirectory()) || (type == FILES && attributes.isDirectory())) {
+            return null;
+        }
+        if (readableOnly && !attributes.canRead()) {
+            return null;
+        }
+        return new ListedFile(dir, path.getFileName().toString(), attributes);
+    }
+}
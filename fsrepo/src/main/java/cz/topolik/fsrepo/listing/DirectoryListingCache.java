@@ -0,0 +1,342 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo.listing;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.util.GetterUtil;
+import com.liferay.portal.kernel.util.PropsUtil;
+import cz.topolik.fsrepo.Constants;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Directory listings shared across requests, one cache per repository.
+ *
+ * Listings are kept in explicit regions (see {@link Region}) keyed by the
+ * directory and are valid as long as the directory modification time doesn't
+ * change. Directories modified just before they were listed aren't cached,
+ * as a change within the same mtime tick would go unnoticed. Optionally
+ * (fsrepo.listing.cache.watch) cached directories are registered with a
+ * {@link WatchService} and invalidated as soon as they change, the watch is
+ * cancelled together with the listing.
+ *
+ * Caches are shut down with their repository, see {@link #shutdown(long)},
+ * and all of them when the plugin is undeployed.
+ *
+ * The cache is bounded by the total number of cached directory entries
+ * (fsrepo.listing.cache.size), least recently used listings go first.
+ *
+ * @author Tomas Polesovsky
+ */
+public class DirectoryListingCache {
+
+    public enum Region {
+        /**
+         * All entries of the directory, folders and files.
+         */
+        LISTING
+    }
+    private static Log _log = LogFactoryUtil.getLog(DirectoryListingCache.class);
+    // coarsest mtime granularity of the common file systems
+    static final long MTIME_GRANULARITY = 2000;
+    private static final ConcurrentMap<Long, DirectoryListingCache> _caches = new ConcurrentHashMap<Long, DirectoryListingCache>();
+    private final long maxSize;
+    private final LinkedHashMap<String, Listing> listings = new LinkedHashMap<String, Listing>(256, 0.75f, true);
+    private long size;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private volatile WatchService watchService;
+    private final Map<WatchKey, String> watchedDirs = new ConcurrentHashMap<WatchKey, String>();
+    private final ConcurrentMap<String, WatchKey> watchKeys = new ConcurrentHashMap<String, WatchKey>();
+
+    public DirectoryListingCache(long maxSize, boolean watch) {
+        this.maxSize = maxSize;
+        if (watch) {
+            startWatching();
+        }
+    }
+
+    /**
+     * Drops the cache of the repository and stops its watching.
+     */
+    public static void shutdown(long repositoryId) {
+        DirectoryListingCache cache = _caches.remove(repositoryId);
+        if (cache != null) {
+            cache.shutdown();
+        }
+    }
+
+    public static void shutdownAll() {
+        for (Long repositoryId : _caches.keySet()) {
+            shutdown(repositoryId);
+        }
+    }
+
+    public static DirectoryListingCache getCache(long repositoryId) {
+        DirectoryListingCache cache = _caches.get(repositoryId);
+        if (cache == null) {
+            cache = new DirectoryListingCache(
+                    GetterUtil.getLong(PropsUtil.get(Constants.FSREPO_LISTING_CACHE_SIZE), 500000),
+                    GetterUtil.getBoolean(PropsUtil.get(Constants.FSREPO_LISTING_CACHE_WATCH), false));
+            DirectoryListingCache previous = _caches.putIfAbsent(repositoryId, cache);
+            if (previous != null) {
+                cache.stopWatching();
+                cache = previous;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * @return the listing or null when not cached or no longer valid
+     */
+    public File[] get(Region region, File dir) {
+        String key = getKey(region, dir);
+        Listing listing;
+        synchronized (this) {
+            listing = listings.get(key);
+        }
+        if (listing != null && listing.isValid(dir)) {
+            hits.incrementAndGet();
+            return listing.files;
+        }
+        if (listing != null) {
+            remove(key, listing);
+            invalidations.incrementAndGet();
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @param modified modification time of the directory before it was listed
+     */
+    public void put(Region region, File dir, long modified, File[] files) {
+        long listed = System.currentTimeMillis();
+        if (files.length > maxSize || listed - modified <= MTIME_GRANULARITY) {
+            // too fresh, it would never be valid
+            return;
+        }
+        Listing listing = new Listing(dir.getAbsolutePath(), modified, listed, files);
+        String key = getKey(region, dir);
+        List<String> evicted = new ArrayList<String>();
+        synchronized (this) {
+            Listing previous = listings.put(key, listing);
+            if (previous != null) {
+                size -= previous.files.length;
+            }
+            size += files.length;
+            for (Iterator<Listing> it = listings.values().iterator(); size > maxSize && it.hasNext();) {
+                Listing eldest = it.next();
+                size -= eldest.files.length;
+                it.remove();
+                evicted.add(eldest.dirPath);
+                evictions.incrementAndGet();
+            }
+        }
+        for (String dirPath : evicted) {
+            unwatch(dirPath);
+        }
+        watch(dir);
+    }
+
+    public void invalidate(File dir) {
+        invalidate(dir.getAbsolutePath());
+    }
+
+    public void clear() {
+        synchronized (this) {
+            listings.clear();
+            size = 0;
+        }
+        for (String dirPath : watchKeys.keySet()) {
+            unwatch(dirPath);
+        }
+    }
+
+    /**
+     * Clears the cache and stops the watching, the watcher thread ends.
+     */
+    public void shutdown() {
+        stopWatching();
+        clear();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    /**
+     * @return number of cached directory entries
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "DirectoryListingCache{hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount()
+                + ", invalidations=" + getInvalidationCount() + ", size=" + getSize() + "/" + maxSize + "}";
+    }
+
+    protected void invalidate(String dirPath) {
+        for (Region region : Region.values()) {
+            String key = region.name() + ":" + dirPath;
+            Listing listing;
+            synchronized (this) {
+                listing = listings.get(key);
+            }
+            if (listing != null && remove(key, listing)) {
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    private boolean remove(String key, Listing listing) {
+        synchronized (this) {
+            if (listings.get(key) != listing) {
+                return false;
+            }
+            listings.remove(key);
+            size -= listing.files.length;
+        }
+        unwatch(listing.dirPath);
+        return true;
+    }
+
+    private String getKey(Region region, File dir) {
+        return region.name() + ":" + dir.getAbsolutePath();
+    }
+
+    private void watch(File dir) {
+        WatchService watchService = this.watchService;
+        if (watchService == null || watchKeys.containsKey(dir.getAbsolutePath())) {
+            return;
+        }
+        try {
+            WatchKey key = dir.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.OVERFLOW);
+            watchedDirs.put(key, dir.getAbsolutePath());
+            watchKeys.put(dir.getAbsolutePath(), key);
+        } catch (IOException ex) {
+            _log.warn("Cannot watch " + dir.getAbsolutePath() + ": " + ex.getMessage());
+        } catch (ClosedWatchServiceException ex) {
+            // stopped
+        }
+    }
+
+    private void unwatch(String dirPath) {
+        WatchKey key = watchKeys.remove(dirPath);
+        if (key != null) {
+            watchedDirs.remove(key);
+            key.cancel();
+        }
+    }
+
+    private void startWatching() {
+        final WatchService watchService;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException ex) {
+            _log.warn("Directory watching is not available, using modification times only: " + ex.getMessage());
+            return;
+        }
+        this.watchService = watchService;
+        Thread watcher = new Thread("FileSystemRepository directory watcher") {
+
+            @Override
+            public void run() {
+                while (true) {
+                    WatchKey key;
+                    try {
+                        key = watchService.take();
+                    } catch (InterruptedException ex) {
+                        return;
+                    } catch (ClosedWatchServiceException ex) {
+                        return;
+                    }
+                    String dirPath = watchedDirs.get(key);
+                    key.pollEvents();
+                    if (dirPath != null) {
+                        invalidate(dirPath);
+                    }
+                    if (!key.reset() && dirPath != null) {
+                        watchedDirs.remove(key);
+                        watchKeys.remove(dirPath, key);
+                    }
+                }
+            }
+        };
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private void stopWatching() {
+        WatchService watchService = this.watchService;
+        this.watchService = null;
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ex) {
+                _log.warn(ex);
+            }
+        }
+    }
+
+    private static class Listing {
+
+        private final String dirPath;
+        private final long modified;
+        private final long listed;
+        private final File[] files;
+
+        private Listing(String dirPath, long modified, long listed, File[] files) {
+            this.dirPath = dirPath;
+            this.modified = modified;
+            this.listed = listed;
+            this.files = files;
+        }
+
+        private boolean isValid(File dir) {
+            return listed - modified > MTIME_GRANULARITY && dir.lastModified() == modified;
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo.listing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of the file attributes, read with one system call.
+ * Models and comparators read the attributes from the snapshot instead of
+ * asking the file system for each of them.
+ *
+ * Access of the portal to the file ({@link #canRead()}, {@link #canWrite()})
+ * is checked once per snapshot and remembered per path until the ctime of
+ * the file or of one of its parent directories changes, which it does on
+ * chmod, chown and ACL changes. The ctimes of the parents are read at most
+ * once per {@link #PARENTS_CHECK_INTERVAL} ms per directory.
+ *
+ * @author Tomas Polesovsky
+ */
+public class FileAttributes implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Attributes of a file that doesn't exist.
+     */
+    public static final FileAttributes MISSING = new FileAttributes(false, false, 0, 0, 0, null);
+    private static final boolean _unix = FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+    private static final boolean _posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    private static final int MAX_ACCESS_CACHED = 100000;
+    private static final int MAX_PARENTS_CACHED = 10000;
+    private static final long PARENTS_CHECK_INTERVAL = 1000;
+    private static final Map<String, Access> _access = new LinkedHashMap<String, Access>(1024, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Access> eldest) {
+            return size() > MAX_ACCESS_CACHED;
+        }
+    };
+    private static final Map<String, Parents> _parents = new LinkedHashMap<String, Parents>(1024, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Parents> eldest) {
+            return size() > MAX_PARENTS_CACHED;
+        }
+    };
+    private final boolean exists;
+    private final boolean directory;
+    private final long size;
+    private final long lastModified;
+    private final long changed;
+    private final Set<PosixFilePermission> permissions;
+    private transient Path path;
+    private transient Access access;
+
+    /**
+     * Access bits of one path valid for one ctime of the path and its
+     * parents, null until checked.
+     */
+    private static class Access {
+
+        private final long changed;
+        private final long parentsChanged;
+        private volatile Boolean readable;
+        private volatile Boolean writable;
+
+        public Access(long changed, long parentsChanged) {
+            this.changed = changed;
+            this.parentsChanged = parentsChanged;
+        }
+    }
+
+    /**
+     * Signature of the ctimes of a directory and all its parents.
+     */
+    private static class Parents {
+
+        private final long checked;
+        private final long signature;
+
+        public Parents(long checked, long signature) {
+            this.checked = checked;
+            this.signature = signature;
+        }
+    }
+
+    public FileAttributes(boolean exists, boolean directory, long size, long lastModified, long changed, Set<PosixFilePermission> permissions) {
+        this.exists = exists;
+        this.directory = directory;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.changed = changed;
+        if (permissions == null) {
+            this.permissions = null;
+        } else {
+            Set<PosixFilePermission> copy = EnumSet.noneOf(PosixFilePermission.class);
+            copy.addAll(permissions);
+            this.permissions = Collections.unmodifiableSet(copy);
+        }
+    }
+
+    public static FileAttributes read(File file) {
+        return read(file.toPath());
+    }
+
+    /**
+     * Broken links are read as the links themselves.
+     *
+     * @return the attributes or {@link #MISSING}
+     */
+    public static FileAttributes read(Path path) {
+        FileAttributes attributes;
+        try {
+            attributes = read(path, new LinkOption[0]);
+        } catch (IOException ex) {
+            try {
+                attributes = read(path, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException ex2) {
+                return MISSING;
+            }
+        }
+        attributes.path = path;
+        return attributes;
+    }
+
+    private static FileAttributes read(Path path, LinkOption... options) throws IOException {
+        if (_unix) {
+            // one stat with the real ctime
+            Map<String, Object> attributes = Files.readAttributes(path, "unix:isDirectory,size,lastModifiedTime,ctime,permissions", options);
+            Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+            for (Object permission : (Set<?>) attributes.get("permissions")) {
+                permissions.add((PosixFilePermission) permission);
+            }
+            return new FileAttributes(true, (Boolean) attributes.get("isDirectory"), (Long) attributes.get("size"),
+                    ((FileTime) attributes.get("lastModifiedTime")).toMillis(), ((FileTime) attributes.get("ctime")).toMillis(),
+                    permissions);
+        }
+        if (_posix) {
+            PosixFileAttributes attributes = Files.readAttributes(path, PosixFileAttributes.class, options);
+            return new FileAttributes(true, attributes.isDirectory(), attributes.size(), attributes.lastModifiedTime().toMillis(), getChanged(attributes), attributes.permissions());
+        }
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, options);
+        return new FileAttributes(true, attributes.isDirectory(), attributes.size(), attributes.lastModifiedTime().toMillis(), getChanged(attributes), null);
+    }
+
+    /**
+     * Without the unix view NIO doesn't expose ctime, the later of creation
+     * and modification time is used instead.
+     */
+    private static long getChanged(BasicFileAttributes attributes) {
+        return Math.max(attributes.creationTime().toMillis(), attributes.lastModifiedTime().toMillis());
+    }
+
+    public boolean exists() {
+        return exists;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return time of the last change of the content or the metadata, as far
+     * as the file system tells
+     */
+    public long getChanged() {
+        return changed;
+    }
+
+    /**
+     * @return true when the portal can read the file, see
+     * {@link java.io.File#canRead()}, false for a deserialized snapshot
+     */
+    public boolean canRead() {
+        if (!exists || path == null) {
+            return false;
+        }
+        Access pathAccess = getAccess();
+        if (pathAccess.readable == null) {
+            pathAccess.readable = Files.isReadable(path);
+        }
+        return pathAccess.readable;
+    }
+
+    /**
+     * @return true when the portal can write the file, see
+     * {@link java.io.File#canWrite()}, false for a deserialized snapshot
+     */
+    public boolean canWrite() {
+        if (!exists || path == null) {
+            return false;
+        }
+        Access pathAccess = getAccess();
+        if (pathAccess.writable == null) {
+            pathAccess.writable = Files.isWritable(path);
+        }
+        return pathAccess.writable;
+    }
+
+    private Access getAccess() {
+        if (access != null) {
+            return access;
+        }
+        Path absolutePath = path.toAbsolutePath();
+        long parentsChanged = getParentsChanged(absolutePath.getParent());
+        String key = absolutePath.toString();
+        synchronized (_access) {
+            access = _access.get(key);
+            if (access == null || access.changed != changed || access.parentsChanged != parentsChanged) {
+                access = new Access(changed, parentsChanged);
+                _access.put(key, access);
+            }
+        }
+        return access;
+    }
+
+    /**
+     * @param dir absolute path of the directory or null
+     * @return signature of the ctimes of the directory and all its parents
+     */
+    private static long getParentsChanged(Path dir) {
+        if (dir == null) {
+            return 0;
+        }
+        String key = dir.toString();
+        long now = System.currentTimeMillis();
+        synchronized (_parents) {
+            Parents parents = _parents.get(key);
+            if (parents != null && now - parents.checked < PARENTS_CHECK_INTERVAL) {
+                return parents.signature;
+            }
+        }
+        long changed;
+        try {
+            changed = read(dir, new LinkOption[0]).getChanged();
+        } catch (IOException ex) {
+            changed = -1;
+        }
+        long signature = 31 * getParentsChanged(dir.getParent()) + changed;
+        synchronized (_parents) {
+            _parents.put(key, new Parents(now, signature));
+        }
+        return signature;
+    }
+
+    /**
+     * @return POSIX permissions or null when the file system isn't POSIX
+     */
+    public Set<PosixFilePermission> getPermissions() {
+        return permissions;
+    }
+}
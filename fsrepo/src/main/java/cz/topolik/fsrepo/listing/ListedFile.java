@@ -0,0 +1,48 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo.listing;
+
+import java.io.File;
+
+/**
+ * File returned by {@link DirectoryListing}, carrying the attributes read
+ * once while listing. Type, size and modification time are answered from them
+ * instead of a system call per getter.
+ *
+ * @author Tomas Polesovsky
+ */
+public class ListedFile extends TypedFile {
+
+    private static final long serialVersionUID = 1L;
+    private final FileAttributes attributes;
+
+    public ListedFile(File parent, String name, FileAttributes attributes) {
+        super(parent, name, attributes.isDirectory());
+        this.attributes = attributes;
+    }
+
+    public FileAttributes getAttributes() {
+        return attributes;
+    }
+
+    @Override
+    public long length() {
+        return attributes.getSize();
+    }
+
+    @Override
+    public long lastModified() {
+        return attributes.getLastModified();
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo.listing;
+
+import com.liferay.portal.kernel.util.Base64;
+import com.liferay.portal.kernel.util.GetterUtil;
+import cz.topolik.fsrepo.listing.SortedDirectoryViews.SortKey;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Position in a sorted listing: the sort key and the name and sort value of
+ * the last returned entry. The next page starts with the first entry after
+ * the position, so entries added or removed meanwhile don't shift it.
+ *
+ * Entries are ordered by the sort value (the name for {@link SortKey#NAME})
+ * and then by the exact name, so the order is total within a directory.
+ *
+ * @author Tomas Polesovsky
+ */
+public class ListingCursor {
+
+    private static final String VERSION = "1";
+    private static final String ENCODING = "UTF-8";
+    private final SortKey key;
+    private final boolean ascending;
+    private final String name;
+    private final long value;
+
+    /**
+     * @param value modification time or size, ignored for {@link SortKey#NAME}
+     */
+    public ListingCursor(SortKey key, boolean ascending, String name, long value) {
+        this.key = key;
+        this.ascending = ascending;
+        this.name = name;
+        this.value = value;
+    }
+
+    /**
+     * @return the cursor or null when the token is malformed
+     */
+    public static ListingCursor decode(String token) {
+        String[] parts;
+        try {
+            parts = new String(Base64.decode(Base64.fromURLSafe(token)), ENCODING).split("\t", 5);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        } catch (RuntimeException ex) {
+            return null;
+        }
+        if (parts.length != 5 || !VERSION.equals(parts[0])) {
+            return null;
+        }
+        SortKey key;
+        try {
+            key = SortKey.valueOf(parts[1]);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+        return new ListingCursor(key, GetterUtil.getBoolean(parts[2]), parts[4], GetterUtil.getLong(parts[3]));
+    }
+
+    /**
+     * Compares two entries in the order of the sort key.
+     */
+    public static int compare(SortKey key, boolean ascending, String name1, long value1, String name2, long value2) {
+        int result;
+        if (key == SortKey.NAME) {
+            result = name1.compareToIgnoreCase(name2);
+        } else {
+            result = value1 < value2 ? -1 : (value1 == value2 ? 0 : 1);
+        }
+        if (!ascending) {
+            result = -result;
+        }
+        if (result == 0) {
+            result = name1.compareTo(name2);
+        }
+        return result;
+    }
+
+    /**
+     * @return whether the entry comes after the position
+     */
+    public boolean isBefore(String name, long value) {
+        return compare(key, ascending, this.name, this.value, name, value) < 0;
+    }
+
+    public String encode() {
+        String data = VERSION + "\t" + key.name() + "\t" + ascending + "\t" + value + "\t" + name;
+        try {
+            return Base64.toURLSafe(Base64.encode(data.getBytes(ENCODING)));
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public SortKey getKey() {
+        return key;
+    }
+
+    public boolean isAscending() {
+        return ascending;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo.listing;
+
+import com.liferay.portal.kernel.exception.SystemException;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded thread pool for the file system calls of listings, one per
+ * repository. On network file systems every stat is a round trip, so the
+ * attributes of the listed files are read concurrently. Results are always
+ * returned in the order of the input.
+ *
+ * Only the file system is touched from the pool, entries and permissions
+ * are resolved by the calling thread. Pools are shut down with their
+ * repository, see {@link #shutdown(long)}, and all of them when the plugin
+ * is undeployed.
+ *
+ * @author Tomas Polesovsky
+ */
+public class ListingExecutor {
+
+    public interface Task<S, T> {
+
+        T call(S item);
+    }
+    // items per pooled call
+    private static final int CHUNK_SIZE = 16;
+    private static final ConcurrentMap<Long, ListingExecutor> _executors = new ConcurrentHashMap<Long, ListingExecutor>();
+    private static final Task<File, File> READ_ATTRIBUTES = new Task<File, File>() {
+
+        public File call(File file) {
+            if (file instanceof ListedFile) {
+                return file;
+            }
+            return new ListedFile(file.getParentFile(), file.getName(), FileAttributes.read(file));
+        }
+    };
+    // the access check is lazy, it has to be made in the pool as well
+    private static final Task<File, File> READABLE = new Task<File, File>() {
+
+        public File call(File file) {
+            ListedFile listed = (ListedFile) READ_ATTRIBUTES.call(file);
+            return listed.getAttributes().canRead() ? listed : null;
+        }
+    };
+    private final int threads;
+    private final ExecutorService executorService;
+
+    public ListingExecutor(final long repositoryId, int threads) {
+        this.threads = threads;
+        executorService = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+            private final AtomicInteger counter = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "FileSystemRepository listing " + repositoryId + "-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Shuts down the pool of the repository.
+     */
+    public static void shutdown(long repositoryId) {
+        ListingExecutor executor = _executors.remove(repositoryId);
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    public static void shutdownAll() {
+        for (Long repositoryId : _executors.keySet()) {
+            shutdown(repositoryId);
+        }
+    }
+
+    /**
+     * @param threads size of the pool, the pool is replaced when the
+     * repository is reconfigured
+     * @return the executor or null for serial listing (threads &lt;= 1)
+     */
+    public static ListingExecutor getExecutor(long repositoryId, int threads) {
+        ListingExecutor executor = _executors.get(repositoryId);
+        if (executor != null && executor.threads == threads) {
+            return executor;
+        }
+        if (threads <= 1) {
+            if (executor != null && _executors.remove(repositoryId, executor)) {
+                executor.shutdown();
+            }
+            return null;
+        }
+        ListingExecutor created = new ListingExecutor(repositoryId, threads);
+        boolean replaced = executor == null ? _executors.putIfAbsent(repositoryId, created) == null : _executors.replace(repositoryId, executor, created);
+        if (!replaced) {
+            created.shutdown();
+            return _executors.get(repositoryId);
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+        return created;
+    }
+
+    /**
+     * Calls the task for all items concurrently.
+     *
+     * @return results in the order of the items
+     */
+    public <S, T> List<T> map(List<S> items, final Task<S, T> task) throws SystemException {
+        List<Future<List<T>>> futures = new ArrayList<Future<List<T>>>();
+        for (int from = 0; from < items.size(); from += CHUNK_SIZE) {
+            final List<S> chunk = items.subList(from, Math.min(items.size(), from + CHUNK_SIZE));
+            futures.add(executorService.submit(new Callable<List<T>>() {
+
+                public List<T> call() {
+                    List<T> result = new ArrayList<T>(chunk.size());
+                    for (S item : chunk) {
+                        result.add(task.call(item));
+                    }
+                    return result;
+                }
+            }));
+        }
+        List<T> result = new ArrayList<T>(items.size());
+        try {
+            for (Future<List<T>> future : futures) {
+                result.addAll(future.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SystemException(ex);
+        } catch (ExecutionException ex) {
+            throw new SystemException(ex.getCause());
+        } finally {
+            for (Future<List<T>> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the files as {@link ListedFile}s carrying their attributes
+     */
+    public List<File> readAttributes(List<File> files) throws SystemException {
+        return map(files, READ_ATTRIBUTES);
+    }
+
+    /**
+     * @return the readable files as {@link ListedFile}s, see
+     * {@link FileAttributes#canRead()}
+     */
+    public List<File> filterReadable(List<File> files) throws SystemException {
+        List<File> result = new ArrayList<File>(files.size());
+        for (File file : map(files, READABLE)) {
+            if (file != null) {
+                result.add(file);
+            }
+        }
+        return result;
+    }
+
+    public void shutdown() {
+        executorService.shutdown();
+    }
+}
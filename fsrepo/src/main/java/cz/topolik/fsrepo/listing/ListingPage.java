@@ -0,0 +1,44 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo.listing;
+
+import java.util.List;
+
+/**
+ * One page of a cursor based listing.
+ *
+ * @author Tomas Polesovsky
+ */
+public class ListingPage<T> {
+
+    private final List<T> items;
+    private final String nextCursor;
+
+    public ListingPage(List<T> items, String nextCursor) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    /**
+     * @return opaque token of the next page or null when this is the last
+     * page
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo.listing;
+
+import com.liferay.portal.kernel.util.MimeTypesUtil;
+import com.liferay.portal.kernel.util.StringUtil;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Filters listed files by MIME type using their names only, so files of
+ * other types are dropped before their entries are resolved. The MIME types
+ * are mapped to extensions once, a file with another extension is matched
+ * by its content type. Folders always pass.
+ *
+ * Content types are looked up by the file name only and are memoized per
+ * extension, see {@link #getContentType(String)}.
+ *
+ * There is no extension index per directory. The names come with the listing
+ * that is read anyway (streamed, from {@link DirectoryListingCache} or from
+ * the {@link SortedDirectoryViews}), and matching a name is a set lookup, so
+ * an index would save no I/O while needing its own invalidation.
+ *
+ * @author Tomas Polesovsky
+ */
+public class MimeTypeFilter {
+
+    private static final int MAX_MEMOIZED = 10000;
+    private static final ConcurrentMap<String, String> _contentTypes = new ConcurrentHashMap<String, String>();
+    private final Set<String> mimeTypes = new HashSet<String>();
+    private final Set<String> extensions = new HashSet<String>();
+
+    public MimeTypeFilter(String[] mimeTypes) {
+        for (String mimeType : mimeTypes) {
+            this.mimeTypes.add(mimeType);
+            for (String extension : MimeTypesUtil.getExtensions(mimeType)) {
+                if (extension.startsWith(".")) {
+                    extension = extension.substring(1);
+                }
+                extensions.add(StringUtil.toLowerCase(extension));
+            }
+        }
+    }
+
+    /**
+     * @return the filter or null when there are no MIME types to filter by
+     */
+    public static MimeTypeFilter create(String[] mimeTypes) {
+        if (mimeTypes == null || mimeTypes.length == 0) {
+            return null;
+        }
+        return new MimeTypeFilter(mimeTypes);
+    }
+
+    /**
+     * Memoized {@link MimeTypesUtil#getContentType(String)}, names without
+     * an extension are not memoized.
+     */
+    public static String getContentType(String fileName) {
+        String extension = getExtension(fileName);
+        if (extension == null) {
+            return MimeTypesUtil.getContentType(fileName);
+        }
+        String contentType = _contentTypes.get(extension);
+        if (contentType == null) {
+            contentType = MimeTypesUtil.getContentType(fileName);
+            if (_contentTypes.size() < MAX_MEMOIZED) {
+                _contentTypes.put(extension, contentType);
+            }
+        }
+        return contentType;
+    }
+
+    public boolean accept(File file) {
+        if (file.isDirectory()) {
+            return true;
+        }
+        String extension = getExtension(file.getName());
+        if (extension != null && extensions.contains(StringUtil.toLowerCase(extension))) {
+            return true;
+        }
+        return mimeTypes.contains(getContentType(file.getName()));
+    }
+
+    public List<File> filter(List<File> files) {
+        List<File> result = new ArrayList<File>(files.size());
+        for (File file : files) {
+            if (accept(file)) {
+                result.add(file);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Lazy variant, the iterator is not read past the last needed file.
+     */
+    public Iterator<File> filter(final Iterator<File> files) {
+        return new Iterator<File>() {
+
+            private File next;
+
+            public boolean hasNext() {
+                while (next == null && files.hasNext()) {
+                    File file = files.next();
+                    if (accept(file)) {
+                        next = file;
+                    }
+                }
+                return next != null;
+            }
+
+            public File next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                File result = next;
+                next = null;
+                return result;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static String getExtension(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot <= 0 || dot == fileName.length() - 1) {
+            return null;
+        }
+        return fileName.substring(dot + 1);
+    }
+}
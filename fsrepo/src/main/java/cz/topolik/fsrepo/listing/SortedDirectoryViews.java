@@ -0,0 +1,571 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo.listing;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.util.DigesterUtil;
+import com.liferay.portal.kernel.util.GetterUtil;
+import com.liferay.portal.kernel.util.PropsKeys;
+import com.liferay.portal.kernel.util.PropsUtil;
+import cz.topolik.fsrepo.Constants;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Persistent sorted views of directories, one set per repository.
+ *
+ * A view is the full listing of one directory (folders and files) in the
+ * order of one of the standard comparators, see {@link SortKey}, ties are
+ * ordered by name (see {@link ListingCursor#compare}). Each entry keeps the
+ * sort value it was ordered by, so inserts and seeks run over the same
+ * values the view was sorted by. Views are stored in
+ * ${liferay.home}/data/fsrepo/views/&lt;repositoryId&gt; and are valid as long
+ * as the directory modification time doesn't change.
+ *
+ * Changes made through the repository update the views in place, see
+ * {@link #update(File, long, String, File)}, and are appended to a log next
+ * to the view, which is rewritten only once the log grows. A view updated
+ * within the mtime granularity of the change is confirmed against the names
+ * in the directory before it's used. Files whose content is changed outside
+ * the portal don't touch the directory, date and size views are therefore
+ * re-validated against the files every
+ * fsrepo.sorted.views.validation.interval (ms) and re-sorted when stale.
+ *
+ * Only directories with at least fsrepo.sorted.views.min.size entries get a
+ * view, -1 turns the views off.
+ *
+ * @author Tomas Polesovsky
+ */
+public class SortedDirectoryViews {
+
+    public enum SortKey {
+        NAME, MODIFIED_DATE, SIZE
+    }
+
+    /**
+     * Entry of a view with the value it was sorted by.
+     */
+    public static class SortedFile extends TypedFile {
+
+        private static final long serialVersionUID = 1L;
+        private final long sortValue;
+
+        public SortedFile(File parent, String name, boolean directory, long sortValue) {
+            super(parent, name, directory);
+            this.sortValue = sortValue;
+        }
+
+        /**
+         * @return modification time or size at the time of sorting, 0 for
+         * {@link SortKey#NAME}
+         */
+        public long getSortValue() {
+            return sortValue;
+        }
+    }
+    private static Log _log = LogFactoryUtil.getLog(SortedDirectoryViews.class);
+    private static final int VERSION = 2;
+    private static final byte ADDED = 1;
+    private static final byte REMOVED = 2;
+    // views kept in memory
+    private static final int MAX_LOADED = 64;
+    // log records always allowed before the view is rewritten
+    private static final int MIN_LOGGED = 64;
+    private static final int LOCKS = 64;
+    private static final ConcurrentMap<Long, SortedDirectoryViews> _views = new ConcurrentHashMap<Long, SortedDirectoryViews>();
+    private final File viewsDir;
+    private final int minSize;
+    private final long validationInterval;
+    private final Object[] locks = new Object[LOCKS];
+    private final Map<String, View> loaded = new LinkedHashMap<String, View>(MAX_LOADED, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, View> eldest) {
+            return size() > MAX_LOADED;
+        }
+    };
+
+    public SortedDirectoryViews(File viewsDir, int minSize, long validationInterval) {
+        this.viewsDir = viewsDir;
+        this.minSize = minSize;
+        this.validationInterval = validationInterval;
+        for (int i = 0; i < LOCKS; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    public static SortedDirectoryViews getViews(long repositoryId) {
+        SortedDirectoryViews views = _views.get(repositoryId);
+        if (views == null) {
+            File dir = new File(PropsUtil.get(PropsKeys.LIFERAY_HOME), "data" + File.separator + "fsrepo" + File.separator + "views" + File.separator + repositoryId);
+            views = new SortedDirectoryViews(dir, GetterUtil.getInteger(PropsUtil.get(Constants.FSREPO_SORTED_VIEWS_MIN_SIZE), 1000),
+                    GetterUtil.getLong(PropsUtil.get(Constants.FSREPO_SORTED_VIEWS_VALIDATION_INTERVAL), 60000));
+            SortedDirectoryViews previous = _views.putIfAbsent(repositoryId, views);
+            if (previous != null) {
+                views = previous;
+            }
+        }
+        return views;
+    }
+
+    /**
+     * Mirrors the standard comparators, folders have no size.
+     *
+     * @return the value the files are sorted by, 0 for {@link SortKey#NAME}
+     */
+    public static long getSortValue(SortKey key, FileAttributes attributes) {
+        switch (key) {
+            case MODIFIED_DATE:
+                return attributes.getLastModified();
+            case SIZE:
+                return attributes.isDirectory() ? 0 : attributes.getSize();
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return whether a directory with the given number of entries should
+     * have a view
+     */
+    public boolean isViewable(int size) {
+        return minSize >= 0 && size >= minSize;
+    }
+
+    /**
+     * @return the sorted files of the directory as {@link SortedFile}s or
+     * null when there is no valid view
+     */
+    public List<File> get(File dir, SortKey key, boolean ascending) {
+        synchronized (getLock(dir)) {
+            View view = load(dir, key, ascending);
+            if (view == null || view.modified != dir.lastModified()) {
+                return null;
+            }
+            long now = System.currentTimeMillis();
+            if (!view.confirmed) {
+                if (now - view.modified <= DirectoryListingCache.MTIME_GRANULARITY) {
+                    // a change outside the portal within the same mtime tick is still possible
+                    return null;
+                }
+                if (!hasSameNames(dir, view)) {
+                    delete(dir, key, ascending);
+                    return null;
+                }
+                view.confirmed = true;
+            }
+            if (key != SortKey.NAME && now - view.validated > validationInterval) {
+                if (!hasSameValues(key, view)) {
+                    delete(dir, key, ascending);
+                    return null;
+                }
+                view.validated = now;
+            }
+            return Collections.unmodifiableList(view.files);
+        }
+    }
+
+    /**
+     * @param modified modification time of the directory before it was listed
+     * @param files all entries of the directory, sorted
+     * @param values sort values the files were sorted by
+     */
+    public void put(File dir, SortKey key, boolean ascending, long modified, List<File> files, long[] values) {
+        long now = System.currentTimeMillis();
+        if (now - modified <= DirectoryListingCache.MTIME_GRANULARITY) {
+            // a change within the same mtime tick would go unnoticed
+            return;
+        }
+        List<File> copy = new ArrayList<File>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            File file = files.get(i);
+            copy.add(new SortedFile(dir, file.getName(), file.isDirectory(), values[i]));
+        }
+        synchronized (getLock(dir)) {
+            store(dir, key, ascending, new View(dir.getAbsolutePath(), modified, copy, true, now, 0));
+        }
+    }
+
+    /**
+     * Applies a change made by the repository to all views of the directory,
+     * in memory and as a record appended to the log of the view. Views that
+     * were already stale before the change are dropped.
+     *
+     * @param modified modification time of the directory before the change
+     * @param removedName name of the removed entry or null
+     * @param addedFile the added entry or null
+     */
+    public void update(File dir, long modified, String removedName, File addedFile) {
+        synchronized (getLock(dir)) {
+            long changed = dir.lastModified();
+            // a change outside the portal within the same mtime tick would go unnoticed
+            boolean confirmed = System.currentTimeMillis() - changed > DirectoryListingCache.MTIME_GRANULARITY;
+            FileAttributes addedAttributes = addedFile == null ? FileAttributes.MISSING : FileAttributes.read(addedFile);
+            for (SortKey key : SortKey.values()) {
+                for (boolean ascending : new boolean[]{true, false}) {
+                    View view = load(dir, key, ascending);
+                    if (view == null) {
+                        continue;
+                    }
+                    if (view.modified != modified) {
+                        delete(dir, key, ascending);
+                        continue;
+                    }
+                    // readers may still iterate the old list
+                    List<File> files = new ArrayList<File>(view.files);
+                    LogRecords records = new LogRecords();
+                    try {
+                        if (removedName != null) {
+                            for (int i = 0; i < files.size(); i++) {
+                                if (files.get(i).getName().equals(removedName)) {
+                                    files.remove(i);
+                                    records.removed(changed, confirmed, i);
+                                    break;
+                                }
+                            }
+                        }
+                        if (addedAttributes.exists()) {
+                            SortedFile added = new SortedFile(dir, addedFile.getName(), addedAttributes.isDirectory(), getSortValue(key, addedAttributes));
+                            int index = Collections.binarySearch(files, added, getComparator(key, ascending));
+                            index = index < 0 ? -index - 1 : index;
+                            files.add(index, added);
+                            records.added(changed, confirmed, index, added);
+                        }
+                    } catch (IOException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                    View updated = new View(view.dirPath, changed, files, confirmed, view.validated, view.logged + records.count);
+                    if (updated.logged > Math.max(MIN_LOGGED, files.size() / 8)) {
+                        store(dir, key, ascending, updated);
+                    } else if (append(dir, key, ascending, records)) {
+                        synchronized (loaded) {
+                            loaded.put(getViewName(dir, key, ascending), updated);
+                        }
+                    } else {
+                        delete(dir, key, ascending);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all views of the directory, when it's deleted or moved away.
+     */
+    public void remove(File dir) {
+        synchronized (getLock(dir)) {
+            for (SortKey key : SortKey.values()) {
+                delete(dir, key, true);
+                delete(dir, key, false);
+            }
+        }
+    }
+
+    private boolean hasSameNames(File dir, View view) {
+        String[] names = dir.list();
+        if (names == null || names.length != view.files.size()) {
+            return false;
+        }
+        Set<String> listed = new HashSet<String>(Arrays.asList(names));
+        for (File file : view.files) {
+            if (!listed.contains(file.getName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean hasSameValues(SortKey key, View view) {
+        for (File file : view.files) {
+            FileAttributes attributes = FileAttributes.read(file);
+            if (!attributes.exists() || getSortValue(key, attributes) != ((SortedFile) file).getSortValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Comparator<File> getComparator(final SortKey key, final boolean ascending) {
+        return new Comparator<File>() {
+
+            public int compare(File file1, File file2) {
+                return ListingCursor.compare(key, ascending, file1.getName(), ((SortedFile) file1).getSortValue(), file2.getName(), ((SortedFile) file2).getSortValue());
+            }
+        };
+    }
+
+    private Object getLock(File dir) {
+        return locks[(dir.getAbsolutePath().hashCode() & Integer.MAX_VALUE) % LOCKS];
+    }
+
+    private View load(File dir, SortKey key, boolean ascending) {
+        String name = getViewName(dir, key, ascending);
+        synchronized (loaded) {
+            View view = loaded.get(name);
+            if (view != null) {
+                return view;
+            }
+        }
+        File viewFile = new File(viewsDir, name);
+        if (!viewFile.exists()) {
+            return null;
+        }
+        View view;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(viewFile)));
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            String dirPath = in.readUTF();
+            if (!dirPath.equals(dir.getAbsolutePath())) {
+                // digest collision
+                return null;
+            }
+            long modified = in.readLong();
+            boolean confirmed = in.readBoolean();
+            int size = in.readInt();
+            List<File> files = new ArrayList<File>(size);
+            for (int i = 0; i < size; i++) {
+                boolean directory = in.readBoolean();
+                String fileName = in.readUTF();
+                files.add(new SortedFile(dir, fileName, directory, in.readLong()));
+            }
+            view = new View(dirPath, modified, files, confirmed, 0, 0);
+        } catch (IOException ex) {
+            _log.warn("Cannot read sorted view " + viewFile.getAbsolutePath() + ": " + ex.getMessage());
+            return null;
+        } finally {
+            close(in);
+        }
+        view = replay(dir, name, view);
+        if (view == null) {
+            delete(dir, key, ascending);
+            return null;
+        }
+        synchronized (loaded) {
+            loaded.put(name, view);
+        }
+        return view;
+    }
+
+    /**
+     * @return the view with the logged changes applied or null when the log
+     * cannot be applied
+     */
+    private View replay(File dir, String name, View view) {
+        File logFile = new File(viewsDir, name + ".log");
+        if (!logFile.exists()) {
+            return view;
+        }
+        List<File> files = view.files;
+        long modified = view.modified;
+        boolean confirmed = view.confirmed;
+        int logged = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException ex) {
+                    break;
+                }
+                modified = in.readLong();
+                confirmed = in.readBoolean();
+                int index = in.readInt();
+                if (type == REMOVED && index < files.size()) {
+                    files.remove(index);
+                } else if (type == ADDED && index <= files.size()) {
+                    boolean directory = in.readBoolean();
+                    String fileName = in.readUTF();
+                    files.add(index, new SortedFile(dir, fileName, directory, in.readLong()));
+                } else {
+                    return null;
+                }
+                logged++;
+            }
+        } catch (IOException ex) {
+            // a record cut short by a crash
+            _log.warn("Cannot read sorted view log " + logFile.getAbsolutePath() + ": " + ex.getMessage());
+            return null;
+        } finally {
+            close(in);
+        }
+        return new View(view.dirPath, modified, files, confirmed, 0, logged);
+    }
+
+    private boolean append(File dir, SortKey key, boolean ascending, LogRecords records) {
+        File logFile = new File(viewsDir, getViewName(dir, key, ascending) + ".log");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(logFile, true);
+            records.writeTo(out);
+            out.flush();
+            return true;
+        } catch (IOException ex) {
+            _log.warn("Cannot write sorted view log " + logFile.getAbsolutePath() + ": " + ex.getMessage());
+            return false;
+        } finally {
+            close(out);
+        }
+    }
+
+    private void store(File dir, SortKey key, boolean ascending, View view) {
+        String name = getViewName(dir, key, ascending);
+        synchronized (loaded) {
+            loaded.put(name, new View(view.dirPath, view.modified, view.files, view.confirmed, view.validated, 0));
+        }
+        File viewFile = new File(viewsDir, name);
+        File tmpFile = new File(viewsDir, name + ".tmp");
+        viewsDir.mkdirs();
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(VERSION);
+            out.writeUTF(view.dirPath);
+            out.writeLong(view.modified);
+            out.writeBoolean(view.confirmed);
+            out.writeInt(view.files.size());
+            for (File file : view.files) {
+                out.writeBoolean(file.isDirectory());
+                out.writeUTF(file.getName());
+                out.writeLong(((SortedFile) file).getSortValue());
+            }
+            out.flush();
+        } catch (IOException ex) {
+            _log.warn("Cannot write sorted view " + viewFile.getAbsolutePath() + ": " + ex.getMessage());
+            close(out);
+            tmpFile.delete();
+            return;
+        }
+        close(out);
+        // the log goes first, an old log must never be applied to the new view
+        new File(viewsDir, name + ".log").delete();
+        viewFile.delete();
+        if (!tmpFile.renameTo(viewFile)) {
+            _log.warn("Cannot replace sorted view " + viewFile.getAbsolutePath());
+        }
+    }
+
+    private void delete(File dir, SortKey key, boolean ascending) {
+        String name = getViewName(dir, key, ascending);
+        synchronized (loaded) {
+            loaded.remove(name);
+        }
+        new File(viewsDir, name + ".log").delete();
+        new File(viewsDir, name).delete();
+    }
+
+    private String getViewName(File dir, SortKey key, boolean ascending) {
+        return DigesterUtil.digestHex(Constants.HASH_ALG, dir.getAbsolutePath()) + "." + key.name() + (ascending ? ".asc" : ".desc");
+    }
+
+    private void close(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException ex) {
+                _log.warn(ex);
+            }
+        }
+    }
+
+    private void close(OutputStream out) {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                _log.warn(ex);
+            }
+        }
+    }
+
+    /**
+     * Log records of one change, written at once.
+     */
+    private static class LogRecords {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private int count;
+
+        private void removed(long modified, boolean confirmed, int index) throws IOException {
+            out.writeByte(REMOVED);
+            out.writeLong(modified);
+            out.writeBoolean(confirmed);
+            out.writeInt(index);
+            count++;
+        }
+
+        private void added(long modified, boolean confirmed, int index, File file) throws IOException {
+            out.writeByte(ADDED);
+            out.writeLong(modified);
+            out.writeBoolean(confirmed);
+            out.writeInt(index);
+            out.writeBoolean(file.isDirectory());
+            out.writeUTF(file.getName());
+            out.writeLong(((SortedFile) file).getSortValue());
+            count++;
+        }
+
+        private void writeTo(OutputStream target) throws IOException {
+            out.flush();
+            bytes.writeTo(target);
+        }
+    }
+
+    private static class View {
+
+        private final String dirPath;
+        private final long modified;
+        private final List<File> files;
+        private final int logged;
+        // guarded by the lock of the directory
+        private boolean confirmed;
+        private long validated;
+
+        private View(String dirPath, long modified, List<File> files, boolean confirmed, long validated, int logged) {
+            this.dirPath = dirPath;
+            this.modified = modified;
+            this.files = files;
+            this.confirmed = confirmed;
+            this.validated = validated;
+            this.logged = logged;
+        }
+    }
+}
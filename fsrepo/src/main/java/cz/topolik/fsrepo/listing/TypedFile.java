@@ -0,0 +1,44 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo.listing;
+
+import java.io.File;
+
+/**
+ * File with its type known from a listing. The type of a directory entry can
+ * only change by removing and recreating it, which changes the directory, so
+ * unlike size or modification time it's safe to keep as long as the listing.
+ *
+ * @author Tomas Polesovsky
+ */
+public class TypedFile extends File {
+
+    private static final long serialVersionUID = 1L;
+    private final boolean directory;
+
+    public TypedFile(File parent, String name, boolean directory) {
+        super(parent, name);
+        this.directory = directory;
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    @Override
+    public boolean isFile() {
+        return !directory;
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo.mapper;
+
+import com.liferay.portal.kernel.cache.MultiVMPoolUtil;
+import com.liferay.portal.kernel.cache.PortalCache;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * folderId -> parent folderId of one repository together with the mount
+ * folder, so ancestors and breadcrumbs are walked without touching the
+ * database. Top level folders point to the mount folder. It's filled lazily
+ * as parents are resolved, moved, renamed and deleted folders are dropped.
+ *
+ * The map is a cache of the multi VM pool, bounded by its configuration, a
+ * folder dropped after a move is dropped on all cluster nodes.
+ *
+ * @author Tomas Polesovsky
+ */
+public class FileSystemFolderParents {
+
+    private static final String CACHE_NAME = FileSystemFolderParents.class.getName();
+    /**
+     * Key of the mount folder, no folder has ID 0
+     */
+    private static final Long MOUNT_FOLDER_KEY = 0L;
+    private static final ConcurrentMap<Long, FileSystemFolderParents> _parents = new ConcurrentHashMap<Long, FileSystemFolderParents>();
+    private final PortalCache<Long, Long> parentIds;
+
+    public FileSystemFolderParents(long repositoryId) {
+        parentIds = MultiVMPoolUtil.getCache(CACHE_NAME + "." + repositoryId);
+    }
+
+    /**
+     * Shared per repositoryId, repository instances come and go.
+     */
+    public static FileSystemFolderParents getParents(long repositoryId) {
+        FileSystemFolderParents parents = _parents.get(repositoryId);
+        if (parents == null) {
+            parents = new FileSystemFolderParents(repositoryId);
+            FileSystemFolderParents previous = _parents.putIfAbsent(repositoryId, parents);
+            if (previous != null) {
+                parents = previous;
+            }
+        }
+        return parents;
+    }
+
+    public static void removeFolder(long repositoryId, long folderId) {
+        getParents(repositoryId).remove(folderId);
+    }
+
+    /**
+     * Drops the map of a deleted repository.
+     */
+    public static void removeParents(long repositoryId) {
+        getParents(repositoryId).clear();
+        _parents.remove(repositoryId);
+        MultiVMPoolUtil.removeCache(CACHE_NAME + "." + repositoryId);
+    }
+
+    /**
+     * @return ID of the mount folder or 0 when not known yet
+     */
+    public long getMountFolderId() {
+        return getParentId(MOUNT_FOLDER_KEY);
+    }
+
+    public void setMountFolderId(long mountFolderId) {
+        put(MOUNT_FOLDER_KEY, mountFolderId);
+    }
+
+    /**
+     * @return ID of the parent folder or 0 when not known
+     */
+    public long getParentId(long folderId) {
+        Long parentId = parentIds.get(folderId);
+        return parentId == null ? 0 : parentId;
+    }
+
+    public void put(long folderId, long parentId) {
+        parentIds.put(folderId, parentId);
+    }
+
+    public void remove(long folderId) {
+        parentIds.remove(folderId);
+    }
+
+    public void clear() {
+        parentIds.removeAll();
+    }
+}
@@ -0,0 +1,401 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo.mapper;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Prefix tree of the repository paths. Every path is a node with a pointer to
+ * its parent node and an interned name segment, so shared prefixes and
+ * repeated names are held only once. Paths are passed around as int node IDs
+ * and {@link File}s / path Strings are rebuilt only when needed.
+ *
+ * Node IDs are relative to the repository root, which is {@link #ROOT}.
+ * Nodes are created only by the get* methods, lookups of paths that may not
+ * exist go through the find* methods. Nodes of deleted paths are removed and
+ * moved paths keep their node, so the descendants follow the move. IDs of
+ * removed nodes are reused only after {@link #REUSE_THRESHOLD} other nodes
+ * were removed, so an ID a caller still holds doesn't turn into another path
+ * in the meantime. Segments are reference counted by their nodes and dropped
+ * with the last one.
+ *
+ * @author Tomas Polesovsky
+ */
+public class FileSystemPathDictionary {
+
+    public static final int ROOT = 0;
+    public static final int NOT_FOUND = -1;
+    protected static final int REUSE_THRESHOLD = 1024;
+    private static final ConcurrentMap<Long, FileSystemPathDictionary> _dictionaries = new ConcurrentHashMap<Long, FileSystemPathDictionary>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private int[] parents = new int[1024];
+    private int[] segmentIds = new int[1024];
+    private int[] firstChildren = new int[1024];
+    private int[] nextSiblings = new int[1024];
+    private int[] previousSiblings = new int[1024];
+    private final ArrayDeque<Integer> free = new ArrayDeque<Integer>();
+    private int size = 1;
+    private String[] segments = new String[1024];
+    private int[] segmentRefs = new int[1024];
+    private final ArrayDeque<Integer> freeSegments = new ArrayDeque<Integer>();
+    private final Map<String, Integer> segmentIndex = new HashMap<String, Integer>();
+    private final LongLongHashMap children = new LongLongHashMap(1024);
+
+    public FileSystemPathDictionary() {
+        parents[ROOT] = NOT_FOUND;
+        segmentIds[ROOT] = NOT_FOUND;
+        firstChildren[ROOT] = NOT_FOUND;
+        nextSiblings[ROOT] = NOT_FOUND;
+        previousSiblings[ROOT] = NOT_FOUND;
+    }
+
+    public static FileSystemPathDictionary getDictionary(long repositoryId) {
+        FileSystemPathDictionary dictionary = _dictionaries.get(repositoryId);
+        if (dictionary == null) {
+            dictionary = new FileSystemPathDictionary();
+            FileSystemPathDictionary previous = _dictionaries.putIfAbsent(repositoryId, dictionary);
+            if (previous != null) {
+                dictionary = previous;
+            }
+        }
+        return dictionary;
+    }
+
+    /**
+     * @return node of the child, created if not present yet
+     */
+    public int getChildId(int parentId, String name) {
+        int childId = findChildId(parentId, name);
+        if (childId != NOT_FOUND) {
+            return childId;
+        }
+        lock.writeLock().lock();
+        try {
+            int segmentId = getSegmentId(name);
+            long key = childKey(parentId, segmentId);
+            childId = (int) children.get(key, NOT_FOUND);
+            if (childId == NOT_FOUND) {
+                childId = allocate();
+                link(childId, parentId, segmentId);
+                firstChildren[childId] = NOT_FOUND;
+            }
+            return childId;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return node of the child or {@link #NOT_FOUND}
+     */
+    public int findChildId(int parentId, String name) {
+        lock.readLock().lock();
+        try {
+            Integer segmentId = segmentIndex.get(name);
+            if (segmentId == null) {
+                return NOT_FOUND;
+            }
+            return (int) children.get(childKey(parentId, segmentId), NOT_FOUND);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param relativePath path relative to the repository root, starting with
+     * the separator, empty for the root
+     * @return node of the path, created if not present yet
+     */
+    public int getNodeId(String relativePath) {
+        int nodeId = ROOT;
+        int from = 0;
+        while (from < relativePath.length()) {
+            int to = relativePath.indexOf(File.separatorChar, from);
+            if (to == -1) {
+                to = relativePath.length();
+            }
+            if (to > from) {
+                nodeId = getChildId(nodeId, relativePath.substring(from, to));
+            }
+            from = to + 1;
+        }
+        return nodeId;
+    }
+
+    /**
+     * @return node of the path or {@link #NOT_FOUND}
+     */
+    public int findNodeId(String relativePath) {
+        int nodeId = ROOT;
+        int from = 0;
+        while (from < relativePath.length() && nodeId != NOT_FOUND) {
+            int to = relativePath.indexOf(File.separatorChar, from);
+            if (to == -1) {
+                to = relativePath.length();
+            }
+            if (to > from) {
+                nodeId = findChildId(nodeId, relativePath.substring(from, to));
+            }
+            from = to + 1;
+        }
+        return nodeId;
+    }
+
+    /**
+     * Removes the node with all its descendants.
+     *
+     * @return the removed nodes
+     */
+    public int[] remove(int nodeId) {
+        if (nodeId == ROOT) {
+            throw new IllegalArgumentException("Cannot remove the root node");
+        }
+        lock.writeLock().lock();
+        try {
+            if (isRemoved(nodeId)) {
+                return new int[0];
+            }
+            return removeSubtree(nodeId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Moves the node under the new parent with the new name. Nodes already
+     * present on the destination path are removed.
+     *
+     * @return the removed nodes of the destination path
+     */
+    public int[] move(int nodeId, int newParentId, String newName) {
+        if (nodeId == ROOT) {
+            throw new IllegalArgumentException("Cannot move the root node");
+        }
+        lock.writeLock().lock();
+        try {
+            for (int n = newParentId; n != NOT_FOUND; n = parents[n]) {
+                if (n == nodeId) {
+                    throw new IllegalArgumentException("Cannot move node " + nodeId + " under itself");
+                }
+            }
+            int segmentId = getSegmentId(newName);
+            int existing = (int) children.get(childKey(newParentId, segmentId), NOT_FOUND);
+            if (existing == nodeId) {
+                return new int[0];
+            }
+            int[] removed = new int[0];
+            if (existing != NOT_FOUND) {
+                removed = removeSubtree(existing);
+                // the segment may have gone with the replaced node
+                segmentId = getSegmentId(newName);
+            }
+            int oldSegmentId = segmentIds[nodeId];
+            unlink(nodeId);
+            link(nodeId, newParentId, segmentId);
+            releaseSegment(oldSegmentId);
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return parent node or {@link #NOT_FOUND} for the root
+     */
+    public int getParentId(int nodeId) {
+        lock.readLock().lock();
+        try {
+            return parents[nodeId];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public String getName(int nodeId) {
+        lock.readLock().lock();
+        try {
+            return nodeId == ROOT ? "" : segments[segmentIds[nodeId]];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return path relative to the repository root in the same format as
+     * accepted by {@link #getNodeId(String)}, null for a removed node
+     */
+    public String getPath(int nodeId) {
+        lock.readLock().lock();
+        try {
+            if (isRemoved(nodeId)) {
+                return null;
+            }
+            int length = 0;
+            for (int n = nodeId; n != ROOT; n = parents[n]) {
+                length += segments[segmentIds[n]].length() + 1;
+            }
+            char[] path = new char[length];
+            int end = length;
+            for (int n = nodeId; n != ROOT; n = parents[n]) {
+                String segment = segments[segmentIds[n]];
+                end -= segment.length();
+                segment.getChars(0, segment.length(), path, end);
+                path[--end] = File.separatorChar;
+            }
+            return new String(path);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the file or null for a removed node
+     */
+    public File getFile(File rootFolder, int nodeId) {
+        if (nodeId == ROOT) {
+            return rootFolder;
+        }
+        String path = getPath(nodeId);
+        return path == null ? null : new File(rootFolder.getAbsolutePath() + path);
+    }
+
+    /**
+     * @return number of distinct name segments in use
+     */
+    protected int getSegmentCount() {
+        lock.readLock().lock();
+        try {
+            return segmentIndex.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of nodes including the root
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size - free.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private boolean isRemoved(int nodeId) {
+        // descendants of a removed node are removed with it
+        return nodeId != ROOT && segmentIds[nodeId] == NOT_FOUND;
+    }
+
+    private int allocate() {
+        if (free.size() > REUSE_THRESHOLD) {
+            return free.poll();
+        }
+        int nodeId = size++;
+        if (nodeId == parents.length) {
+            parents = Arrays.copyOf(parents, nodeId * 2);
+            segmentIds = Arrays.copyOf(segmentIds, nodeId * 2);
+            firstChildren = Arrays.copyOf(firstChildren, nodeId * 2);
+            nextSiblings = Arrays.copyOf(nextSiblings, nodeId * 2);
+            previousSiblings = Arrays.copyOf(previousSiblings, nodeId * 2);
+        }
+        return nodeId;
+    }
+
+    private void link(int nodeId, int parentId, int segmentId) {
+        parents[nodeId] = parentId;
+        segmentIds[nodeId] = segmentId;
+        previousSiblings[nodeId] = NOT_FOUND;
+        nextSiblings[nodeId] = firstChildren[parentId];
+        if (firstChildren[parentId] != NOT_FOUND) {
+            previousSiblings[firstChildren[parentId]] = nodeId;
+        }
+        firstChildren[parentId] = nodeId;
+        children.put(childKey(parentId, segmentId), nodeId);
+        segmentRefs[segmentId]++;
+    }
+
+    private void unlink(int nodeId) {
+        children.remove(childKey(parents[nodeId], segmentIds[nodeId]), NOT_FOUND);
+        if (previousSiblings[nodeId] == NOT_FOUND) {
+            firstChildren[parents[nodeId]] = nextSiblings[nodeId];
+        } else {
+            nextSiblings[previousSiblings[nodeId]] = nextSiblings[nodeId];
+        }
+        if (nextSiblings[nodeId] != NOT_FOUND) {
+            previousSiblings[nextSiblings[nodeId]] = previousSiblings[nodeId];
+        }
+    }
+
+    private int[] removeSubtree(int nodeId) {
+        unlink(nodeId);
+        int[] removed = new int[16];
+        int count = 0;
+        removed[count++] = nodeId;
+        // the removed array doubles as the queue of nodes to visit
+        for (int i = 0; i < count; i++) {
+            for (int child = firstChildren[removed[i]]; child != NOT_FOUND; child = nextSiblings[child]) {
+                if (count == removed.length) {
+                    removed = Arrays.copyOf(removed, count * 2);
+                }
+                removed[count++] = child;
+                children.remove(childKey(removed[i], segmentIds[child]), NOT_FOUND);
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            releaseSegment(segmentIds[removed[i]]);
+            parents[removed[i]] = NOT_FOUND;
+            segmentIds[removed[i]] = NOT_FOUND;
+            firstChildren[removed[i]] = NOT_FOUND;
+            free.add(removed[i]);
+        }
+        return Arrays.copyOf(removed, count);
+    }
+
+    private int getSegmentId(String name) {
+        Integer segmentId = segmentIndex.get(name);
+        if (segmentId == null) {
+            // no child key refers to a free segment any more
+            segmentId = freeSegments.isEmpty() ? segmentIndex.size() : freeSegments.poll();
+            if (segmentId == segments.length) {
+                segments = Arrays.copyOf(segments, segmentId * 2);
+                segmentRefs = Arrays.copyOf(segmentRefs, segmentId * 2);
+            }
+            segments[segmentId] = name;
+            segmentIndex.put(name, segmentId);
+        }
+        return segmentId;
+    }
+
+    private void releaseSegment(int segmentId) {
+        if (--segmentRefs[segmentId] == 0) {
+            segmentIndex.remove(segments[segmentId]);
+            segments[segmentId] = null;
+            freeSegments.add(segmentId);
+        }
+    }
+
+    private static long childKey(int parentId, int segmentId) {
+        return ((long) parentId << 32) | (segmentId & 0xffffffffL);
+    }
+}
@@ -0,0 +1,463 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo.mapper;
+
+import com.liferay.portal.kernel.dao.jdbc.CurrentConnectionUtil;
+import com.liferay.portal.kernel.dao.jdbc.DataAccess;
+import com.liferay.portal.kernel.dao.orm.DynamicQuery;
+import com.liferay.portal.kernel.dao.orm.DynamicQueryFactoryUtil;
+import com.liferay.portal.kernel.dao.orm.OrderFactoryUtil;
+import com.liferay.portal.kernel.dao.orm.RestrictionsFactoryUtil;
+import com.liferay.portal.kernel.exception.SystemException;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.util.DigesterUtil;
+import com.liferay.portal.kernel.util.InfrastructureUtil;
+import com.liferay.portal.kernel.util.PortalClassLoaderUtil;
+import com.liferay.portlet.expando.model.ExpandoColumn;
+import com.liferay.portlet.expando.model.ExpandoValue;
+import com.liferay.portlet.expando.service.ExpandoValueLocalServiceUtil;
+import cz.topolik.fsrepo.Constants;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistence of the relative path <-> RepositoryEntry mapping.
+ *
+ * Paths are stored in a dedicated table with a hash of the path and a unique
+ * (repositoryId, pathHash) index, so a lookup is an index probe. The indexed
+ * hash of the parent path lets moves find the descendants level by level,
+ * see {@link #moveDescendants(long, String, String)}. Previously
+ * the mapping lived in the Absolute_Path expando column, see
+ * {@link #migrateFromExpando(long, ExpandoColumn)}.
+ *
+ * The table is created by {@link cz.topolik.fsrepo.upgrade.UpgradePathMapping}.
+ * Statements run on the connection of the current transaction, so the
+ * mapping commits or rolls back together with the RepositoryEntry.
+ *
+ * @author Tomas Polesovsky
+ */
+public class FileSystemPathMappingUtil {
+
+    public static final String TABLE_NAME = "FSRepo_PathMapping";
+    public static final String TABLE_SQL_CREATE =
+            "create table " + TABLE_NAME + " (" +
+            "repositoryEntryId LONG not null primary key," +
+            "repositoryId LONG," +
+            "pathHash VARCHAR(64) null," +
+            "parentHash VARCHAR(64) null," +
+            "path_ STRING null" +
+            ");";
+    public static final String INDEX_SQL_CREATE =
+            "create unique index IX_FSREPO_PATH_R_H on " + TABLE_NAME + " (repositoryId, pathHash);";
+    public static final String PARENT_COLUMN_SQL_ADD =
+            "alter table " + TABLE_NAME + " add parentHash VARCHAR(64) null;";
+    public static final String PARENT_INDEX_SQL_CREATE =
+            "create index IX_FSREPO_PATH_R_P on " + TABLE_NAME + " (repositoryId, parentHash);";
+    private static final int BATCH_SIZE = 500;
+    private static Log _log = LogFactoryUtil.getLog(FileSystemPathMappingUtil.class);
+
+    public static String getPathHash(String relativePath) {
+        return DigesterUtil.digestHex(Constants.HASH_ALG, relativePath);
+    }
+
+    /**
+     * @return hash of the path of the parent folder, the root folder is the
+     * empty path
+     */
+    public static String getParentHash(String relativePath) {
+        return getPathHash(relativePath.substring(0, Math.max(0, relativePath.lastIndexOf(File.separatorChar))));
+    }
+
+    /**
+     * @return repositoryEntryId or 0 if the path is not mapped
+     */
+    public static long fetchEntryId(long repositoryId, String relativePath) throws SystemException {
+        Connection con = null;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            con = getConnection();
+            ps = con.prepareStatement("select repositoryEntryId from " + TABLE_NAME + " where repositoryId = ? and pathHash = ?");
+            ps.setLong(1, repositoryId);
+            ps.setString(2, getPathHash(relativePath));
+            rs = ps.executeQuery();
+            return rs.next() ? rs.getLong(1) : 0;
+        } catch (SQLException ex) {
+            throw new SystemException(ex.getMessage(), ex);
+        } finally {
+            cleanUp(con, ps, rs);
+        }
+    }
+
+    /**
+     * @return relative path -> repositoryEntryId of the mapped paths
+     */
+    public static Map<String, Long> fetchEntryIds(long repositoryId, Collection<String> relativePaths) throws SystemException {
+        Map<String, Long> result = new HashMap<String, Long>();
+        if (relativePaths.isEmpty()) {
+            return result;
+        }
+        List<String> paths = new ArrayList<String>(relativePaths);
+        Connection con = null;
+        try {
+            con = getConnection();
+            for (int from = 0; from < paths.size(); from += BATCH_SIZE) {
+                List<String> batch = paths.subList(from, Math.min(paths.size(), from + BATCH_SIZE));
+                Map<String, String> hashes = new HashMap<String, String>();
+                for (String path : batch) {
+                    hashes.put(getPathHash(path), path);
+                }
+
+                StringBuilder sql = new StringBuilder("select pathHash, repositoryEntryId from " + TABLE_NAME + " where repositoryId = ? and pathHash in (");
+                for (int i = 0; i < hashes.size(); i++) {
+                    sql.append(i == 0 ? "?" : ", ?");
+                }
+                sql.append(")");
+
+                PreparedStatement ps = null;
+                ResultSet rs = null;
+                try {
+                    ps = con.prepareStatement(sql.toString());
+                    ps.setLong(1, repositoryId);
+                    int i = 2;
+                    for (String hash : hashes.keySet()) {
+                        ps.setString(i++, hash);
+                    }
+                    rs = ps.executeQuery();
+                    while (rs.next()) {
+                        result.put(hashes.get(rs.getString(1)), rs.getLong(2));
+                    }
+                } finally {
+                    DataAccess.cleanUp(rs);
+                    DataAccess.cleanUp(ps);
+                }
+            }
+            return result;
+        } catch (SQLException ex) {
+            throw new SystemException(ex.getMessage(), ex);
+        } finally {
+            cleanUp(con, null, null);
+        }
+    }
+
+    /**
+     * @return relative path or null if the entry is not mapped
+     */
+    public static String fetchPath(long repositoryId, long repositoryEntryId) throws SystemException {
+        Connection con = null;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            con = getConnection();
+            ps = con.prepareStatement("select path_ from " + TABLE_NAME + " where repositoryId = ? and repositoryEntryId = ?");
+            ps.setLong(1, repositoryId);
+            ps.setLong(2, repositoryEntryId);
+            rs = ps.executeQuery();
+            return rs.next() ? rs.getString(1) : null;
+        } catch (SQLException ex) {
+            throw new SystemException(ex.getMessage(), ex);
+        } finally {
+            cleanUp(con, ps, rs);
+        }
+    }
+
+    /**
+     * @return repositoryEntryId -> relative path of the mapped entries
+     */
+    public static Map<Long, String> fetchPaths(long repositoryId, Collection<Long> repositoryEntryIds) throws SystemException {
+        Map<Long, String> result = new HashMap<Long, String>();
+        if (repositoryEntryIds.isEmpty()) {
+            return result;
+        }
+        List<Long> ids = new ArrayList<Long>(repositoryEntryIds);
+        Connection con = null;
+        try {
+            con = getConnection();
+            for (int from = 0; from < ids.size(); from += BATCH_SIZE) {
+                List<Long> batch = ids.subList(from, Math.min(ids.size(), from + BATCH_SIZE));
+
+                StringBuilder sql = new StringBuilder("select repositoryEntryId, path_ from " + TABLE_NAME + " where repositoryId = ? and repositoryEntryId in (");
+                for (int i = 0; i < batch.size(); i++) {
+                    sql.append(i == 0 ? "?" : ", ?");
+                }
+                sql.append(")");
+
+                PreparedStatement ps = null;
+                ResultSet rs = null;
+                try {
+                    ps = con.prepareStatement(sql.toString());
+                    ps.setLong(1, repositoryId);
+                    int i = 2;
+                    for (Long id : batch) {
+                        ps.setLong(i++, id);
+                    }
+                    rs = ps.executeQuery();
+                    while (rs.next()) {
+                        result.put(rs.getLong(1), rs.getString(2));
+                    }
+                } finally {
+                    DataAccess.cleanUp(rs);
+                    DataAccess.cleanUp(ps);
+                }
+            }
+            return result;
+        } catch (SQLException ex) {
+            throw new SystemException(ex.getMessage(), ex);
+        } finally {
+            cleanUp(con, null, null);
+        }
+    }
+
+    /**
+     * Maps the entry to the path, previous mapping of the entry or of the path
+     * (stale entry of a file that was replaced on the disk) is dropped.
+     */
+    public static void update(long repositoryId, long repositoryEntryId, String relativePath) throws SystemException {
+        Map<Long, String> mappings = new HashMap<Long, String>();
+        mappings.put(repositoryEntryId, relativePath);
+        updateAll(repositoryId, mappings);
+    }
+
+    /**
+     * Same as {@link #update(long, long, String)} for many entries, in
+     * three batched statements.
+     */
+    public static void updateAll(long repositoryId, Map<Long, String> mappings) throws SystemException {
+        if (mappings.isEmpty()) {
+            return;
+        }
+        Connection con = null;
+        PreparedStatement deleteEntry = null;
+        PreparedStatement deletePath = null;
+        PreparedStatement insert = null;
+        try {
+            con = getConnection();
+            deleteEntry = con.prepareStatement("delete from " + TABLE_NAME + " where repositoryEntryId = ?");
+            deletePath = con.prepareStatement("delete from " + TABLE_NAME + " where repositoryId = ? and pathHash = ?");
+            insert = con.prepareStatement("insert into " + TABLE_NAME + " (repositoryEntryId, repositoryId, pathHash, parentHash, path_) values (?, ?, ?, ?, ?)");
+            for (Map.Entry<Long, String> mapping : mappings.entrySet()) {
+                String hash = getPathHash(mapping.getValue());
+                deleteEntry.setLong(1, mapping.getKey());
+                deleteEntry.addBatch();
+                deletePath.setLong(1, repositoryId);
+                deletePath.setString(2, hash);
+                deletePath.addBatch();
+                insert.setLong(1, mapping.getKey());
+                insert.setLong(2, repositoryId);
+                insert.setString(3, hash);
+                insert.setString(4, getParentHash(mapping.getValue()));
+                insert.setString(5, mapping.getValue());
+                insert.addBatch();
+            }
+            deleteEntry.executeBatch();
+            deletePath.executeBatch();
+            insert.executeBatch();
+        } catch (SQLException ex) {
+            throw new SystemException(ex.getMessage(), ex);
+        } finally {
+            DataAccess.cleanUp(deleteEntry);
+            DataAccess.cleanUp(deletePath);
+            DataAccess.cleanUp(insert);
+            cleanUp(con, null, null);
+        }
+    }
+
+    /**
+     * Re-maps all entries below the moved or renamed folder to the new path,
+     * the mapping of the folder itself is updated by
+     * {@link #update(long, long, String)}. The descendants are read one level
+     * at a time through the parent hash index.
+     *
+     * @return number of re-mapped entries
+     */
+    public static int moveDescendants(long repositoryId, String oldPath, String newPath) throws SystemException {
+        Map<Long, String> mappings = new HashMap<Long, String>();
+        List<String> level = new ArrayList<String>();
+        level.add(oldPath);
+        Connection con = null;
+        try {
+            con = getConnection();
+            while (!level.isEmpty()) {
+                List<String> children = new ArrayList<String>();
+                for (int from = 0; from < level.size(); from += BATCH_SIZE) {
+                    List<String> batch = level.subList(from, Math.min(level.size(), from + BATCH_SIZE));
+
+                    StringBuilder sql = new StringBuilder("select repositoryEntryId, path_ from " + TABLE_NAME + " where repositoryId = ? and parentHash in (");
+                    for (int i = 0; i < batch.size(); i++) {
+                        sql.append(i == 0 ? "?" : ", ?");
+                    }
+                    sql.append(")");
+
+                    PreparedStatement ps = null;
+                    ResultSet rs = null;
+                    try {
+                        ps = con.prepareStatement(sql.toString());
+                        ps.setLong(1, repositoryId);
+                        int i = 2;
+                        for (String path : batch) {
+                            ps.setString(i++, getPathHash(path));
+                        }
+                        rs = ps.executeQuery();
+                        while (rs.next()) {
+                            String path = rs.getString(2);
+                            if (path != null && path.startsWith(oldPath + File.separatorChar)) {
+                                mappings.put(rs.getLong(1), newPath + path.substring(oldPath.length()));
+                                children.add(path);
+                            }
+                        }
+                    } finally {
+                        DataAccess.cleanUp(rs);
+                        DataAccess.cleanUp(ps);
+                    }
+                }
+                level = children;
+            }
+        } catch (SQLException ex) {
+            throw new SystemException(ex.getMessage(), ex);
+        } finally {
+            cleanUp(con, null, null);
+        }
+        updateAll(repositoryId, mappings);
+        return mappings.size();
+    }
+
+    public static void remove(long repositoryEntryId) throws SystemException {
+        Connection con = null;
+        PreparedStatement ps = null;
+        try {
+            con = getConnection();
+            ps = con.prepareStatement("delete from " + TABLE_NAME + " where repositoryEntryId = ?");
+            ps.setLong(1, repositoryEntryId);
+            ps.executeUpdate();
+        } catch (SQLException ex) {
+            throw new SystemException(ex.getMessage(), ex);
+        } finally {
+            cleanUp(con, ps, null);
+        }
+    }
+
+    /**
+     * Copies "repositoryId-relativePath" values of the old Absolute_Path
+     * expando column into the mapping table. Expando values are left untouched.
+     *
+     * @return number of migrated entries
+     */
+    public static int migrateFromExpando(long repositoryId, ExpandoColumn column) throws SystemException {
+        String prefix = repositoryId + "-";
+        int migrated = 0;
+        int start = 0;
+        while (true) {
+            DynamicQuery query = DynamicQueryFactoryUtil.forClass(ExpandoValue.class, PortalClassLoaderUtil.getClassLoader());
+            query.add(RestrictionsFactoryUtil.eq("columnId", column.getColumnId()));
+            query.add(RestrictionsFactoryUtil.like("data", prefix + "%"));
+            query.addOrder(OrderFactoryUtil.asc("classPK"));
+            List<?> values = ExpandoValueLocalServiceUtil.dynamicQuery(query, start, start + BATCH_SIZE);
+
+            // duplicates - the oldest entry wins
+            Map<String, Long> page = new LinkedHashMap<String, Long>();
+            for (Object o : values) {
+                ExpandoValue value = (ExpandoValue) o;
+                String path = value.getData().substring(prefix.length());
+                if (!page.containsKey(path)) {
+                    page.put(path, value.getClassPK());
+                }
+            }
+            Map<String, Long> existing = fetchEntryIds(repositoryId, page.keySet());
+            Map<Long, String> mappings = new HashMap<Long, String>();
+            for (Map.Entry<String, Long> entry : page.entrySet()) {
+                if (!existing.containsKey(entry.getKey())) {
+                    mappings.put(entry.getValue(), entry.getKey());
+                }
+            }
+            updateAll(repositoryId, mappings);
+            migrated += mappings.size();
+
+            if (values.size() < BATCH_SIZE) {
+                break;
+            }
+            start += BATCH_SIZE;
+        }
+        return migrated;
+    }
+
+    /**
+     * Fills the parent hash of the mappings created before the column
+     * existed.
+     *
+     * @return number of updated mappings
+     */
+    public static int updateParentHashes() throws SystemException {
+        int updated = 0;
+        Connection con = null;
+        PreparedStatement ps = null;
+        PreparedStatement update = null;
+        ResultSet rs = null;
+        try {
+            con = getConnection();
+            ps = con.prepareStatement("select repositoryEntryId, path_ from " + TABLE_NAME + " where parentHash is null and path_ is not null");
+            update = con.prepareStatement("update " + TABLE_NAME + " set parentHash = ? where repositoryEntryId = ?");
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                update.setString(1, getParentHash(rs.getString(2)));
+                update.setLong(2, rs.getLong(1));
+                update.addBatch();
+                if (++updated % BATCH_SIZE == 0) {
+                    update.executeBatch();
+                }
+            }
+            update.executeBatch();
+        } catch (SQLException ex) {
+            throw new SystemException(ex.getMessage(), ex);
+        } finally {
+            DataAccess.cleanUp(update);
+            cleanUp(con, ps, rs);
+        }
+        return updated;
+    }
+
+    /**
+     * @return connection of the current transaction, or a new one outside of
+     * a transaction
+     */
+    protected static Connection getConnection() throws SQLException {
+        Connection con = CurrentConnectionUtil.getConnection(InfrastructureUtil.getDataSource());
+        if (con != null) {
+            return con;
+        }
+        return DataAccess.getConnection();
+    }
+
+    /**
+     * Closes the statement and the result set, the connection only when it
+     * doesn't belong to the current transaction.
+     */
+    protected static void cleanUp(Connection con, Statement s, ResultSet rs) {
+        DataAccess.cleanUp(rs);
+        DataAccess.cleanUp(s);
+        if (con != null && con != CurrentConnectionUtil.getConnection(InfrastructureUtil.getDataSource())) {
+            DataAccess.cleanUp(con);
+        }
+    }
+}
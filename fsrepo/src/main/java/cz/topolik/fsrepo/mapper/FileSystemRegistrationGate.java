@@ -0,0 +1,217 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo.mapper;
+
+import com.liferay.portal.kernel.exception.SystemException;
+import com.liferay.portal.kernel.transaction.TransactionCommitCallbackRegistryUtil;
+import com.liferay.portal.model.RepositoryEntry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serializes registration of new RepositoryEntries per path.
+ *
+ * Concurrent callers registering the same path join the one registration in
+ * flight and share its result once the transaction of the registration
+ * commits. Registrations run under a lock striped by the
+ * {@link FileSystemPathDictionary} node, so a single registration and a batch
+ * registration of the same path never run at the same time. Lookups of
+ * already registered paths don't go through the gate at all.
+ *
+ * A registration whose transaction rolls back never releases its waiters,
+ * they give up after {@link #COMMIT_TIMEOUT} ms and register the path again.
+ *
+ * @author Tomas Polesovsky
+ */
+public class FileSystemRegistrationGate {
+
+    private static final int STRIPES = 64;
+    private static final long COMMIT_TIMEOUT = 10000;
+    private static final ConcurrentMap<Long, FileSystemRegistrationGate> _gates = new ConcurrentHashMap<Long, FileSystemRegistrationGate>();
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+    private final ConcurrentMap<Integer, Registration> inFlight = new ConcurrentHashMap<Integer, Registration>();
+
+    public FileSystemRegistrationGate() {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    public static FileSystemRegistrationGate getGate(long repositoryId) {
+        FileSystemRegistrationGate gate = _gates.get(repositoryId);
+        if (gate == null) {
+            gate = new FileSystemRegistrationGate();
+            FileSystemRegistrationGate previous = _gates.putIfAbsent(repositoryId, gate);
+            if (previous != null) {
+                gate = previous;
+            }
+        }
+        return gate;
+    }
+
+    /**
+     * Runs the registration of the node, or waits for the one already running
+     * until it commits. The registration must check first whether the node
+     * wasn't registered in the meantime.
+     */
+    public RepositoryEntry register(int nodeId, Callable<RepositoryEntry> registration) throws SystemException {
+        while (true) {
+            Registration created = new Registration(registration);
+            Registration running = inFlight.putIfAbsent(nodeId, created);
+            if (running == null) {
+                return run(nodeId, created);
+            }
+            if (running.await()) {
+                return running.getResult();
+            }
+            // rolled back or still not committed, try again
+            inFlight.remove(nodeId, running);
+        }
+    }
+
+    /**
+     * Waits for the registrations of the nodes in flight to commit, before a
+     * batch registration of the nodes.
+     */
+    public void await(int[] nodeIds) throws SystemException {
+        for (int nodeId : nodeIds) {
+            Registration running = inFlight.get(nodeId);
+            if (running != null && !running.await()) {
+                inFlight.remove(nodeId, running);
+            }
+        }
+    }
+
+    /**
+     * Locks stripes of all the nodes for a batch registration, always in the
+     * same order to avoid dead locks.
+     *
+     * @return locked stripes, to be passed to {@link #unlock(int[])}
+     */
+    public int[] lock(int[] nodeIds) {
+        boolean[] used = new boolean[STRIPES];
+        int count = 0;
+        for (int nodeId : nodeIds) {
+            int stripe = getStripe(nodeId);
+            if (!used[stripe]) {
+                used[stripe] = true;
+                count++;
+            }
+        }
+        int[] stripes = new int[count];
+        for (int i = 0, j = 0; i < STRIPES; i++) {
+            if (used[i]) {
+                stripes[j++] = i;
+            }
+        }
+        for (int stripe : stripes) {
+            locks[stripe].lock();
+        }
+        return stripes;
+    }
+
+    public void unlock(int[] stripes) {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            locks[stripes[i]].unlock();
+        }
+    }
+
+    protected ReentrantLock getLock(int nodeId) {
+        return locks[getStripe(nodeId)];
+    }
+
+    protected int getStripe(int nodeId) {
+        int h = nodeId * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    private RepositoryEntry run(final int nodeId, final Registration registration) throws SystemException {
+        ReentrantLock lock = getLock(nodeId);
+        lock.lock();
+        try {
+            registration.task.run();
+        } finally {
+            lock.unlock();
+        }
+        RepositoryEntry result;
+        try {
+            result = registration.getResult();
+        } catch (SystemException ex) {
+            release(nodeId, registration);
+            throw ex;
+        } catch (RuntimeException ex) {
+            release(nodeId, registration);
+            throw ex;
+        }
+        TransactionCommitCallbackRegistryUtil.registerCallback(new Callable<Void>() {
+
+            public Void call() {
+                release(nodeId, registration);
+                return null;
+            }
+        });
+        return result;
+    }
+
+    private void release(int nodeId, Registration registration) {
+        inFlight.remove(nodeId, registration);
+        registration.released.countDown();
+    }
+
+    private static class Registration {
+
+        private final FutureTask<RepositoryEntry> task;
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        private Registration(Callable<RepositoryEntry> registration) {
+            task = new FutureTask<RepositoryEntry>(registration);
+        }
+
+        /**
+         * @return false when the registration wasn't released in time
+         */
+        private boolean await() throws SystemException {
+            try {
+                return released.await(COMMIT_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new SystemException(ex.getMessage(), ex);
+            }
+        }
+
+        private RepositoryEntry getResult() throws SystemException {
+            try {
+                return task.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new SystemException(ex.getMessage(), ex);
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof SystemException) {
+                    throw (SystemException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new SystemException(cause.getMessage(), cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo.mapper;
+
+import com.liferay.portal.kernel.util.GetterUtil;
+import com.liferay.portal.kernel.util.PropsUtil;
+import cz.topolik.fsrepo.Constants;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory bidirectional index path <-> RepositoryEntry ID of one
+ * repository. Paths are {@link FileSystemPathDictionary} nodes. It's filled
+ * lazily by the repository as entries are resolved from the database and kept
+ * in sync on add / move / rename / delete.
+ *
+ * UUIDs of the indexed entries are kept as well, so a warm path lookup needs
+ * no RepositoryEntry fetch. The index holds at most
+ * {@link Constants#FSREPO_ENTRY_INDEX_SIZE} entries (default 100000), when
+ * full it's cleared and filled again from the database.
+ *
+ * @author Tomas Polesovsky
+ */
+public class FileSystemRepositoryEntryIndex {
+
+    private static final ConcurrentMap<Long, FileSystemRepositoryEntryIndex> _indexes = new ConcurrentHashMap<Long, FileSystemRepositoryEntryIndex>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final LongLongHashMap nodeToEntryId = new LongLongHashMap(1024);
+    private final LongLongHashMap entryIdToNode = new LongLongHashMap(1024);
+    private final LongLongHashMap uuidsMostSigBits = new LongLongHashMap(1024);
+    private final LongLongHashMap uuidsLeastSigBits = new LongLongHashMap(1024);
+    private final int maxSize;
+
+    public FileSystemRepositoryEntryIndex() {
+        this(GetterUtil.getInteger(PropsUtil.get(Constants.FSREPO_ENTRY_INDEX_SIZE), 100000));
+    }
+
+    public FileSystemRepositoryEntryIndex(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Repository instances are created by the portal on demand, the index must
+     * survive them so it's shared per repositoryId.
+     */
+    public static FileSystemRepositoryEntryIndex getIndex(long repositoryId) {
+        FileSystemRepositoryEntryIndex index = _indexes.get(repositoryId);
+        if (index == null) {
+            index = new FileSystemRepositoryEntryIndex();
+            FileSystemRepositoryEntryIndex previous = _indexes.putIfAbsent(repositoryId, index);
+            if (previous != null) {
+                index = previous;
+            }
+        }
+        return index;
+    }
+
+    public static void removeEntry(long repositoryId, long entryId) {
+        FileSystemRepositoryEntryIndex index = _indexes.get(repositoryId);
+        if (index != null) {
+            index.remove(entryId);
+        }
+    }
+
+    /**
+     * @return entry ID or 0 when the node is not indexed
+     */
+    public long getEntryId(int nodeId) {
+        lock.readLock().lock();
+        try {
+            return nodeToEntryId.get(nodeId, 0);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return node or {@link FileSystemPathDictionary#NOT_FOUND} when the entry
+     * is not indexed
+     */
+    public int getNodeId(long entryId) {
+        lock.readLock().lock();
+        try {
+            return (int) entryIdToNode.get(entryId, FileSystemPathDictionary.NOT_FOUND);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return UUID of the entry or null when the entry or its UUID is not
+     * indexed
+     */
+    public String getUuid(long entryId) {
+        lock.readLock().lock();
+        try {
+            long leastSigBits = uuidsLeastSigBits.get(entryId, 0);
+            if (leastSigBits == 0) {
+                return null;
+            }
+            return new UUID(uuidsMostSigBits.get(entryId, 0), leastSigBits).toString();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void put(int nodeId, long entryId) {
+        put(nodeId, entryId, null);
+    }
+
+    /**
+     * @param uuid UUID of the entry, null keeps the one already indexed
+     */
+    public void put(int nodeId, long entryId, String uuid) {
+        lock.writeLock().lock();
+        try {
+            if (entryIdToNode.size() >= maxSize && entryIdToNode.get(entryId, FileSystemPathDictionary.NOT_FOUND) == FileSystemPathDictionary.NOT_FOUND) {
+                clearAll();
+            }
+            long oldNodeId = entryIdToNode.get(entryId, FileSystemPathDictionary.NOT_FOUND);
+            if (oldNodeId != FileSystemPathDictionary.NOT_FOUND && oldNodeId != nodeId && nodeToEntryId.get(oldNodeId, 0) == entryId) {
+                nodeToEntryId.remove(oldNodeId, 0);
+            }
+            long oldEntryId = nodeToEntryId.get(nodeId, 0);
+            if (oldEntryId != 0 && oldEntryId != entryId) {
+                removeEntryId(oldEntryId);
+            }
+            entryIdToNode.put(entryId, nodeId);
+            nodeToEntryId.put(nodeId, entryId);
+            if (uuid != null) {
+                putUuid(entryId, uuid);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(long entryId) {
+        lock.writeLock().lock();
+        try {
+            long nodeId = entryIdToNode.get(entryId, FileSystemPathDictionary.NOT_FOUND);
+            if (nodeId != FileSystemPathDictionary.NOT_FOUND && nodeToEntryId.get(nodeId, 0) == entryId) {
+                nodeToEntryId.remove(nodeId, 0);
+            }
+            removeEntryId(entryId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops the mappings of removed {@link FileSystemPathDictionary} nodes.
+     */
+    public void removeNodes(int[] nodeIds) {
+        lock.writeLock().lock();
+        try {
+            for (int nodeId : nodeIds) {
+                long entryId = nodeToEntryId.remove(nodeId, 0);
+                if (entryId != 0 && entryIdToNode.get(entryId, FileSystemPathDictionary.NOT_FOUND) == nodeId) {
+                    removeEntryId(entryId);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            clearAll();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return entryIdToNode.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void putUuid(long entryId, String uuid) {
+        try {
+            UUID parsed = UUID.fromString(uuid);
+            if (parsed.getLeastSignificantBits() != 0 && parsed.toString().equals(uuid)) {
+                uuidsMostSigBits.put(entryId, parsed.getMostSignificantBits());
+                uuidsLeastSigBits.put(entryId, parsed.getLeastSignificantBits());
+                return;
+            }
+        } catch (IllegalArgumentException ex) {
+            // not a standard UUID, always fetched with the entry
+        }
+        uuidsMostSigBits.remove(entryId, 0);
+        uuidsLeastSigBits.remove(entryId, 0);
+    }
+
+    private void removeEntryId(long entryId) {
+        entryIdToNode.remove(entryId, 0);
+        uuidsMostSigBits.remove(entryId, 0);
+        uuidsLeastSigBits.remove(entryId, 0);
+    }
+
+    private void clearAll() {
+        nodeToEntryId.clear();
+        entryIdToNode.clear();
+        uuidsMostSigBits.clear();
+        uuidsLeastSigBits.clear();
+    }
+}
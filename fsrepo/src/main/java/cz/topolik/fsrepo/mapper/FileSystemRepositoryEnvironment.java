@@ -22,8 +22,44 @@ import cz.topolik.fsrepo.LocalFileSystemRepository;
 public class FileSystemRepositoryEnvironment {
     private FileSystemRepositoryMapper mapper;
     private FileSystemRepositoryIndexer indexer;
+    private FileSystemRepositoryEntryIndex entryIndex;
+    private FileSystemPathDictionary dictionary;
+    private FileSystemFolderParents folderParents;
+    private FileSystemRegistrationGate registrationGate;
     private LocalFileSystemRepository repository;
 
+    public FileSystemPathDictionary getDictionary() {
+        return dictionary;
+    }
+
+    public void setDictionary(FileSystemPathDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    public FileSystemFolderParents getFolderParents() {
+        return folderParents;
+    }
+
+    public void setFolderParents(FileSystemFolderParents folderParents) {
+        this.folderParents = folderParents;
+    }
+
+    public FileSystemRepositoryEntryIndex getEntryIndex() {
+        return entryIndex;
+    }
+
+    public void setEntryIndex(FileSystemRepositoryEntryIndex entryIndex) {
+        this.entryIndex = entryIndex;
+    }
+
+    public FileSystemRegistrationGate getRegistrationGate() {
+        return registrationGate;
+    }
+
+    public void setRegistrationGate(FileSystemRegistrationGate registrationGate) {
+        this.registrationGate = registrationGate;
+    }
+
     public FileSystemRepositoryIndexer getIndexer() {
         return indexer;
     }
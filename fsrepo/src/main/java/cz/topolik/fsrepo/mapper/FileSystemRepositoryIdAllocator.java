@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo.mapper;
+
+import com.liferay.counter.model.Counter;
+import com.liferay.counter.service.CounterLocalServiceUtil;
+import com.liferay.portal.kernel.exception.SystemException;
+import com.liferay.portal.kernel.util.GetterUtil;
+import com.liferay.portal.kernel.util.PropsUtil;
+import cz.topolik.fsrepo.Constants;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out RepositoryEntry IDs from blocks reserved in the portal counter.
+ *
+ * RepositoryEntry IDs are used as folder / file entry IDs, so they must come
+ * from the default counter shared with DLFolder and DLFileEntry. A block is
+ * reserved with one {@code increment(name, size)} call and persisted by the
+ * counter before any ID is used, so IDs are never handed out twice - the
+ * unused rest of a block is simply skipped after restart.
+ *
+ * @author Tomas Polesovsky
+ */
+public class FileSystemRepositoryIdAllocator {
+
+    private static final FileSystemRepositoryIdAllocator _instance = new FileSystemRepositoryIdAllocator(
+            GetterUtil.getInteger(PropsUtil.get(Constants.FSREPO_ID_BLOCK_SIZE), 100));
+    private final int blockSize;
+    private volatile Block block;
+
+    public FileSystemRepositoryIdAllocator(int blockSize) {
+        this.blockSize = Math.max(1, blockSize);
+    }
+
+    public static FileSystemRepositoryIdAllocator getInstance() {
+        return _instance;
+    }
+
+    public long nextId() throws SystemException {
+        while (true) {
+            Block current = block;
+            if (current != null) {
+                long id = current.cursor.incrementAndGet();
+                if (id <= current.max) {
+                    return id;
+                }
+            }
+            synchronized (this) {
+                if (block == current) {
+                    block = reserve(blockSize);
+                }
+            }
+        }
+    }
+
+    /**
+     * Bigger requests are reserved in one counter call and don't touch the
+     * shared block.
+     */
+    public long[] nextIds(int count) throws SystemException {
+        long[] result = new long[count];
+        if (count > blockSize) {
+            Block reserved = reserve(count);
+            for (int i = 0; i < count; i++) {
+                result[i] = reserved.cursor.incrementAndGet();
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                result[i] = nextId();
+            }
+        }
+        return result;
+    }
+
+    protected Block reserve(int size) throws SystemException {
+        long max = CounterLocalServiceUtil.increment(Counter.class.getName(), size);
+        return new Block(max - size, max);
+    }
+
+    private static class Block {
+        private final AtomicLong cursor;
+        private final long max;
+
+        private Block(long lastUsed, long max) {
+            this.cursor = new AtomicLong(lastUsed);
+            this.max = max;
+        }
+    }
+}
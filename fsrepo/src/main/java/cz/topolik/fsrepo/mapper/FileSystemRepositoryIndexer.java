@@ -23,6 +23,7 @@ import com.liferay.portal.service.UserLocalServiceUtil;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -34,16 +35,31 @@ public class FileSystemRepositoryIndexer {
     private static Log _log = LogFactoryUtil.getLog(FileSystemRepositoryIndexer.class);
     private FileSystemRepositoryEnvironment environment;
     private Thread asyncThread;
-    private final List<File> filesToIndex = new ArrayList<File>();
+    /**
+     * {@link FileSystemPathDictionary} nodes, paths are rebuilt only when needed
+     */
+    private final IndexQueue filesToIndex = new IndexQueue();
 
     public FileSystemRepositoryIndexer(FileSystemRepositoryEnvironment environment) {
         this.environment = environment;
     }
 
     public List<File> getActuallyIndexedFiles() {
+        File rootFolder;
+        try {
+            rootFolder = environment.getRepository().getRootFolder();
+        } catch (FileNotFoundException ex) {
+            _log.error(ex);
+            return new ArrayList<File>();
+        }
         synchronized (filesToIndex) {
-            List<File> result = new ArrayList<File>(filesToIndex.size());
-            result.addAll(filesToIndex);
+            List<File> result = new ArrayList<File>(filesToIndex.size);
+            for (int i = 0; i < filesToIndex.size; i++) {
+                File file = environment.getDictionary().getFile(rootFolder, filesToIndex.nodeIds[i]);
+                if (file != null) {
+                    result.add(file);
+                }
+            }
             return result;
         }
     }
@@ -81,11 +97,11 @@ public class FileSystemRepositoryIndexer {
                                 _log.info("Indexing file system repository of: " + rootFolder);
                             }
 
-                            FileSystemRepositoryIndexer.this.run(rootFolder);
+                            FileSystemRepositoryIndexer.this.run(rootFolder, FileSystemPathDictionary.ROOT);
 
                             if (!isInterrupted()) {
                                 synchronized (filesToIndex) {
-                                    environment.getMapper().addAll(filesToIndex);
+                                    environment.getMapper().addAll(filesToIndex.nodeIds, filesToIndex.size);
                                     filesToIndex.clear();
                                 }
                             }
@@ -105,9 +121,9 @@ public class FileSystemRepositoryIndexer {
                 asyncThread.start();
             } else {
                 try {
-                    run(environment.getRepository().getRootFolder());
+                    run(rootFolder, FileSystemPathDictionary.ROOT);
                     synchronized (filesToIndex) {
-                        environment.getMapper().addAll(filesToIndex);
+                        environment.getMapper().addAll(filesToIndex.nodeIds, filesToIndex.size);
                         filesToIndex.clear();
                     }
                 } finally {
@@ -125,24 +141,45 @@ public class FileSystemRepositoryIndexer {
         }
     }
 
-    protected void run(File file) {
+    protected void run(File file, int nodeId) {
         if (asyncThread == null || !asyncThread.isInterrupted()) {
-            index(file);
+            index(file, nodeId);
 
             if (file.isDirectory() && file.canRead()) {
-                for (File subFolder : file.listFiles()) {
-                    run(subFolder);
+                String[] names = file.list();
+                if (names == null) {
+                    return;
+                }
+                for (String name : names) {
+                    run(new File(file, name), environment.getDictionary().getChildId(nodeId, name));
                 }
             }
         }
     }
 
-    protected void index(File file) {
+    protected void index(File file, int nodeId) {
         if (_log.isDebugEnabled()) {
             _log.debug("Indexing: " + file.getAbsolutePath());
         }
         synchronized (filesToIndex) {
-            filesToIndex.add(file);
+            filesToIndex.add(nodeId);
+        }
+    }
+
+    private static class IndexQueue {
+        private int[] nodeIds = new int[1024];
+        private int size;
+
+        private void add(int nodeId) {
+            if (size == nodeIds.length) {
+                nodeIds = Arrays.copyOf(nodeIds, size * 2);
+            }
+            nodeIds[size++] = nodeId;
+        }
+
+        private void clear() {
+            nodeIds = new int[1024];
+            size = 0;
         }
     }
 }
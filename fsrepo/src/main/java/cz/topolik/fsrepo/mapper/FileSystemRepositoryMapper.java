@@ -23,7 +23,6 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.List;
 import javax.portlet.PortletPreferences;
 import javax.portlet.ReadOnlyException;
 import javax.portlet.ValidatorException;
@@ -85,10 +84,20 @@ public class FileSystemRepositoryMapper {
         fileToMappedId(file);
     }
 
-    public void addAll(List<File> files) {
+    /**
+     * @param nodeIds {@link FileSystemPathDictionary} nodes
+     * @param count number of valid items in nodeIds
+     */
+    public void addAll(int[] nodeIds, int count) {
         PortletPreferences prefs = getPrefs();
         try {
-            for (File file : files) {
+            File rootFolder = environment.getRepository().getRootFolder();
+            for (int i = 0; i < count; i++) {
+                File file = environment.getDictionary().getFile(rootFolder, nodeIds[i]);
+                if (file == null) {
+                    // removed in the meantime
+                    continue;
+                }
                 String checksum = fileToMappedId(file, false);
                 prefs.setValue(checksum, file.getAbsolutePath());
             }
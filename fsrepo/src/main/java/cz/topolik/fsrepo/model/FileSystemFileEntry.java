@@ -22,7 +22,6 @@ import com.liferay.portal.kernel.repository.model.FileEntry;
 import com.liferay.portal.kernel.repository.model.FileVersion;
 import com.liferay.portal.kernel.repository.model.Folder;
 import com.liferay.portal.kernel.util.FileUtil;
-import com.liferay.portal.kernel.util.MimeTypesUtil;
 import com.liferay.portal.kernel.util.StringPool;
 import com.liferay.portal.model.Lock;
 import com.liferay.portal.security.auth.PrincipalThreadLocal;
@@ -31,6 +30,7 @@ import com.liferay.portlet.documentlibrary.model.DLFileEntryConstants;
 import com.liferay.portlet.documentlibrary.service.DLAppHelperLocalServiceUtil;
 import com.liferay.portlet.documentlibrary.util.DLUtil;
 import cz.topolik.fsrepo.LocalFileSystemRepository;
+import cz.topolik.fsrepo.listing.MimeTypeFilter;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -135,7 +135,7 @@ public class FileSystemFileEntry extends FileSystemModel implements FileEntry {
     }
 
     public String getMimeType() {
-        return MimeTypesUtil.getContentType(localFile.getName());
+        return MimeTypeFilter.getContentType(localFile.getName());
     }
 
     public String getMimeType(String version) {
@@ -147,7 +147,7 @@ public class FileSystemFileEntry extends FileSystemModel implements FileEntry {
     }
 
     public long getSize() {
-        return localFile.length();
+        return getFileAttributes().getSize();
     }
 
     public String getTitle() {
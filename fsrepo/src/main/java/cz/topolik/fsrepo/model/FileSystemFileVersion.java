@@ -21,7 +21,6 @@ import com.liferay.portal.kernel.log.LogFactoryUtil;
 import com.liferay.portal.kernel.repository.model.FileEntry;
 import com.liferay.portal.kernel.repository.model.FileVersion;
 import com.liferay.portal.kernel.util.FileUtil;
-import com.liferay.portal.kernel.util.MimeTypesUtil;
 import com.liferay.portal.kernel.util.StringPool;
 import com.liferay.portal.security.auth.PrincipalThreadLocal;
 import com.liferay.portlet.documentlibrary.model.DLFileEntryConstants;
@@ -29,6 +28,8 @@ import com.liferay.portlet.documentlibrary.model.DLFileVersion;
 import com.liferay.portlet.documentlibrary.service.DLAppHelperLocalServiceUtil;
 import com.liferay.portlet.documentlibrary.util.DLUtil;
 import cz.topolik.fsrepo.LocalFileSystemRepository;
+import cz.topolik.fsrepo.listing.FileAttributes;
+import cz.topolik.fsrepo.listing.MimeTypeFilter;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -56,6 +57,15 @@ public class FileSystemFileVersion extends FileSystemModel implements FileVersio
         return new FileSystemFileVersion(repository, fileVersionId, fileEntry, super.localFile);
     }
 
+    @Override
+    public FileAttributes getFileAttributes() {
+        if (fileAttributes == null && fileEntry instanceof FileSystemModel && ((FileSystemModel) fileEntry).localFile.equals(localFile)) {
+            // the same file, read once for both
+            fileAttributes = ((FileSystemModel) fileEntry).getFileAttributes();
+        }
+        return super.getFileAttributes();
+    }
+
     public String getChangeLog() {
         return StringPool.BLANK;
     }
@@ -109,11 +119,11 @@ public class FileSystemFileVersion extends FileSystemModel implements FileVersio
     }
 
     public String getMimeType() {
-        return MimeTypesUtil.getContentType(localFile.getName());
+        return MimeTypeFilter.getContentType(localFile.getName());
     }
 
     public long getSize() {
-        return localFile.length();
+        return getFileAttributes().getSize();
     }
 
     public int getStatus() {
@@ -23,7 +23,6 @@ import com.liferay.portlet.documentlibrary.model.DLFolderConstants;
 import cz.topolik.fsrepo.LocalFileSystemRepository;
 
 import java.io.File;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -45,28 +44,17 @@ public class FileSystemFolder extends FileSystemModel implements Folder {
         return new FileSystemFolder(repository, uuid, folderId, folder);
     }
 
+    /**
+     * The list ends at the first ancestor the user cannot view, the ancestors
+     * above it are left out. Only the ancestors of a folder the user can view
+     * are listed whole.
+     */
     public List<Folder> getAncestors() throws PortalException, SystemException {
-        List<Folder> result = new ArrayList<Folder>();
-
-        Folder f = this;
-        while (!f.isRoot()) {
-            f = f.getParentFolder();
-            result.add(f);
-        }
-
-        return result;
+        return repository.getAncestors(folderId, folder);
     }
     
 	public List<Long> getAncestorFolderIds() throws PortalException, SystemException {
-        List<Long> result = new ArrayList<Long>();
-
-        Folder f = this;
-        while (!f.isRoot()) {
-            f = f.getParentFolder();
-            result.add(f.getFolderId());
-        }
-
-        return result;
+        return repository.getAncestorFolderIds(folderId, folder);
 	}
 
     public void setFolderId(long folderId) {
@@ -87,8 +75,7 @@ public class FileSystemFolder extends FileSystemModel implements Folder {
 
     public long getParentFolderId() {
         try {
-            Folder f = getParentFolder();
-            return f == null ? DLFolderConstants.DEFAULT_PARENT_FOLDER_ID : f.getFolderId();
+            return repository.getParentFolderId(folderId, folder);
         } catch (Exception ex) {
             ex.printStackTrace(System.err);
         }
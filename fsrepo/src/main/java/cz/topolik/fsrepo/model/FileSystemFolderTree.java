@@ -0,0 +1,70 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact folder tree, one node per folder the user can view.
+ *
+ * @author Tomas Polesovsky
+ */
+public class FileSystemFolderTree {
+
+    private final long folderId;
+    private final String name;
+    private final List<FileSystemFolderTree> children = new ArrayList<FileSystemFolderTree>();
+    private boolean complete;
+
+    public FileSystemFolderTree(long folderId, String name) {
+        this.folderId = folderId;
+        this.name = name;
+    }
+
+    public long getFolderId() {
+        return folderId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<FileSystemFolderTree> getChildren() {
+        return children;
+    }
+
+    /**
+     * @return false when the subfolders were not walked (max depth) or only
+     * partly (max number of folders)
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public void setComplete(boolean complete) {
+        this.complete = complete;
+    }
+
+    /**
+     * Collects IDs of all descendants, depth first, parents before their
+     * children.
+     */
+    public void collectFolderIds(List<Long> folderIds) {
+        for (FileSystemFolderTree child : children) {
+            folderIds.add(child.getFolderId());
+            child.collectFolderIds(folderIds);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo.model;
+
+import com.liferay.portal.kernel.cache.Lifecycle;
+import com.liferay.portal.kernel.cache.ThreadLocalCache;
+import com.liferay.portal.kernel.cache.ThreadLocalCacheManager;
+import cz.topolik.fsrepo.LocalFileSystemLocalRepository;
+
+/**
+ * Request scoped identity map of the models, so one file is resolved and
+ * permission checked at most once per request. Models are interned per
+ * repository and model class both by ID and by path. Models built for a
+ * given version or entry are not interned.
+ *
+ * Local calls skip the permission checks, so they don't share models with
+ * the permission checked calls. The user cannot see the model when
+ * {@link #NOT_VISIBLE} is returned.
+ *
+ * @author Tomas Polesovsky
+ */
+public class FileSystemIdentityMap {
+
+    public static final Object NOT_VISIBLE = new Object();
+    private static final String CACHE_NAME = FileSystemIdentityMap.class.getName();
+
+    /**
+     * @return the model, {@link #NOT_VISIBLE} or null when not resolved yet
+     */
+    public static Object get(long repositoryId, Class<?> modelClass, Object key) {
+        return getCache(repositoryId).get(getKey(modelClass, key));
+    }
+
+    /**
+     * @param model the model or null when the user cannot see it
+     */
+    public static void put(long repositoryId, Class<?> modelClass, Object key, Object model) {
+        getCache(repositoryId).put(getKey(modelClass, key), model == null ? NOT_VISIBLE : model);
+    }
+
+    /**
+     * Called whenever a file is changed, moved, renamed or deleted.
+     */
+    public static void clear(long repositoryId) {
+        getCache(repositoryId).removeAll();
+    }
+
+    private static ThreadLocalCache<Object> getCache(long repositoryId) {
+        return ThreadLocalCacheManager.getThreadLocalCache(Lifecycle.REQUEST, CACHE_NAME + "." + repositoryId);
+    }
+
+    private static String getKey(Class<?> modelClass, Object key) {
+        return (LocalFileSystemLocalRepository.isLocalCall() ? "local:" : "") + modelClass.getSimpleName() + ":" + key;
+    }
+}
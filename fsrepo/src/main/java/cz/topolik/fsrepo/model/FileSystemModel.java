@@ -22,12 +22,14 @@ import com.liferay.portal.kernel.util.StringPool;
 import com.liferay.portal.security.permission.ActionKeys;
 import com.liferay.portal.security.permission.PermissionChecker;
 import com.liferay.portal.service.UserLocalServiceUtil;
+import com.liferay.portlet.documentlibrary.model.DLFolder;
 import com.liferay.portlet.documentlibrary.service.DLAppLocalServiceUtil;
 import com.liferay.portlet.expando.model.ExpandoBridge;
 import com.liferay.portlet.expando.util.ExpandoBridgeFactoryUtil;
 import cz.topolik.fsrepo.LocalFileSystemRepository;
+import cz.topolik.fsrepo.listing.FileAttributes;
+import cz.topolik.fsrepo.listing.ListedFile;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.Serializable;
 import java.util.Date;
 import java.util.HashMap;
@@ -65,6 +67,7 @@ public abstract class FileSystemModel {
     protected String uuid;
     protected File localFile;
     protected Folder parentFolder;
+    protected FileAttributes fileAttributes;
 
 
     public FileSystemModel(LocalFileSystemRepository repository, String uuid, File localFile) {
@@ -83,7 +86,16 @@ public abstract class FileSystemModel {
 			return false;
 		}
 
-		boolean hasPermission = permissionChecker.hasPermission(repository.getGroupId(), getModelClassName(), getPrimaryKey(), actionId);
+        // with inherited permissions the access may be decided by a folder
+        String className = getModelClassName();
+        long primKey = getPrimaryKey();
+        String permissionActionId = actionId;
+        long permissionPrimKey = repository.getPermissionEntryId(className, primKey);
+        if (permissionPrimKey != primKey) {
+            permissionActionId = repository.getInheritedActionId(className, actionId);
+            className = DLFolder.class.getName();
+        }
+		boolean hasPermission = permissionChecker.hasPermission(repository.getGroupId(), className, permissionPrimKey, permissionActionId);
         if(!hasPermission){
             return false;
         }
@@ -94,10 +106,10 @@ public abstract class FileSystemModel {
             }
 
             if(actionId.equals(ActionKeys.VIEW)) {
-                return localFile.canRead();
+                return getFileAttributes().canRead();
             }
             
-            return localFile.canWrite();            
+            return getFileAttributes().canWrite();            
         }
 
         return false;
@@ -120,7 +132,22 @@ public abstract class FileSystemModel {
     }
 
     public Date getModifiedDate() {
-        return new Date(localFile.lastModified());
+        return new Date(getFileAttributes().getLastModified());
+    }
+
+    /**
+     * @return attributes read once per model, files coming from a listing
+     * bring them along
+     */
+    public FileAttributes getFileAttributes() {
+        if (fileAttributes == null) {
+            if (localFile instanceof ListedFile) {
+                fileAttributes = ((ListedFile) localFile).getAttributes();
+            } else {
+                fileAttributes = FileAttributes.read(localFile);
+            }
+        }
+        return fileAttributes;
     }
 
     public long getRepositoryId() {
@@ -229,22 +256,16 @@ public abstract class FileSystemModel {
     }
 
     public Folder getParentFolder() throws PortalException, SystemException {
-        try {
-            if (parentFolder != null) {
-                return parentFolder;
-            }
-            File parentFile = localFile.getParentFile();
-            File rootFolder = repository.getRootFolder();
-            if (parentFile.getAbsolutePath().length() <= rootFolder.getAbsolutePath().length()) {
-                Folder mountFolder = DLAppLocalServiceUtil.getMountFolder(getRepositoryId());
-                parentFolder = mountFolder;
-            } else {
-                parentFolder = repository.fileToFolder(parentFile);
-            }
+        if (parentFolder != null) {
             return parentFolder;
-        } catch (FileNotFoundException ex) {
-            throw new SystemException("Cannot get parent folder for [folder]: ["+localFile.getAbsolutePath()+"]", ex);
         }
+        File parentFile = localFile.getParentFile();
+        if (repository.isMountPath(parentFile)) {
+            parentFolder = DLAppLocalServiceUtil.getMountFolder(getRepositoryId());
+        } else {
+            parentFolder = repository.fileToFolder(parentFile);
+        }
+        return parentFolder;
     }
     public abstract long getPrimaryKey();
 
@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo.model;
+
+import cz.topolik.fsrepo.listing.FileAttributes;
+import cz.topolik.fsrepo.listing.ListedFile;
+import java.io.File;
+
+/**
+ * Compact record of a folder or a file entry for callers that need just the
+ * ID, the name, the type and the size. Unlike the models it carries no
+ * versions and doesn't trigger asset updates.
+ *
+ * @author Tomas Polesovsky
+ */
+public class FileSystemProjection {
+
+    private final long id;
+    private final File file;
+    private final boolean folder;
+    private FileAttributes attributes;
+
+    public FileSystemProjection(long id, File file, boolean folder) {
+        this.id = id;
+        this.file = file;
+        this.folder = folder;
+        if (file instanceof ListedFile) {
+            attributes = ((ListedFile) file).getAttributes();
+        }
+    }
+
+    /**
+     * @return folderId or fileEntryId
+     */
+    public long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return file.getName();
+    }
+
+    public boolean isFolder() {
+        return folder;
+    }
+
+    /**
+     * @return size of the file, 0 for folders; read on the first call unless
+     * known from the listing
+     */
+    public long getSize() {
+        if (folder) {
+            return 0;
+        }
+        if (attributes == null) {
+            attributes = FileAttributes.read(file);
+        }
+        return attributes.getSize();
+    }
+
+    public File getFile() {
+        return file;
+    }
+}
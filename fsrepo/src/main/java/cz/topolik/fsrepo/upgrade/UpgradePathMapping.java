@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo.upgrade;
+
+import com.liferay.portal.kernel.dao.db.DBFactoryUtil;
+import com.liferay.portal.kernel.dao.orm.QueryUtil;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.upgrade.UpgradeProcess;
+import com.liferay.portal.model.Repository;
+import com.liferay.portal.model.RepositoryEntry;
+import com.liferay.portal.service.ReleaseLocalServiceUtil;
+import com.liferay.portal.service.RepositoryLocalServiceUtil;
+import com.liferay.portlet.expando.model.ExpandoColumn;
+import com.liferay.portlet.expando.service.ExpandoColumnLocalServiceUtil;
+import cz.topolik.fsrepo.Constants;
+import cz.topolik.fsrepo.LocalFileSystemRepository;
+import cz.topolik.fsrepo.mapper.FileSystemPathMappingUtil;
+
+/**
+ * Creates the path mapping table and fills it from the Absolute_Path expando
+ * column the paths used to be stored in. Completion is recorded in the
+ * {@link #RELEASE_NAME} release, an interrupted migration is resumed on the
+ * next startup, already mapped paths are skipped.
+ *
+ * @author Tomas Polesovsky
+ */
+public class UpgradePathMapping extends UpgradeProcess {
+
+    public static final String RELEASE_NAME = "fsrepo-path-mapping";
+    public static final int BUILD_NUMBER = 1;
+    private static Log _log = LogFactoryUtil.getLog(UpgradePathMapping.class);
+
+    @Override
+    protected void doUpgrade() throws Exception {
+        if (!hasTable(FileSystemPathMappingUtil.TABLE_NAME)) {
+            if (_log.isInfoEnabled()) {
+                _log.info("Creating table " + FileSystemPathMappingUtil.TABLE_NAME);
+            }
+            DBFactoryUtil.getDB().runSQLTemplateString(FileSystemPathMappingUtil.TABLE_SQL_CREATE, false, true);
+            DBFactoryUtil.getDB().runSQLTemplateString(FileSystemPathMappingUtil.INDEX_SQL_CREATE, false, true);
+            DBFactoryUtil.getDB().runSQLTemplateString(FileSystemPathMappingUtil.PARENT_INDEX_SQL_CREATE, false, true);
+        } else if (!tableHasColumn(FileSystemPathMappingUtil.TABLE_NAME, "parentHash")) {
+            DBFactoryUtil.getDB().runSQLTemplateString(FileSystemPathMappingUtil.PARENT_COLUMN_SQL_ADD, false, true);
+            DBFactoryUtil.getDB().runSQLTemplateString(FileSystemPathMappingUtil.PARENT_INDEX_SQL_CREATE, false, true);
+        }
+
+        if (ReleaseLocalServiceUtil.fetchRelease(RELEASE_NAME) != null) {
+            return;
+        }
+        int updated = FileSystemPathMappingUtil.updateParentHashes();
+        if (_log.isInfoEnabled()) {
+            _log.info("Filled the parent hash of " + updated + " paths");
+        }
+
+        for (Repository repository : RepositoryLocalServiceUtil.getRepositories(QueryUtil.ALL_POS, QueryUtil.ALL_POS)) {
+            if (!LocalFileSystemRepository.class.getName().equals(repository.getClassName())) {
+                continue;
+            }
+            ExpandoColumn expandoColumn = ExpandoColumnLocalServiceUtil.getDefaultTableColumn(repository.getCompanyId(), RepositoryEntry.class.getName(), Constants.ABSOLUTE_PATH);
+            if (expandoColumn == null) {
+                continue;
+            }
+            int migrated = FileSystemPathMappingUtil.migrateFromExpando(repository.getRepositoryId(), expandoColumn);
+            if (_log.isInfoEnabled()) {
+                _log.info("Migrated " + migrated + " paths from expando for repository " + repository.getRepositoryId());
+            }
+        }
+        ReleaseLocalServiceUtil.addRelease(RELEASE_NAME, BUILD_NUMBER);
+    }
+}
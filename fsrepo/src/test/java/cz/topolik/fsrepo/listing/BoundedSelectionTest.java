@@ -0,0 +1,83 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo.listing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Tomas Polesovsky
+ */
+public class BoundedSelectionTest {
+
+    private static final Comparator<Integer> NATURAL = new Comparator<Integer>() {
+
+        public int compare(Integer o1, Integer o2) {
+            return o1.compareTo(o2);
+        }
+    };
+    // compares the tens only, so 10..19 are all tied
+    private static final Comparator<Integer> TENS = new Comparator<Integer>() {
+
+        public int compare(Integer o1, Integer o2) {
+            return Integer.valueOf(o1 / 10).compareTo(o2 / 10);
+        }
+    };
+
+    @Test
+    public void testSelectsFirstInOrder() {
+        List<Integer> items = Arrays.asList(7, 3, 9, 1, 5, 8, 2, 6, 4, 0);
+        assertEquals(Arrays.asList(0, 1, 2, 3), BoundedSelection.select(items, 4, NATURAL));
+    }
+
+    @Test
+    public void testSelectsAllWhenFewer() {
+        List<Integer> items = Arrays.asList(3, 1, 2);
+        assertEquals(Arrays.asList(1, 2, 3), BoundedSelection.select(items, 10, NATURAL));
+    }
+
+    @Test
+    public void testSelectsNothing() {
+        assertTrue(BoundedSelection.select(Arrays.asList(3, 1, 2), 0, NATURAL).isEmpty());
+        assertTrue(BoundedSelection.select(new ArrayList<Integer>(), 5, NATURAL).isEmpty());
+    }
+
+    @Test
+    public void testTiesKeepInputOrder() {
+        List<Integer> items = Arrays.asList(15, 11, 19, 3, 12, 18, 14);
+        assertEquals(Arrays.asList(3, 15, 11, 19), BoundedSelection.select(items, 4, TENS));
+        assertEquals(Arrays.asList(3, 15, 11, 19, 12, 18, 14), BoundedSelection.select(items, 7, TENS));
+    }
+
+    @Test
+    public void testSmallerSelectionIsPrefix() {
+        List<Integer> items = new ArrayList<Integer>();
+        for (int i = 0; i < 200; i++) {
+            items.add(i % 50);
+        }
+        Collections.shuffle(items, new Random(42));
+        List<Integer> all = BoundedSelection.select(items, items.size(), TENS);
+        for (int k = 1; k < items.size(); k += 7) {
+            assertEquals(all.subList(0, k), BoundedSelection.select(items, k, TENS));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo.listing;
+
+import cz.topolik.fsrepo.listing.SortedDirectoryViews.SortKey;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Tomas Polesovsky
+ */
+public class ListingCursorTest {
+
+    @Test
+    public void testRoundTrip() {
+        ListingCursor cursor = new ListingCursor(SortKey.MODIFIED_DATE, false, "report\t2013 ž.pdf", 1376000000000L);
+        ListingCursor decoded = ListingCursor.decode(cursor.encode());
+        assertNotNull(decoded);
+        assertEquals(SortKey.MODIFIED_DATE, decoded.getKey());
+        assertFalse(decoded.isAscending());
+        assertEquals("report\t2013 ž.pdf", decoded.getName());
+        assertEquals(1376000000000L, decoded.getValue());
+    }
+
+    @Test
+    public void testTokenIsUrlSafe() {
+        String token = new ListingCursor(SortKey.NAME, true, "???>>>~~~", 0).encode();
+        assertTrue(token.matches("[A-Za-z0-9_\\-.*]*"));
+    }
+
+    @Test
+    public void testMalformedTokens() {
+        assertNull(ListingCursor.decode("not a cursor"));
+        assertNull(ListingCursor.decode(""));
+        String other = new ListingCursor(SortKey.NAME, true, "a", 0).encode();
+        assertNull(ListingCursor.decode(other.substring(0, other.length() / 2)));
+    }
+
+    @Test
+    public void testIsBefore() {
+        ListingCursor byName = new ListingCursor(SortKey.NAME, true, "b", 0);
+        assertTrue(byName.isBefore("c", 0));
+        // case only ties by the exact name
+        assertFalse(byName.isBefore("B", 0));
+        assertTrue(new ListingCursor(SortKey.NAME, true, "B", 0).isBefore("b", 0));
+        assertFalse(byName.isBefore("a", 0));
+        assertFalse(byName.isBefore("b", 0));
+
+        ListingCursor bySize = new ListingCursor(SortKey.SIZE, false, "m", 100);
+        assertTrue(bySize.isBefore("a", 50));
+        assertFalse(bySize.isBefore("z", 200));
+        // ties by the exact name
+        assertTrue(bySize.isBefore("n", 100));
+        assertFalse(bySize.isBefore("l", 100));
+    }
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo.listing;
+
+import com.liferay.portal.kernel.util.Digester;
+import com.liferay.portal.kernel.util.DigesterUtil;
+import cz.topolik.fsrepo.listing.SortedDirectoryViews.SortKey;
+import cz.topolik.fsrepo.listing.SortedDirectoryViews.SortedFile;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author Tomas Polesovsky
+ */
+public class SortedDirectoryViewsTest {
+
+    private static final long PAST = System.currentTimeMillis() - 3600000;
+    private File dir;
+    private File viewsDir;
+
+    @Before
+    public void setUp() throws IOException {
+        // view names are digests of the directory paths
+        new DigesterUtil().setDigester((Digester) Proxy.newProxyInstance(Digester.class.getClassLoader(), new Class<?>[]{Digester.class}, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                MessageDigest digest = MessageDigest.getInstance((String) args[0]);
+                for (String text : (String[]) args[1]) {
+                    digest.update(text.getBytes("UTF-8"));
+                }
+                return new BigInteger(1, digest.digest()).toString(16);
+            }
+        }));
+        File tmp = File.createTempFile("fsrepo", "test");
+        tmp.delete();
+        dir = new File(tmp, "dir");
+        viewsDir = new File(tmp, "views");
+        dir.mkdirs();
+        for (int i = 0; i < 10; i++) {
+            createFile("file" + i, i * 10, PAST + i * 1000);
+        }
+        dir.setLastModified(PAST);
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir.getParentFile());
+    }
+
+    @Test
+    public void testPutAndGet() {
+        SortedDirectoryViews views = new SortedDirectoryViews(viewsDir, 1, 60000);
+        putView(views, SortKey.SIZE, false);
+        assertNames(views.get(dir, SortKey.SIZE, false), "file9", "file8", "file7", "file6", "file5", "file4", "file3", "file2", "file1", "file0");
+        assertNull(views.get(dir, SortKey.SIZE, true));
+    }
+
+    @Test
+    public void testViewIsStoredOnDisk() {
+        putView(new SortedDirectoryViews(viewsDir, 1, 60000), SortKey.NAME, true);
+        List<File> sorted = new SortedDirectoryViews(viewsDir, 1, 60000).get(dir, SortKey.NAME, true);
+        assertNames(sorted, "file0", "file1", "file2", "file3", "file4", "file5", "file6", "file7", "file8", "file9");
+    }
+
+    @Test
+    public void testUpdateInsertsInOrder() throws IOException {
+        SortedDirectoryViews views = new SortedDirectoryViews(viewsDir, 1, 60000);
+        putView(views, SortKey.SIZE, true);
+        putView(views, SortKey.NAME, true);
+
+        createFile("file45", 45, PAST);
+        new File(dir, "file2").delete();
+        dir.setLastModified(PAST + 1000);
+        views.update(dir, PAST, "file2", new File(dir, "file45"));
+
+        String[] expected = {"file0", "file1", "file3", "file4", "file45", "file5", "file6", "file7", "file8", "file9"};
+        assertNames(views.get(dir, SortKey.SIZE, true), expected);
+        assertNames(views.get(dir, SortKey.NAME, true), expected);
+        // replayed from the log
+        assertNames(new SortedDirectoryViews(viewsDir, 1, 60000).get(dir, SortKey.SIZE, true), expected);
+    }
+
+    @Test
+    public void testUpdateDropsStaleView() throws IOException {
+        SortedDirectoryViews views = new SortedDirectoryViews(viewsDir, 1, 60000);
+        putView(views, SortKey.NAME, true);
+        createFile("outside", 1, PAST);
+        dir.setLastModified(PAST + 1000);
+        views.update(dir, PAST + 1000, null, new File(dir, "added"));
+        assertNull(views.get(dir, SortKey.NAME, true));
+    }
+
+    @Test
+    public void testChangeOutsideInvalidates() throws IOException {
+        SortedDirectoryViews views = new SortedDirectoryViews(viewsDir, 1, 60000);
+        putView(views, SortKey.NAME, true);
+        createFile("outside", 1, PAST);
+        dir.setLastModified(PAST + 1000);
+        assertNull(views.get(dir, SortKey.NAME, true));
+    }
+
+    @Test
+    public void testStaleValuesInvalidate() throws Exception {
+        SortedDirectoryViews views = new SortedDirectoryViews(viewsDir, 1, 0);
+        putView(views, SortKey.SIZE, true);
+        // past the validation interval
+        Thread.sleep(10);
+        createFile("file3", 1000, PAST);
+        dir.setLastModified(PAST);
+        assertNull(views.get(dir, SortKey.SIZE, true));
+    }
+
+    @Test
+    public void testSeekAfterCursor() {
+        SortedDirectoryViews views = new SortedDirectoryViews(viewsDir, 1, 60000);
+        putView(views, SortKey.MODIFIED_DATE, true);
+        List<File> sorted = views.get(dir, SortKey.MODIFIED_DATE, true);
+        assertNotNull(sorted);
+        SortedFile last = (SortedFile) sorted.get(3);
+        ListingCursor cursor = ListingCursor.decode(new ListingCursor(SortKey.MODIFIED_DATE, true, last.getName(), last.getSortValue()).encode());
+        int from = 0;
+        while (from < sorted.size() && !cursor.isBefore(sorted.get(from).getName(), ((SortedFile) sorted.get(from)).getSortValue())) {
+            from++;
+        }
+        assertEquals("file4", sorted.get(from).getName());
+    }
+
+    private void putView(SortedDirectoryViews views, SortKey key, boolean ascending) {
+        List<File> files = new ArrayList<File>();
+        for (File file : dir.listFiles()) {
+            files.add(file);
+        }
+        final List<Long> unsorted = new ArrayList<Long>();
+        for (File file : files) {
+            unsorted.add(SortedDirectoryViews.getSortValue(key, FileAttributes.read(file)));
+        }
+        List<File> sorted = new ArrayList<File>();
+        List<Long> values = new ArrayList<Long>();
+        while (!files.isEmpty()) {
+            int best = 0;
+            for (int i = 1; i < files.size(); i++) {
+                if (ListingCursor.compare(key, ascending, files.get(i).getName(), unsorted.get(i), files.get(best).getName(), unsorted.get(best)) < 0) {
+                    best = i;
+                }
+            }
+            sorted.add(files.remove(best));
+            values.add(unsorted.remove(best));
+        }
+        long[] sortValues = new long[values.size()];
+        for (int i = 0; i < sortValues.length; i++) {
+            sortValues[i] = values.get(i);
+        }
+        views.put(dir, key, ascending, dir.lastModified(), sorted, sortValues);
+    }
+
+    private void createFile(String name, int size, long modified) throws IOException {
+        File file = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+        file.setLastModified(modified);
+    }
+
+    private void assertNames(List<File> files, String... names) {
+        assertNotNull(files);
+        List<String> actual = new ArrayList<String>();
+        for (File file : files) {
+            actual.add(file.getName());
+        }
+        assertEquals(Arrays.asList(names), actual);
+    }
+
+    private void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
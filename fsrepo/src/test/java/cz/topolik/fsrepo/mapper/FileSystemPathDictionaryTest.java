@@ -0,0 +1,154 @@
+/**
+ * Copyright (c) 2012 Tomáš Polešovský
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package cz.topolik.fsrepo.mapper;
+
+import java.io.File;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Tomas Polesovsky
+ */
+public class FileSystemPathDictionaryTest {
+
+    private static final String S = File.separator;
+
+    @Test
+    public void testPathRoundTrip() {
+        FileSystemPathDictionary dictionary = new FileSystemPathDictionary();
+        int nodeId = dictionary.getNodeId(S + "a" + S + "b" + S + "c.txt");
+        assertEquals(S + "a" + S + "b" + S + "c.txt", dictionary.getPath(nodeId));
+        assertEquals("c.txt", dictionary.getName(nodeId));
+        assertEquals(nodeId, dictionary.getNodeId(S + "a" + S + "b" + S + "c.txt"));
+        assertEquals(nodeId, dictionary.findNodeId(S + "a" + S + "b" + S + "c.txt"));
+        assertEquals(dictionary.findNodeId(S + "a" + S + "b"), dictionary.getParentId(nodeId));
+        assertEquals(4, dictionary.size());
+    }
+
+    @Test
+    public void testRoot() {
+        FileSystemPathDictionary dictionary = new FileSystemPathDictionary();
+        assertEquals(FileSystemPathDictionary.ROOT, dictionary.getNodeId(""));
+        assertEquals(FileSystemPathDictionary.ROOT, dictionary.findNodeId(""));
+        assertEquals("", dictionary.getPath(FileSystemPathDictionary.ROOT));
+        File rootFolder = new File("root");
+        assertEquals(rootFolder, dictionary.getFile(rootFolder, FileSystemPathDictionary.ROOT));
+    }
+
+    @Test
+    public void testFindDoesNotCreate() {
+        FileSystemPathDictionary dictionary = new FileSystemPathDictionary();
+        dictionary.getNodeId(S + "a");
+        assertEquals(FileSystemPathDictionary.NOT_FOUND, dictionary.findNodeId(S + "a" + S + "missing" + S + "deeper"));
+        assertEquals(FileSystemPathDictionary.NOT_FOUND, dictionary.findChildId(FileSystemPathDictionary.ROOT, "missing"));
+        assertEquals(2, dictionary.size());
+    }
+
+    @Test
+    public void testSharedSegments() {
+        FileSystemPathDictionary dictionary = new FileSystemPathDictionary();
+        int first = dictionary.getNodeId(S + "a" + S + "data");
+        int second = dictionary.getNodeId(S + "b" + S + "data");
+        assertFalse(first == second);
+        assertEquals(S + "a" + S + "data", dictionary.getPath(first));
+        assertEquals(S + "b" + S + "data", dictionary.getPath(second));
+    }
+
+    @Test
+    public void testSegmentsDroppedWithLastNode() {
+        FileSystemPathDictionary dictionary = new FileSystemPathDictionary();
+        int first = dictionary.getNodeId(S + "a" + S + "data");
+        dictionary.getNodeId(S + "b" + S + "data");
+        assertEquals(3, dictionary.getSegmentCount());
+
+        dictionary.remove(dictionary.findNodeId(S + "b"));
+        assertEquals(2, dictionary.getSegmentCount());
+        dictionary.move(first, FileSystemPathDictionary.ROOT, "renamed");
+        assertEquals(2, dictionary.getSegmentCount());
+        assertEquals(S + "renamed", dictionary.getPath(first));
+        assertEquals(first, dictionary.findNodeId(S + "renamed"));
+        assertEquals(FileSystemPathDictionary.NOT_FOUND, dictionary.findNodeId(S + "a" + S + "data"));
+    }
+
+    @Test
+    public void testRemoveSubtree() {
+        FileSystemPathDictionary dictionary = new FileSystemPathDictionary();
+        int a = dictionary.getNodeId(S + "a");
+        int b = dictionary.getNodeId(S + "a" + S + "b");
+        int c = dictionary.getNodeId(S + "a" + S + "b" + S + "c");
+        int other = dictionary.getNodeId(S + "other");
+
+        int[] removed = dictionary.remove(b);
+        Arrays.sort(removed);
+        int[] expected = {b, c};
+        Arrays.sort(expected);
+        assertTrue(Arrays.equals(expected, removed));
+        assertNull(dictionary.getPath(b));
+        assertNull(dictionary.getPath(c));
+        assertEquals(FileSystemPathDictionary.NOT_FOUND, dictionary.findNodeId(S + "a" + S + "b"));
+        assertEquals(S + "a", dictionary.getPath(a));
+        assertEquals(S + "other", dictionary.getPath(other));
+        assertEquals(3, dictionary.size());
+        assertEquals(0, dictionary.remove(b).length);
+    }
+
+    @Test
+    public void testRemovedIdsAreNotReusedRightAway() {
+        FileSystemPathDictionary dictionary = new FileSystemPathDictionary();
+        int removed = dictionary.getNodeId(S + "removed");
+        dictionary.remove(removed);
+        assertFalse(removed == dictionary.getNodeId(S + "added"));
+    }
+
+    @Test
+    public void testMoveKeepsDescendants() {
+        FileSystemPathDictionary dictionary = new FileSystemPathDictionary();
+        int folder = dictionary.getNodeId(S + "a" + S + "folder");
+        int file = dictionary.getNodeId(S + "a" + S + "folder" + S + "file.txt");
+        int target = dictionary.getNodeId(S + "b");
+
+        dictionary.move(folder, target, "renamed");
+        assertEquals(S + "b" + S + "renamed", dictionary.getPath(folder));
+        assertEquals(S + "b" + S + "renamed" + S + "file.txt", dictionary.getPath(file));
+        assertEquals(file, dictionary.findNodeId(S + "b" + S + "renamed" + S + "file.txt"));
+        assertEquals(FileSystemPathDictionary.NOT_FOUND, dictionary.findNodeId(S + "a" + S + "folder"));
+    }
+
+    @Test
+    public void testMoveReplacesDestination() {
+        FileSystemPathDictionary dictionary = new FileSystemPathDictionary();
+        int source = dictionary.getNodeId(S + "source");
+        int destination = dictionary.getNodeId(S + "destination");
+        int child = dictionary.getNodeId(S + "destination" + S + "child");
+
+        int[] removed = dictionary.move(source, FileSystemPathDictionary.ROOT, "destination");
+        assertEquals(2, removed.length);
+        assertEquals(source, dictionary.findNodeId(S + "destination"));
+        assertNull(dictionary.getPath(destination));
+        assertNull(dictionary.getPath(child));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMoveUnderItself() {
+        FileSystemPathDictionary dictionary = new FileSystemPathDictionary();
+        int a = dictionary.getNodeId(S + "a");
+        int b = dictionary.getNodeId(S + "a" + S + "b");
+        dictionary.move(a, b, "a");
+    }
+}